@@ -18,8 +18,10 @@ package com.udacity.devrel.training.conference.android.utils;
 import com.google.api.client.googleapis.extensions.android.gms.auth.GoogleAccountCredential;
 import com.udacity.devrel.training.conference.android.AppConstants;
 
+import com.appspot.your_app_id.conference.model.ConditionalConferences;
 import com.appspot.your_app_id.conference.model.Conference;
 import com.appspot.your_app_id.conference.model.ConferenceCollection;
+import com.appspot.your_app_id.conference.model.ConferenceQueryForm;
 import com.appspot.your_app_id.conference.model.Profile;
 import com.appspot.your_app_id.conference.model.WrappedBoolean;
 
@@ -28,7 +30,9 @@ import android.util.Log;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * A utility class for communication with the Cloud Endpoint.
@@ -36,16 +40,30 @@ import java.util.List;
 public class ConferenceUtils {
 
     private final static String TAG = "ConferenceUtils";
+
+    /**
+     * The number of conferences requested per page.
+     */
+    private final static int PAGE_SIZE = 50;
+
     private static com.appspot.your_app_id.conference.Conference sApiServiceHandler;
 
+    /**
+     * The pages of the last refresh by their cursor, sent back with their etag so that
+     * unchanged pages come back without their conferences.
+     */
+    private static final Map<String, ConditionalConferences> sPages =
+            new HashMap<String, ConditionalConferences>();
+
     public static void build(Context context, String email) {
         sApiServiceHandler = buildServiceHandler(context, email);
+        sPages.clear();
     }
 
     /**
      * Returns a list of {@link com.udacity.devrel.training.conference.android.utils.DecoratedConference}s.
      * This list includes information about what {@link com.appspot.your_app_id.conference.model.Conference}s
-     * user has registered for.
+     * user has registered for. The conferences are requested page by page.
      *
      * @return
      * @throws ConferenceException
@@ -58,25 +76,38 @@ public class ConferenceUtils {
             throw new ConferenceException();
         }
 
-        com.appspot.your_app_id.conference.Conference.QueryConferences
-                queryConferences = sApiServiceHandler.queryConferences(null);
-        ConferenceCollection conferenceCollection = queryConferences.execute();
-
-        if (conferenceCollection != null && conferenceCollection.getItems() != null) {
-            List<Conference> conferences = conferenceCollection.getItems();
-            List<DecoratedConference> decoratedList = null;
-            if (null == conferences || conferences.isEmpty()) {
-                return decoratedList;
+        List<Conference> conferences = new ArrayList<Conference>();
+        String pageToken = null;
+        do {
+            ConferenceQueryForm queryForm = new ConferenceQueryForm()
+                    .setLimit(PAGE_SIZE)
+                    .setCursor(pageToken);
+            String pageKey = pageToken == null ? "" : pageToken;
+            ConditionalConferences cached = sPages.get(pageKey);
+            com.appspot.your_app_id.conference.Conference.QueryConferencesIfModified
+                    queryConferences = sApiServiceHandler.queryConferencesIfModified(queryForm);
+            if (cached != null) {
+                queryConferences.setIfNoneMatch(cached.getEtag());
             }
-            decoratedList = new ArrayList<DecoratedConference>();
-            Profile profile = getProfile();
-            List<String> registeredConfKeys = null;
-            if (null != profile) {
-                registeredConfKeys = profile.getConferenceKeysToAttend();
+            ConditionalConferences page = queryConferences.execute();
+            if (page == null) {
+                break;
             }
-            if (null == registeredConfKeys) {
-                registeredConfKeys = new ArrayList<String>();
+            if (cached != null && !page.getModified()) {
+                // The page didn't change since the last refresh.
+                page = cached;
+            } else {
+                sPages.put(pageKey, page);
             }
+            if (page.getItems() != null) {
+                conferences.addAll(page.getItems());
+            }
+            pageToken = page.getNextPageToken();
+        } while (pageToken != null);
+
+        if (!conferences.isEmpty()) {
+            List<DecoratedConference> decoratedList = new ArrayList<DecoratedConference>();
+            List<String> registeredConfKeys = getRegisteredConferenceKeys();
             for (Conference conference : conferences) {
                 DecoratedConference decorated = new DecoratedConference(conference,
                         registeredConfKeys.contains(conference.getWebsafeKey()));
@@ -87,6 +118,28 @@ public class ConferenceUtils {
         return null;
     }
 
+    /**
+     * Returns the websafe keys of the {@link com.appspot.your_app_id.conference.model.Conference}s
+     * the user has registered for.
+     *
+     * @return
+     * @throws IOException
+     */
+    private static List<String> getRegisteredConferenceKeys() throws IOException {
+        List<String> registeredConfKeys = new ArrayList<String>();
+        if (null == getProfile()) {
+            // Users without a Profile have not registered yet.
+            return registeredConfKeys;
+        }
+        ConferenceCollection attending = sApiServiceHandler.getConferencesToAttend().execute();
+        if (null != attending && null != attending.getItems()) {
+            for (Conference conference : attending.getItems()) {
+                registeredConfKeys.add(conference.getWebsafeKey());
+            }
+        }
+        return registeredConfKeys;
+    }
+
     /**
      * Registers user for a {@link com.appspot.your_app_id.conference.model.Conference}
      *
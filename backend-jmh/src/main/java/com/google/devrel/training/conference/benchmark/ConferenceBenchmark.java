@@ -0,0 +1,97 @@
+/* Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.devrel.training.conference.benchmark;
+
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.form.ConferenceForm;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of Conference: the update from a ConferenceForm, the description sent in the
+ * confirmation e-mail task, the defensive copy of the topics and the etag.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ConferenceBenchmark {
+
+    private final LocalServiceTestHelper helper =
+            new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+
+    private ConferenceForm conferenceForm;
+
+    private Conference conference;
+
+    @Setup
+    public void setUp() {
+        // The ApiProxy environment is per thread, the setup runs in the benchmark thread.
+        helper.setUp();
+        List<String> topics = Arrays.asList("Google", "Cloud", "Platform", "Android");
+        Date startDate = new Date(1395705600000L);
+        Date endDate = new Date(1395792000000L);
+        conferenceForm = new ConferenceForm("GCP Live", "New announcements for Google Cloud",
+                topics, "San Francisco", startDate, endDate, 500);
+        conference = new Conference(1001L, "123456789", conferenceForm);
+        conference.setOrganizerDisplayName("Alice");
+    }
+
+    @TearDown
+    public void tearDown() {
+        helper.tearDown();
+    }
+
+    @Benchmark
+    public Conference updateWithConferenceForm() {
+        conference.updateWithConferenceForm(conferenceForm);
+        return conference;
+    }
+
+    @Benchmark
+    public String toStringForTask() {
+        return conference.toString();
+    }
+
+    @Benchmark
+    public List<String> getTopics() {
+        return conference.getTopics();
+    }
+
+    @Benchmark
+    public String getEtag() {
+        return conference.getEtag();
+    }
+}
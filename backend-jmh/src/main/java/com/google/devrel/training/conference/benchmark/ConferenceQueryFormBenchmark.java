@@ -0,0 +1,109 @@
+/* Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.devrel.training.conference.benchmark;
+
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.form.ConferenceQueryForm;
+import com.google.devrel.training.conference.form.ConferenceQueryForm.Field;
+import com.google.devrel.training.conference.form.ConferenceQueryForm.Filter;
+import com.google.devrel.training.conference.form.ConferenceQueryForm.Operator;
+import com.googlecode.objectify.cmd.Query;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of ConferenceQueryForm: building the Objectify query, which checks the filters
+ * first, the check alone, and the defensive copy of the filters. Nothing is sent to the
+ * datastore.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ConferenceQueryFormBenchmark {
+
+    /**
+     * The filters of the query: none, equality filters only, or inequality filters on one and
+     * on two fields.
+     */
+    @Param({"NONE", "EQUALITY", "INEQUALITY", "MULTIPLE_INEQUALITY"})
+    private String filters;
+
+    private final LocalServiceTestHelper helper =
+            new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+
+    private ConferenceQueryForm conferenceQueryForm;
+
+    @Setup
+    public void setUp() {
+        helper.setUp();
+        conferenceQueryForm = new ConferenceQueryForm().limit(20);
+        if (filters.equals("NONE")) {
+            return;
+        }
+        conferenceQueryForm
+                .filter(new Filter(Field.CITY, Operator.EQ, "Tokyo"))
+                .filter(new Filter(Field.TOPIC, Operator.EQ, "Cloud"));
+        if (filters.equals("EQUALITY")) {
+            return;
+        }
+        conferenceQueryForm
+                .filter(new Filter(Field.MONTH, Operator.GT, "3"))
+                .filter(new Filter(Field.MONTH, Operator.LT, "10"));
+        if (filters.equals("INEQUALITY")) {
+            return;
+        }
+        conferenceQueryForm.filter(new Filter(Field.MAX_ATTENDEES, Operator.GTEQ, "100"));
+    }
+
+    @TearDown
+    public void tearDown() {
+        helper.tearDown();
+    }
+
+    @Benchmark
+    public Query<Conference> getQuery() {
+        return conferenceQueryForm.getQuery();
+    }
+
+    @Benchmark
+    public boolean checkFilters() {
+        return conferenceQueryForm.hasMultipleInequalityFields();
+    }
+
+    @Benchmark
+    public List<Filter> getFilters() {
+        return conferenceQueryForm.getFilters();
+    }
+}
@@ -0,0 +1,97 @@
+/* Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.devrel.training.conference.benchmark;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.devrel.training.conference.domain.Profile;
+import com.google.devrel.training.conference.form.ProfileForm.TeeShirtSize;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the copies of Profile: the legacy conference keys, which are now only read
+ * by the migration, and the copy handed out by the Profiles cache.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ProfileBenchmark {
+
+    /**
+     * The number of legacy conference keys of the Profile.
+     */
+    @Param({"0", "10", "100"})
+    private int conferences;
+
+    private final LocalServiceTestHelper helper =
+            new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+
+    private Profile profile;
+
+    @Setup
+    public void setUp() {
+        helper.setUp();
+        // Profiles only get legacy keys from the datastore.
+        Entity entity = new Entity("Profile", "123456789");
+        entity.setProperty("displayName", "Alice");
+        entity.setProperty("mainEmail", "alice@example.com");
+        entity.setProperty("teeShirtSize", TeeShirtSize.M.name());
+        List<String> conferenceKeys = new ArrayList<>(conferences);
+        for (int i = 0; i < conferences; i++) {
+            conferenceKeys.add("conference" + i);
+        }
+        entity.setProperty("conferenceKeysToAttend", conferenceKeys);
+        profile = ofy().load().fromEntity(entity);
+    }
+
+    @TearDown
+    public void tearDown() {
+        ofy().clear();
+        helper.tearDown();
+    }
+
+    @Benchmark
+    public List<String> getLegacyConferenceKeysToAttend() {
+        return profile.getLegacyConferenceKeysToAttend();
+    }
+
+    @Benchmark
+    public Profile copy() {
+        return profile.copy();
+    }
+}
@@ -15,20 +15,34 @@
 
 package com.google.devrel.training.conference.domain;
 
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+
 /**
  * A simple wrapper for announcement message.
  */
 public class Announcement {
     private String message;
 
+    /**
+     * A strong entity tag of the message, clients send it back to learn whether it changed.
+     */
+    private String etag;
+
     private Announcement() {
     }
 
     public Announcement(String message) {
         this.message = message;
+        this.etag = "\"" + Hashing.sha1().hashString(message, Charsets.UTF_8).toString()
+                .substring(0, 16) + "\"";
     }
 
     public String getMessage() {
         return message;
     }
-}
\ No newline at end of file
+
+    public String getEtag() {
+        return etag;
+    }
+}
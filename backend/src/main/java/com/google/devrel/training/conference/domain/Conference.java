@@ -15,15 +15,15 @@
 
 package com.google.devrel.training.conference.domain;
 
-import static com.google.devrel.training.conference.service.OfyService.ofy;
-
 import com.googlecode.objectify.annotation.Cache;
 import com.googlecode.objectify.condition.IfNotDefault;
 
 import com.google.api.server.spi.config.AnnotationBoolean;
 import com.google.api.server.spi.config.ApiResourceProperty;
+import com.google.common.base.Charsets;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
+import com.google.common.hash.Hashing;
 import com.google.devrel.training.conference.form.ConferenceForm;
 import com.googlecode.objectify.Key;
 import com.googlecode.objectify.annotation.Entity;
@@ -79,6 +79,13 @@ public class Conference {
     @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
     private String organizerUserId;
 
+    /**
+     * The display name of the organizer, denormalized from the Profile.
+     *
+     * It is rewritten in the background when the organizer changes the display name.
+     */
+    private String organizerDisplayName;
+
     /**
      * Topics related to this conference.
      */
@@ -120,6 +127,52 @@ public class Conference {
     @Index
     private int seatsAvailable;
 
+    /**
+     * Number of SeatShards holding the seat inventory, 0 when the inventory is not sharded yet.
+     *
+     * The seatsAvailable above is a snapshot once the inventory is sharded.
+     */
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    private int seatShardCount;
+
+    /**
+     * The maxAttendees when the seat inventory was sharded.
+     *
+     * SeatShards are only stored once they are written, until then they are derived from this.
+     */
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    private int shardedMaxAttendees;
+
+    /**
+     * The seatsAvailable when the seat inventory was sharded.
+     */
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    private int shardedSeatsAvailable;
+
+    /**
+     * The seats an update lowering maxAttendees is taking out of the SeatShards, 0 when none.
+     *
+     * Recorded before the seats are taken out and cleared with the new maxAttendees, so that
+     * the seats of an update that died in between can be put back.
+     */
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    private int seatsBeingRemoved;
+
+    /**
+     * When the removal of the seatsBeingRemoved started, in milliseconds since the epoch.
+     */
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    private long seatsRemovalStartMillis;
+
+    /**
+     * Bumped on every change the organizer makes, and on the legacy seat changes.
+     *
+     * The seats booked through SeatShards don't write the Conference, the etag combines this
+     * with the seatsAvailable instead.
+     */
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    private long version;
+
     /**
      * Just making the default constructor private.
      */
@@ -164,16 +217,28 @@ public class Conference {
     /**
      * Returns organizer's display name.
      *
-     * @return organizer's display name. If there is no Profile, return his/her userId.
+     * @return organizer's display name. If it has not been copied from the Profile,
+     *     return his/her userId.
      */
     public String getOrganizerDisplayName() {
-        // Profile organizer = ofy().load().key(Key.create(Profile.class, organizerUserId)).now();
-        Profile organizer = ofy().load().key(getProfileKey()).now();
-        if (organizer == null) {
-            return organizerUserId;
-        } else {
-            return organizer.getDisplayName();
-        }
+        return organizerDisplayName == null ? organizerUserId : organizerDisplayName;
+    }
+
+    /**
+     * Returns true when the organizer's display name has been copied from the Profile.
+     * Conferences saved before the name was denormalized don't have it.
+     */
+    public boolean hasOrganizerDisplayName() {
+        return organizerDisplayName != null;
+    }
+
+    /**
+     * Sets the organizer's display name, see {@link #getOrganizerDisplayName()}.
+     *
+     * @param organizerDisplayName the display name from the organizer's Profile.
+     */
+    public void setOrganizerDisplayName(final String organizerDisplayName) {
+        this.organizerDisplayName = organizerDisplayName;
     }
 
     /**
@@ -216,6 +281,95 @@ public class Conference {
         return seatsAvailable;
     }
 
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    public int getSeatShardCount() {
+        return seatShardCount;
+    }
+
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    public int getShardedMaxAttendees() {
+        return shardedMaxAttendees;
+    }
+
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    public int getShardedSeatsAvailable() {
+        return shardedSeatsAvailable;
+    }
+
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    public int getSeatsBeingRemoved() {
+        return seatsBeingRemoved;
+    }
+
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    public long getSeatsRemovalStartMillis() {
+        return seatsRemovalStartMillis;
+    }
+
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Returns a strong entity tag of the Conference as the client sees it, clients send it
+     * back to learn whether it changed.
+     *
+     * @return the entity tag, from the version, the seatsAvailable and the display name of
+     *     the organizer.
+     */
+    public String getEtag() {
+        return "\"" + version + "." + seatsAvailable + "." + Hashing.sha1()
+                .hashString(getOrganizerDisplayName(), Charsets.UTF_8).toString()
+                .substring(0, 8) + "\"";
+    }
+
+    /**
+     * Splits the seat inventory into the given number of SeatShards, starting from the current
+     * maxAttendees and seatsAvailable.
+     *
+     * @param seatShardCount the number of SeatShards.
+     */
+    public void shardSeatInventory(final int seatShardCount) {
+        this.seatShardCount = seatShardCount;
+        this.shardedMaxAttendees = maxAttendees;
+        this.shardedSeatsAvailable = seatsAvailable;
+    }
+
+    /**
+     * Records that the given number of seats are being taken out of the SeatShards.
+     *
+     * @param seatsBeingRemoved the number of seats.
+     * @param startMillis the current time in milliseconds.
+     */
+    public void startSeatsRemoval(final int seatsBeingRemoved, final long startMillis) {
+        Preconditions.checkState(this.seatsBeingRemoved == 0, "Seats are already being removed.");
+        this.seatsBeingRemoved = seatsBeingRemoved;
+        this.seatsRemovalStartMillis = startMillis;
+    }
+
+    /**
+     * Clears the record of the seats being taken out of the SeatShards, once maxAttendees
+     * reflects them or they are put back.
+     */
+    public void endSeatsRemoval() {
+        this.seatsBeingRemoved = 0;
+        this.seatsRemovalStartMillis = 0;
+    }
+
+    /**
+     * Replaces the seatsAvailable snapshot with the number counted over the SeatShards.
+     *
+     * @param seatsAvailable the number of seats currently available.
+     */
+    public void syncSeatsAvailable(final int seatsAvailable) {
+        if (seatsAvailable < 0 || seatsAvailable > maxAttendees) {
+            throw new IllegalArgumentException("Invalid number of seats available: "
+                    + seatsAvailable);
+        }
+        this.seatsAvailable = seatsAvailable;
+    }
+
     /**
      * Updates the Conference with ConferenceForm.
      * This method is used upon object creation as well as updating existing Conferences.
@@ -250,6 +404,7 @@ public class Conference {
         // However, if there are already some seats allocated, we should subtract that numbers.
         this.maxAttendees = conferenceForm.getMaxAttendees();
         this.seatsAvailable = this.maxAttendees - seatsAllocated;
+        version++;
     }
 
     public void bookSeats(final int number) {
@@ -257,6 +412,7 @@ public class Conference {
             throw new IllegalArgumentException("There are no seats available.");
         }
         seatsAvailable = seatsAvailable - number;
+        version++;
     }
 
     public void giveBackSeats(final int number) {
@@ -264,6 +420,7 @@ public class Conference {
             throw new IllegalArgumentException("The number of seats will exceeds the capacity.");
         }
         seatsAvailable = seatsAvailable + number;
+        version++;
     }
 
     @Override
@@ -15,6 +15,8 @@
 
 package com.google.devrel.training.conference.domain;
 
+import com.google.api.server.spi.config.AnnotationBoolean;
+import com.google.api.server.spi.config.ApiResourceProperty;
 import com.google.common.collect.ImmutableList;
 import com.google.devrel.training.conference.form.ProfileForm.TeeShirtSize;
 import com.googlecode.objectify.annotation.Cache;
@@ -53,7 +55,8 @@ public class Profile {
     private TeeShirtSize teeShirtSize;
 
     /**
-     * Keys of the conferences that this user registers to attend.
+     * Keys of the conferences that this user registered to attend before registrations were
+     * stored as Registration entities. Registrations.migrate moves them out.
      */
     private List<String> conferenceKeysToAttend = new ArrayList<>(0);
 
@@ -77,6 +80,16 @@ public class Profile {
         this.teeShirtSize = teeShirtSize;
     }
 
+    /**
+     * Returns a copy of this Profile, so that a cached Profile is never changed by a caller.
+     * @return a copy of this Profile.
+     */
+    public Profile copy() {
+        Profile copy = new Profile(userId, displayName, mainEmail, teeShirtSize);
+        copy.conferenceKeysToAttend = new ArrayList<>(conferenceKeysToAttend);
+        return copy;
+    }
+
     /**
      * Getter for userId.
      * @return userId.
@@ -110,10 +123,11 @@ public class Profile {
     }
 
     /**
-     * Getter for conferenceIdsToAttend.
-     * @return an immutable copy of conferenceIdsToAttend.
+     * Getter for the keys of the conferences registered before Registration entities.
+     * @return an immutable copy of conferenceKeysToAttend.
      */
-    public List<String> getConferenceKeysToAttend() {
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    public List<String> getLegacyConferenceKeysToAttend() {
         return ImmutableList.copyOf(conferenceKeysToAttend);
     }
 
@@ -133,27 +147,19 @@ public class Profile {
     }
 
     /**
-     * Adds a ConferenceId to conferenceIdsToAttend.
-     *
-     * The method initConferenceIdsToAttend is not thread-safe, but we need a transaction for
-     * calling this method after all, so it is not a practical issue.
+     * Removes a key from conferenceKeysToAttend.
      *
      * @param conferenceKey a websafe String representation of the Conference Key.
+     * @return true when the key was in conferenceKeysToAttend.
      */
-    public void addToConferenceKeysToAttend(String conferenceKey) {
-        conferenceKeysToAttend.add(conferenceKey);
+    public boolean removeLegacyConferenceKeyToAttend(String conferenceKey) {
+        return conferenceKeysToAttend.remove(conferenceKey);
     }
 
     /**
-     * Remove the conferenceId from conferenceIdsToAttend.
-     *
-     * @param conferenceKey a websafe String representation of the Conference Key.
+     * Empties conferenceKeysToAttend, once they are stored as Registration entities.
      */
-    public void unregisterFromConference(String conferenceKey) {
-        if (conferenceKeysToAttend.contains(conferenceKey)) {
-            conferenceKeysToAttend.remove(conferenceKey);
-        } else {
-            throw new IllegalArgumentException("Invalid conferenceKey: " + conferenceKey);
-        }
+    public void clearLegacyConferenceKeysToAttend() {
+        conferenceKeysToAttend.clear();
     }
 }
@@ -0,0 +1,133 @@
+/* Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.devrel.training.conference.domain;
+
+import com.google.api.server.spi.config.AnnotationBoolean;
+import com.google.api.server.spi.config.ApiResourceProperty;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.annotation.Cache;
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+import com.googlecode.objectify.annotation.Index;
+import com.googlecode.objectify.annotation.Parent;
+
+import java.util.Date;
+
+/**
+ * Registration class stores that a user attends a Conference.
+ *
+ * A Registration lives in the entity group of the user's Profile, so that it is committed
+ * together with it. The registrations of a user are found with an ancestor query, the
+ * attendees of a Conference with a query on conferenceKey.
+ */
+@Entity
+@Cache
+public class Registration {
+
+    /**
+     * The organizer's userId and the id of the Conference, separated by a colon. The key of
+     * the Conference can be rebuilt from it without parsing a websafe key, and a user
+     * registers at most once per Conference.
+     */
+    @Id
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    private String id;
+
+    /**
+     * Holds Profile key as the parent.
+     */
+    @Parent
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    private Key<Profile> profileKey;
+
+    @Index
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    private Key<Conference> conferenceKey;
+
+    private Date created;
+
+    /**
+     * Just making the default constructor private.
+     */
+    private Registration() {}
+
+    public Registration(final String userId, final Key<Conference> conferenceKey) {
+        this.id = idOf(conferenceKey);
+        this.profileKey = Key.create(Profile.class, userId);
+        this.conferenceKey = conferenceKey;
+        this.created = new Date();
+    }
+
+    public Registration(final String userId, final String websafeConferenceKey) {
+        this(userId, Key.<Conference>create(websafeConferenceKey));
+    }
+
+    public static Key<Registration> createKey(final String userId,
+            final Key<Conference> conferenceKey) {
+        return Key.create(Key.create(Profile.class, userId), Registration.class,
+                idOf(conferenceKey));
+    }
+
+    public static Key<Registration> createKey(final String userId,
+            final String websafeConferenceKey) {
+        return createKey(userId, Key.<Conference>create(websafeConferenceKey));
+    }
+
+    /**
+     * Returns the id of the Registrations for the given Conference.
+     *
+     * @param conferenceKey the key of a Conference, a child of the organizer's Profile.
+     * @return the id.
+     */
+    private static String idOf(final Key<Conference> conferenceKey) {
+        return conferenceKey.getParent().getName() + ":" + conferenceKey.getId();
+    }
+
+    /**
+     * Rebuilds the key of the Conference of a Registration from the Registration key.
+     *
+     * @param registrationKey the key of a Registration.
+     * @return the key of the Conference.
+     */
+    public static Key<Conference> getConferenceKey(final Key<Registration> registrationKey) {
+        String id = registrationKey.getName();
+        int separator = id.lastIndexOf(':');
+        return Key.create(Key.create(Profile.class, id.substring(0, separator)),
+                Conference.class, Long.parseLong(id.substring(separator + 1)));
+    }
+
+    public String getWebsafeConferenceKey() {
+        return conferenceKey.getString();
+    }
+
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    public Key<Profile> getProfileKey() {
+        return profileKey;
+    }
+
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    public Key<Conference> getConferenceKey() {
+        return conferenceKey;
+    }
+
+    /**
+     * Returns a defensive copy of created if not null.
+     * @return a defensive copy of created if not null.
+     */
+    public Date getCreated() {
+        return created == null ? null : new Date(created.getTime());
+    }
+}
@@ -0,0 +1,161 @@
+/* Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.devrel.training.conference.domain;
+
+import com.google.api.server.spi.config.AnnotationBoolean;
+import com.google.api.server.spi.config.ApiResourceProperty;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+import com.googlecode.objectify.annotation.Index;
+import com.googlecode.objectify.annotation.Parent;
+
+import java.util.Date;
+
+/**
+ * Reservation class stores a registration change requested asynchronously.
+ *
+ * The websafe key of a Reservation is the ticket a client polls for the outcome. A Reservation
+ * lives in the entity group of the user's Profile, so that it is committed together with it.
+ */
+@Entity
+public class Reservation {
+
+    /**
+     * Enum representing the requested change.
+     */
+    public static enum Action {
+        REGISTER,
+        UNREGISTER
+    }
+
+    /**
+     * Enum representing the state of the Reservation.
+     */
+    public static enum Status {
+        PENDING,
+        CONFIRMED,
+        REJECTED
+    }
+
+    /**
+     * Use the websafe key of the Conference as the datastore key, so that a user has at most
+     * one Reservation per Conference.
+     */
+    @Id
+    private String websafeConferenceKey;
+
+    /**
+     * Holds Profile key as the parent.
+     */
+    @Parent
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    private Key<Profile> profileKey;
+
+    /**
+     * The Conference to register to or unregister from.
+     */
+    @Index
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    private Key<Conference> conferenceKey;
+
+    private Action action;
+
+    @Index
+    private Status status;
+
+    /**
+     * Why the Reservation has been rejected.
+     */
+    private String reason;
+
+    private Date created;
+
+    /**
+     * Just making the default constructor private.
+     */
+    private Reservation() {}
+
+    public Reservation(final String userId, final String websafeConferenceKey,
+                       final Action action) {
+        this.websafeConferenceKey = websafeConferenceKey;
+        this.profileKey = Key.create(Profile.class, userId);
+        this.conferenceKey = Key.create(websafeConferenceKey);
+        this.action = action;
+        this.status = Status.PENDING;
+        this.created = new Date();
+    }
+
+    public static Key<Reservation> createKey(final String userId,
+            final String websafeConferenceKey) {
+        return Key.create(Key.create(Profile.class, userId), Reservation.class,
+                websafeConferenceKey);
+    }
+
+    // Get a String version of the key, which is the ticket for polling the Reservation.
+    public String getWebsafeKey() {
+        return Key.create(profileKey, Reservation.class, websafeConferenceKey).getString();
+    }
+
+    public String getWebsafeConferenceKey() {
+        return websafeConferenceKey;
+    }
+
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    public Key<Profile> getProfileKey() {
+        return profileKey;
+    }
+
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    public Key<Conference> getConferenceKey() {
+        return conferenceKey;
+    }
+
+    public Action getAction() {
+        return action;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public String getReason() {
+        return reason;
+    }
+
+    /**
+     * Returns a defensive copy of created if not null.
+     * @return a defensive copy of created if not null.
+     */
+    public Date getCreated() {
+        return created == null ? null : new Date(created.getTime());
+    }
+
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    public boolean isPending() {
+        return status == Status.PENDING;
+    }
+
+    public void confirm() {
+        this.status = Status.CONFIRMED;
+        this.reason = null;
+    }
+
+    public void reject(final String reason) {
+        this.status = Status.REJECTED;
+        this.reason = reason;
+    }
+}
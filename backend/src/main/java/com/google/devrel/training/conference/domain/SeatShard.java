@@ -0,0 +1,150 @@
+/* Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.devrel.training.conference.domain;
+
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.annotation.Cache;
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+
+/**
+ * SeatShard class holds a slice of the seat inventory of a Conference.
+ *
+ * Each shard is a root entity, so it lives in its own entity group. Bookings usually touch a
+ * single shard, which lets registrations for the same Conference commit in parallel instead
+ * of contending on the Conference entity group.
+ */
+@Entity
+@Cache
+public class SeatShard {
+
+    /**
+     * The name for the datastore key, see {@link #createKey(Key, int)}.
+     */
+    @Id
+    private String id;
+
+    /**
+     * The Conference this shard belongs to.
+     */
+    private Key<Conference> conferenceKey;
+
+    /**
+     * The zero based index of this shard.
+     */
+    private int index;
+
+    /**
+     * The number of seats this shard is responsible for.
+     */
+    private int capacity;
+
+    /**
+     * Number of seats currently available in this shard.
+     */
+    private int seatsAvailable;
+
+    /**
+     * Just making the default constructor private.
+     */
+    private SeatShard() {}
+
+    public SeatShard(Key<Conference> conferenceKey, int index, int capacity,
+                     int seatsAvailable) {
+        if (seatsAvailable < 0 || seatsAvailable > capacity) {
+            throw new IllegalArgumentException("Invalid number of seats for the shard: "
+                    + seatsAvailable + " of " + capacity);
+        }
+        this.id = createName(conferenceKey, index);
+        this.conferenceKey = conferenceKey;
+        this.index = index;
+        this.capacity = capacity;
+        this.seatsAvailable = seatsAvailable;
+    }
+
+    /**
+     * Returns the key of the shard with the given index for the given Conference.
+     *
+     * @param conferenceKey the key of the Conference.
+     * @param index the zero based index of the shard.
+     * @return the key of the shard.
+     */
+    public static Key<SeatShard> createKey(Key<Conference> conferenceKey, int index) {
+        return Key.create(SeatShard.class, createName(conferenceKey, index));
+    }
+
+    private static String createName(Key<Conference> conferenceKey, int index) {
+        // The organizer's userId and the conference id identify the Conference.
+        return conferenceKey.getParent().getName() + ":" + conferenceKey.getId() + ":" + index;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public Key<Conference> getConferenceKey() {
+        return conferenceKey;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int getSeatsAvailable() {
+        return seatsAvailable;
+    }
+
+    public void bookSeats(final int number) {
+        if (seatsAvailable < number) {
+            throw new IllegalArgumentException("There are no seats available in the shard.");
+        }
+        seatsAvailable = seatsAvailable - number;
+    }
+
+    public void giveBackSeats(final int number) {
+        if (seatsAvailable + number > capacity) {
+            throw new IllegalArgumentException("The number of seats will exceeds the capacity.");
+        }
+        seatsAvailable = seatsAvailable + number;
+    }
+
+    /**
+     * Adds new seats to the capacity of this shard.
+     *
+     * @param number the number of seats to add.
+     */
+    public void addSeats(final int number) {
+        capacity = capacity + number;
+        seatsAvailable = seatsAvailable + number;
+    }
+
+    /**
+     * Removes available seats from the capacity of this shard.
+     *
+     * @param number the number of seats to remove.
+     */
+    public void removeSeats(final int number) {
+        if (seatsAvailable < number) {
+            throw new IllegalArgumentException("Only available seats can be removed.");
+        }
+        capacity = capacity - number;
+        seatsAvailable = seatsAvailable - number;
+    }
+}
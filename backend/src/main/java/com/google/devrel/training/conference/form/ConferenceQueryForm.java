@@ -19,6 +19,7 @@ import static com.google.devrel.training.conference.service.OfyService.ofy;
 
 import com.google.api.server.spi.config.AnnotationBoolean;
 import com.google.api.server.spi.config.ApiResourceProperty;
+import com.google.appengine.api.datastore.Cursor;
 import com.google.common.collect.ImmutableList;
 import com.google.devrel.training.conference.domain.Conference;
 
@@ -35,11 +36,26 @@ public class ConferenceQueryForm {
 
     private static final Logger LOG = Logger.getLogger(ConferenceQueryForm.class.getName());
 
+    /**
+     * The number of Conferences in a page when the limit is not specified.
+     */
+    public static final int DEFAULT_LIMIT = 20;
+
+    /**
+     * The maximum number of Conferences in a page.
+     */
+    public static final int MAX_LIMIT = 100;
+
+    /**
+     * The system property switching queries to keys-only queries followed by a batch get.
+     */
+    public static final String KEYS_ONLY_PROPERTY = "conference.query.keysOnly";
+
     /**
      * Enum representing a field type.
      */
     public static enum FieldType {
-        STRING, INTEGER
+        STRING, INTEGER, TEXT
     }
 
     /**
@@ -49,7 +65,10 @@ public class ConferenceQueryForm {
         CITY("city", FieldType.STRING),
         TOPIC("topics", FieldType.STRING),
         MONTH("month", FieldType.INTEGER),
-        MAX_ATTENDEES("maxAttendees", FieldType.INTEGER);
+        MAX_ATTENDEES("maxAttendees", FieldType.INTEGER),
+        SEATS_AVAILABLE("seatsAvailable", FieldType.INTEGER),
+        // Full-text search over name, description and topics, see searchConferences.
+        TEXT("text", FieldType.TEXT);
 
         private String fieldName;
 
@@ -63,6 +82,10 @@ public class ConferenceQueryForm {
         private String getFieldName() {
             return this.fieldName;
         }
+
+        public FieldType getFieldType() {
+            return fieldType;
+        }
     }
 
     /**
@@ -90,6 +113,29 @@ public class ConferenceQueryForm {
             return this.queryOperator.contains("<") || this.queryOperator.contains(">") ||
                     this.queryOperator.contains("!");
         }
+
+        /**
+         * Evaluates this operator on the result of comparing a value with the filter value.
+         *
+         * @param comparison the result of value.compareTo(filterValue).
+         * @return true when the value satisfies the filter.
+         */
+        public boolean matches(int comparison) {
+            switch (this) {
+                case EQ:
+                    return comparison == 0;
+                case LT:
+                    return comparison < 0;
+                case GT:
+                    return comparison > 0;
+                case LTEQ:
+                    return comparison <= 0;
+                case GTEQ:
+                    return comparison >= 0;
+                default:
+                    return comparison != 0;
+            }
+        }
     }
 
     /**
@@ -127,25 +173,46 @@ public class ConferenceQueryForm {
     private List<Filter> filters = new ArrayList<>(0);
 
     /**
-     * Holds the first inequalityFilter for checking the feasibility of the whole query.
+     * Holds the first inequalityFilter, the datastore query sorts on its field.
      */
     @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
     private Filter inequalityFilter;
 
+    /**
+     * True when there are inequality filters on more than one field. The datastore can't
+     * answer such a query, it is answered by the ConferenceIndex instead.
+     */
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    private boolean multipleInequalityFields;
+
+    /**
+     * The maximum number of Conferences in the page, DEFAULT_LIMIT when not specified.
+     */
+    private Integer limit;
+
+    /**
+     * The nextPageToken of the previous page, null for the first page.
+     */
+    private String cursor;
+
     public ConferenceQueryForm() {}
 
     /**
-     * Checks the feasibility of the whole query.
+     * Finds the first inequality filter, and whether other fields have inequality filters.
      */
     private void checkFilters() {
+        inequalityFilter = null;
+        multipleInequalityFields = false;
         for (Filter filter : this.filters) {
+            if (filter.field.fieldType == FieldType.TEXT) {
+                continue;
+            }
             if (filter.operator.isInequalityFilter()) {
-                // Only one inequality filter is allowed.
-                if (inequalityFilter != null && !inequalityFilter.field.equals(filter.field)) {
-                    throw new IllegalArgumentException(
-                            "Inequality filter is allowed on only one field.");
+                if (inequalityFilter == null) {
+                    inequalityFilter = filter;
+                } else if (!inequalityFilter.field.equals(filter.field)) {
+                    multipleInequalityFields = true;
                 }
-                inequalityFilter = filter;
             }
         }
     }
@@ -159,6 +226,57 @@ public class ConferenceQueryForm {
         return ImmutableList.copyOf(filters);
     }
 
+    /**
+     * Returns true when queries run keys-only, and the Conferences are batch loaded through
+     * Objectify's global cache. The mode is switched with the KEYS_ONLY_PROPERTY system
+     * property, so that both modes can be compared.
+     *
+     * Cursors of one mode don't match the query of the other.
+     *
+     * @return true when queries run keys-only.
+     */
+    public static boolean isKeysOnly() {
+        return Boolean.getBoolean(KEYS_ONLY_PROPERTY);
+    }
+
+    /**
+     * Returns the number of Conferences in the page, within MAX_LIMIT.
+     *
+     * @return the number of Conferences in the page.
+     */
+    public int getLimit() {
+        if (limit == null || limit <= 0) {
+            return DEFAULT_LIMIT;
+        }
+        return Math.min(limit, MAX_LIMIT);
+    }
+
+    public String getCursor() {
+        return cursor;
+    }
+
+    /**
+     * Sets the number of Conferences in the page.
+     *
+     * @param limit the number of Conferences in the page.
+     * @return this for method chaining.
+     */
+    public ConferenceQueryForm limit(int limit) {
+        this.limit = limit;
+        return this;
+    }
+
+    /**
+     * Sets where the page starts.
+     *
+     * @param cursor the nextPageToken of the previous page.
+     * @return this for method chaining.
+     */
+    public ConferenceQueryForm cursor(String cursor) {
+        this.cursor = cursor;
+        return this;
+    }
+
     /**
      * Adds a query filter.
      *
@@ -166,26 +284,62 @@ public class ConferenceQueryForm {
      * @return this for method chaining.
      */
     public ConferenceQueryForm filter(Filter filter) {
-        if (filter.operator.isInequalityFilter()) {
-            // Only allows inequality filters on a single field.
-            if (inequalityFilter != null && !inequalityFilter.field.equals(filter.field)) {
-                throw new IllegalArgumentException(
-                        "Inequality filter is allowed on only one field.");
-            }
-            inequalityFilter = filter;
-        }
         filters.add(filter);
         return this;
     }
 
     /**
-     * Returns an Objectify Query object for the specified filters.
+     * Returns the words of the full-text filters, which only support the EQ operator.
+     *
+     * @return the words of the full-text filters, or null when there is none.
+     * @throws IllegalArgumentException when a full-text filter has another operator.
+     */
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    public String getTextQuery() {
+        StringBuilder textQuery = null;
+        for (Filter filter : this.filters) {
+            if (filter.field.fieldType != FieldType.TEXT) {
+                continue;
+            }
+            if (filter.operator != Operator.EQ) {
+                throw new IllegalArgumentException("Full-text filters only support EQ.");
+            }
+            if (textQuery == null) {
+                textQuery = new StringBuilder();
+            }
+            textQuery.append(filter.value).append(" ");
+        }
+        return textQuery == null ? null : textQuery.toString().trim();
+    }
+
+    /**
+     * Returns true when there are inequality filters on more than one field, which the
+     * datastore can't answer in a single query.
+     *
+     * @return true when there are inequality filters on more than one field.
+     */
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    public boolean hasMultipleInequalityFields() {
+        checkFilters();
+        return multipleInequalityFields;
+    }
+
+    /**
+     * Returns an Objectify Query object for the specified filters, limited to the page.
+     *
+     * When there are inequality filters on more than one field, only those on the field of the
+     * first one are applied. The caller checks the others on the result.
      *
      * @return an Objectify Query.
+     * @throws IllegalArgumentException when the filters or the cursor are not valid.
      */
     @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
     public Query<Conference> getQuery() {
-        // First check the feasibility of inequality filters.
+        if (getTextQuery() != null) {
+            throw new IllegalArgumentException(
+                    "Full-text filters are only supported by searchConferences.");
+        }
+        // First find the field of the inequality filters.
         checkFilters();
         Query<Conference> query = ofy().load().type(Conference.class);
         if (inequalityFilter == null) {
@@ -197,6 +351,11 @@ public class ConferenceQueryForm {
             query = query.order("name");
         }
         for (Filter filter : this.filters) {
+            if (filter.operator.isInequalityFilter()
+                    && !inequalityFilter.field.equals(filter.field)) {
+                // The datastore allows inequality filters on a single field.
+                continue;
+            }
             // Applies filters in order.
             if (filter.field.fieldType == FieldType.STRING) {
                 query = query.filter(String.format("%s %s", filter.field.getFieldName(),
@@ -206,6 +365,16 @@ public class ConferenceQueryForm {
                         filter.operator.getQueryOperator()), Integer.parseInt(filter.value));
             }
         }
+        // The cursors of Objectify's hybrid queries, keys-only followed by a batch get from
+        // the cache, don't match the query when it is resumed.
+        query = query.limit(getLimit()).hybrid(false);
+        if (cursor != null) {
+            try {
+                query = query.startAt(Cursor.fromWebSafeString(cursor));
+            } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+                throw new IllegalArgumentException("Invalid cursor: " + cursor, e);
+            }
+        }
         LOG.info(query.toString());
         return query;
     }
@@ -0,0 +1,44 @@
+/* Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.devrel.training.conference.form;
+
+import com.google.common.collect.ImmutableList;
+
+import java.util.List;
+
+/**
+ * A simple Java object (POJO) representing a group booking sent from the client.
+ */
+public class RegistrationBatchForm {
+    /**
+     * The e-mail addresses of the attendees to register.
+     */
+    private List<String> emails;
+
+    private RegistrationBatchForm() {}
+
+    /**
+     * Constructor for RegistrationBatchForm, solely for unit test.
+     * @param emails The e-mail addresses of the attendees to register.
+     */
+    public RegistrationBatchForm(List<String> emails) {
+        this.emails = emails == null ? null : ImmutableList.copyOf(emails);
+    }
+
+    public List<String> getEmails() {
+        return emails;
+    }
+}
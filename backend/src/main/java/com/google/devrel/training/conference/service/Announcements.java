@@ -0,0 +1,80 @@
+/* Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.devrel.training.conference.service;
+
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.devrel.training.conference.Constants;
+import com.google.devrel.training.conference.domain.Announcement;
+
+/**
+ * Serves the announcement from a copy in the instance, read from memcache at most once per
+ * TTL_MILLIS. A new announcement shows up late by as much, which is fine for a message that
+ * the cron and the seat changes rewrite at their own pace.
+ */
+public class Announcements {
+
+    private static final long TTL_MILLIS = 10 * 1000;
+
+    /**
+     * The announcement as read from memcache, with the time it was read.
+     */
+    private static class Entry {
+        private final Announcement announcement;
+        private final long readMillis;
+
+        private Entry(final Announcement announcement, final long readMillis) {
+            this.announcement = announcement;
+            this.readMillis = readMillis;
+        }
+    }
+
+    private static volatile Entry entry;
+
+    /**
+     * Returns the current announcement.
+     *
+     * @return the announcement, or null when there is none.
+     */
+    public static Announcement get() {
+        Entry current = entry;
+        long now = System.currentTimeMillis();
+        if (current == null || now - current.readMillis >= TTL_MILLIS) {
+            MemcacheService memcacheService = MemcacheServiceFactory.getMemcacheService();
+            Object message = memcacheService.get(Constants.MEMCACHE_ANNOUNCEMENTS_KEY);
+            Announcement announcement = null;
+            if (message != null) {
+                // Keep the instance of the unchanged message, with its computed entity tag.
+                if (current != null && current.announcement != null
+                        && current.announcement.getMessage().equals(message.toString())) {
+                    announcement = current.announcement;
+                } else {
+                    announcement = new Announcement(message.toString());
+                }
+            }
+            current = new Entry(announcement, now);
+            entry = current;
+        }
+        return current.announcement;
+    }
+
+    /**
+     * Drops the copy in the instance, mostly for tests.
+     */
+    public static void clear() {
+        entry = null;
+    }
+}
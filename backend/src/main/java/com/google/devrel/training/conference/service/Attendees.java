@@ -0,0 +1,137 @@
+/* Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.domain.Profile;
+import com.google.devrel.training.conference.domain.Registration;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.cmd.Query;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads the roster of a Conference from the Registrations on its conferenceKey.
+ *
+ * The query is not an ancestor query, so a registration may show up a little after it was
+ * made. Users who registered before Registration entities show up once their Profile is
+ * migrated, see MigrateRegistrationsServlet.
+ */
+public class Attendees {
+
+    /**
+     * The number of attendees in a page, when not specified.
+     */
+    public static final int DEFAULT_LIMIT = 100;
+
+    /**
+     * The maximum number of attendees in a page.
+     */
+    public static final int MAX_LIMIT = 500;
+
+    /**
+     * A page of the Profiles of the attendees.
+     */
+    public static class Page {
+        private final List<Profile> profiles;
+        private final String nextPageToken;
+
+        private Page(final List<Profile> profiles, final String nextPageToken) {
+            this.profiles = profiles;
+            this.nextPageToken = nextPageToken;
+        }
+
+        public List<Profile> getProfiles() {
+            return profiles;
+        }
+
+        public String getNextPageToken() {
+            return nextPageToken;
+        }
+    }
+
+    /**
+     * Returns a keys only query of the Registrations for the given Conference, in the order
+     * of the keys.
+     *
+     * @param conferenceKey the key of the Conference.
+     * @param cursor the websafe cursor to start from, or null.
+     * @return the query.
+     * @throws IllegalArgumentException when the cursor is not valid.
+     */
+    public static Query<Registration> query(final Key<Conference> conferenceKey,
+            final String cursor) {
+        Query<Registration> query = ofy().load().type(Registration.class)
+                .filter("conferenceKey", conferenceKey);
+        if (cursor != null) {
+            query = query.startAt(Cursor.fromWebSafeString(cursor));
+        }
+        return query;
+    }
+
+    /**
+     * Returns a page of the attendees of the given Conference.
+     *
+     * @param conferenceKey the key of the Conference.
+     * @param cursor the nextPageToken of the previous page, or null.
+     * @param limit the number of attendees in the page, DEFAULT_LIMIT when null.
+     * @return the page, with a nextPageToken when there may be more attendees.
+     * @throws IllegalArgumentException when the cursor is not valid.
+     */
+    public static Page getPage(final Key<Conference> conferenceKey, final String cursor,
+            final Integer limit) {
+        int pageSize = limit == null || limit <= 0 ? DEFAULT_LIMIT : Math.min(limit, MAX_LIMIT);
+        QueryResultIterator<Key<Registration>> iterator = query(conferenceKey, cursor)
+                .limit(pageSize).chunk(pageSize).hybrid(false).keys().iterator();
+        List<Key<Registration>> keys = new ArrayList<>(pageSize);
+        while (iterator.hasNext()) {
+            keys.add(iterator.next());
+        }
+        // A full page may be followed by more attendees.
+        String nextPageToken = null;
+        if (keys.size() == pageSize) {
+            nextPageToken = iterator.getCursor().toWebSafeString();
+        }
+        return new Page(loadProfiles(keys), nextPageToken);
+    }
+
+    /**
+     * Batch loads the Profiles owning the given Registrations, in order.
+     *
+     * @param registrationKeys the keys of the Registrations.
+     * @return the Profiles.
+     */
+    public static List<Profile> loadProfiles(final List<Key<Registration>> registrationKeys) {
+        List<Key<Profile>> profileKeys = new ArrayList<>(registrationKeys.size());
+        for (Key<Registration> registrationKey : registrationKeys) {
+            profileKeys.add(registrationKey.<Profile>getParent());
+        }
+        Map<Key<Profile>, Profile> loaded = ofy().load().keys(profileKeys);
+        List<Profile> profiles = new ArrayList<>(profileKeys.size());
+        for (Key<Profile> profileKey : profileKeys) {
+            if (loaded.containsKey(profileKey)) {
+                profiles.add(loaded.get(profileKey));
+            }
+        }
+        return profiles;
+    }
+}
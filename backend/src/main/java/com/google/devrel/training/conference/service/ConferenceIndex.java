@@ -0,0 +1,530 @@
+/* Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+
+import com.google.appengine.api.ThreadManager;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.form.ConferenceQueryForm.Field;
+import com.google.devrel.training.conference.form.ConferenceQueryForm.FieldType;
+import com.google.devrel.training.conference.form.ConferenceQueryForm.Filter;
+import com.google.devrel.training.conference.form.ConferenceQueryForm.Operator;
+import com.googlecode.objectify.Key;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+/**
+ * An in-memory index of the Conferences of this instance, answering queries with inequality
+ * filters on several fields, which the datastore can't.
+ *
+ * The index holds the queryable fields in arrays ordered by name, with bitsets of the
+ * positions per city and per topic. It is tagged with the generation of ConferenceQueryCache
+ * it was built at. Changes made on this instance are applied when they are the only change
+ * since, any other change makes the index stale until it is rebuilt. Seat counts are adjusted
+ * by the registrations of this instance only, those of other instances show up at the next
+ * rebuild.
+ *
+ * Queries never rebuild the index, loading every Conference would hold them for too long.
+ * They start a rebuild in a thread of the instance instead, since the index is the instance's
+ * own, and are answered by the datastore meanwhile. The warmup request builds the index of a
+ * new instance.
+ */
+public class ConferenceIndex {
+
+    private static final Logger LOG = Logger.getLogger(ConferenceIndex.class.getName());
+
+    /**
+     * The prefix of the page tokens of the index, followed by the offset of the next page.
+     */
+    public static final String TOKEN_PREFIX = "index:";
+
+    /**
+     * The minimum interval between two rebuilds started by the queries of an instance.
+     */
+    private static final long REBUILD_INTERVAL_MILLIS = 30 * 1000;
+
+    /**
+     * The number of Conferences loaded per datastore batch while rebuilding.
+     */
+    private static final int LOAD_CHUNK_SIZE = 500;
+
+    /**
+     * The indexed fields of a Conference.
+     */
+    private static class Entry {
+        private final String websafeKey;
+        private final String name;
+        private final String city;
+        private final String[] topics;
+        private final int month;
+        private final int maxAttendees;
+        private final int seatsAvailable;
+
+        private Entry(final String websafeKey, final String name, final String city,
+                final String[] topics, final int month, final int maxAttendees,
+                final int seatsAvailable) {
+            this.websafeKey = websafeKey;
+            this.name = name;
+            this.city = city;
+            this.topics = topics;
+            this.month = month;
+            this.maxAttendees = maxAttendees;
+            this.seatsAvailable = seatsAvailable;
+        }
+
+        private Entry(final Conference conference) {
+            this(conference.getWebsafeKey(), conference.getName(), conference.getCity(),
+                    topicsOf(conference), conference.getMonth(), conference.getMaxAttendees(),
+                    conference.getSeatsAvailable());
+        }
+    }
+
+    /**
+     * The order of the query results.
+     */
+    private static final Comparator<Entry> BY_NAME = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry entry1, Entry entry2) {
+            int result = entry1.name.compareTo(entry2.name);
+            return result != 0 ? result : entry1.websafeKey.compareTo(entry2.websafeKey);
+        }
+    };
+
+    /**
+     * An immutable state of the index, except for the seats available.
+     */
+    private static class Snapshot {
+        private final long generation;
+        private final String[] keys;
+        private final String[] names;
+        private final String[] cities;
+        private final String[][] topics;
+        private final int[] months;
+        private final int[] maxAttendees;
+        private final AtomicIntegerArray seatsAvailable;
+        private final Map<String, BitSet> cityPostings = new HashMap<>();
+        private final Map<String, BitSet> topicPostings = new HashMap<>();
+        private final Map<String, Integer> positions = new HashMap<>();
+
+        private Snapshot(final long generation, final List<Entry> entries) {
+            this.generation = generation;
+            int size = entries.size();
+            keys = new String[size];
+            names = new String[size];
+            cities = new String[size];
+            topics = new String[size][];
+            months = new int[size];
+            maxAttendees = new int[size];
+            seatsAvailable = new AtomicIntegerArray(size);
+            for (int i = 0; i < size; i++) {
+                Entry entry = entries.get(i);
+                keys[i] = entry.websafeKey;
+                names[i] = entry.name;
+                cities[i] = entry.city;
+                topics[i] = entry.topics;
+                months[i] = entry.month;
+                maxAttendees[i] = entry.maxAttendees;
+                seatsAvailable.set(i, entry.seatsAvailable);
+                positions.put(entry.websafeKey, i);
+                post(cityPostings, entry.city, i);
+                for (String topic : entry.topics) {
+                    post(topicPostings, topic, i);
+                }
+            }
+        }
+
+        private static void post(final Map<String, BitSet> postings, final String value,
+                final int position) {
+            if (value == null) {
+                return;
+            }
+            BitSet bits = postings.get(value);
+            if (bits == null) {
+                bits = new BitSet();
+                postings.put(value, bits);
+            }
+            bits.set(position);
+        }
+
+        /**
+         * Returns the entries of this snapshot, with their current seats available.
+         */
+        private List<Entry> entries() {
+            List<Entry> entries = new ArrayList<>(keys.length);
+            for (int i = 0; i < keys.length; i++) {
+                entries.add(entry(i));
+            }
+            return entries;
+        }
+
+        private Entry entry(final int position) {
+            return new Entry(keys[position], names[position], cities[position],
+                    topics[position], months[position], maxAttendees[position],
+                    seatsAvailable.get(position));
+        }
+
+        /**
+         * Returns the positions of the entries matching all the given filters, in name order.
+         */
+        private BitSet search(final List<Filter> filters) {
+            BitSet candidates = new BitSet(keys.length);
+            candidates.set(0, keys.length);
+            // Narrow the candidates down with the postings first.
+            for (Filter filter : filters) {
+                if (filter.getOperator() != Operator.EQ) {
+                    continue;
+                }
+                Map<String, BitSet> postings = null;
+                if (filter.getField() == Field.CITY) {
+                    postings = cityPostings;
+                } else if (filter.getField() == Field.TOPIC) {
+                    postings = topicPostings;
+                }
+                if (postings != null) {
+                    BitSet bits = postings.get(filter.getValue());
+                    if (bits == null) {
+                        return new BitSet();
+                    }
+                    candidates.and(bits);
+                }
+            }
+            for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1)) {
+                for (Filter filter : filters) {
+                    if (!matches(filter, i)) {
+                        candidates.clear(i);
+                        break;
+                    }
+                }
+            }
+            return candidates;
+        }
+
+        private boolean matches(final Filter filter, final int position) {
+            switch (filter.getField()) {
+                case CITY:
+                    return ConferenceIndex.matches(filter, cities[position]);
+                case TOPIC:
+                    return matchesAny(filter, topics[position]);
+                case MONTH:
+                    return ConferenceIndex.matches(filter, months[position]);
+                case MAX_ATTENDEES:
+                    return ConferenceIndex.matches(filter, maxAttendees[position]);
+                case SEATS_AVAILABLE:
+                    return ConferenceIndex.matches(filter, seatsAvailable.get(position));
+                default:
+                    // Full-text filters are matched by ConferenceTextIndex.
+                    return true;
+            }
+        }
+    }
+
+    private static volatile Snapshot snapshot;
+
+    private static final ReentrantLock REBUILD_LOCK = new ReentrantLock();
+
+    private static volatile long lastScheduleMillis;
+
+    /**
+     * The thread of the last rebuild started by scheduleRebuild.
+     */
+    private static volatile Thread rebuildThread;
+
+    /**
+     * A page of the keys of the matching Conferences.
+     */
+    public static class Page {
+        private final List<String> websafeConferenceKeys;
+        private final String nextPageToken;
+
+        private Page(final List<String> websafeConferenceKeys, final String nextPageToken) {
+            this.websafeConferenceKeys = websafeConferenceKeys;
+            this.nextPageToken = nextPageToken;
+        }
+
+        public List<String> getWebsafeConferenceKeys() {
+            return websafeConferenceKeys;
+        }
+
+        public String getNextPageToken() {
+            return nextPageToken;
+        }
+    }
+
+    /**
+     * Returns true when the given page token was issued by the index.
+     *
+     * @param pageToken the page token, may be null.
+     * @return true when the page token was issued by the index.
+     */
+    public static boolean isIndexToken(final String pageToken) {
+        return pageToken != null && pageToken.startsWith(TOKEN_PREFIX);
+    }
+
+    /**
+     * Returns a page of the keys of the Conferences matching all the given filters, in name
+     * order.
+     *
+     * Following pages are served by a stale index too, so that the offsets of the page tokens
+     * keep pointing in the same order. Check the Conferences with matches.
+     *
+     * @param filters the filters, on any number of fields.
+     * @param generation the current generation of ConferenceQueryCache.
+     * @param pageToken the nextPageToken of the previous page of the index, or null.
+     * @param limit the maximum number of keys in the page.
+     * @return the page, or null when the index is not built, or is stale and the page is the
+     *     first one.
+     * @throws IllegalArgumentException when the page token is not valid.
+     */
+    public static Page search(final List<Filter> filters, final long generation,
+            final String pageToken, final int limit) {
+        int offset = 0;
+        if (pageToken != null) {
+            try {
+                offset = Integer.parseInt(pageToken.substring(TOKEN_PREFIX.length()));
+            } catch (IndexOutOfBoundsException | NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid cursor: " + pageToken, e);
+            }
+            if (!isIndexToken(pageToken) || offset < 0) {
+                throw new IllegalArgumentException("Invalid cursor: " + pageToken);
+            }
+        }
+        Snapshot current = snapshot;
+        if (current == null || (pageToken == null && current.generation != generation)) {
+            return null;
+        }
+        BitSet matching = current.search(filters);
+        List<String> websafeConferenceKeys = new ArrayList<>(limit);
+        int skipped = 0;
+        int i = matching.nextSetBit(0);
+        for (; i >= 0 && websafeConferenceKeys.size() < limit; i = matching.nextSetBit(i + 1)) {
+            if (skipped < offset) {
+                skipped++;
+            } else {
+                websafeConferenceKeys.add(current.keys[i]);
+            }
+        }
+        String nextPageToken = i >= 0 ? TOKEN_PREFIX + (offset + limit) : null;
+        return new Page(websafeConferenceKeys, nextPageToken);
+    }
+
+    /**
+     * Starts rebuilding the stale indexes of this instance in a thread, unless this instance
+     * has started a rebuild recently, so that a burst of queries on a cold or stale index
+     * doesn't reload every Conference many times.
+     *
+     * The rebuild runs in a background thread where the scaling of the instance allows one,
+     * in a thread of the current request otherwise, which can't outlive the request.
+     */
+    public static synchronized void scheduleRebuild() {
+        long now = System.currentTimeMillis();
+        if (now - lastScheduleMillis < REBUILD_INTERVAL_MILLIS) {
+            return;
+        }
+        lastScheduleMillis = now;
+        Runnable rebuild = new Runnable() {
+            @Override
+            public void run() {
+                long generation = ConferenceQueryCache.generation();
+                rebuildIfStale(generation);
+                ConferenceTextIndex.rebuildIfStale(generation);
+            }
+        };
+        Thread thread;
+        try {
+            thread = ThreadManager.createBackgroundThread(rebuild);
+        } catch (RuntimeException e) {
+            // Instances with automatic scaling have no background threads.
+            thread = ThreadManager.createThreadForCurrentRequest(rebuild);
+        }
+        thread.start();
+        rebuildThread = thread;
+    }
+
+    /**
+     * Rebuilds the index unless it is current or being rebuilt.
+     *
+     * @param generation the current generation of ConferenceQueryCache.
+     */
+    public static void rebuildIfStale(final long generation) {
+        if (!REBUILD_LOCK.tryLock()) {
+            return;
+        }
+        try {
+            Snapshot current = snapshot;
+            if (current == null || current.generation != generation) {
+                rebuild(generation);
+            }
+        } finally {
+            REBUILD_LOCK.unlock();
+        }
+    }
+
+    /**
+     * Loads every Conference into a new index.
+     *
+     * @param generation the generation of ConferenceQueryCache read before the load.
+     */
+    public static void rebuild(final long generation) {
+        List<Entry> entries = new ArrayList<>();
+        QueryResultIterator<Conference> iterator = ofy().load().type(Conference.class)
+                .chunk(LOAD_CHUNK_SIZE).hybrid(false).iterator();
+        while (iterator.hasNext()) {
+            Conference conference = iterator.next();
+            entries.add(new Entry(conference));
+        }
+        Collections.sort(entries, BY_NAME);
+        snapshot = new Snapshot(generation, entries);
+        LOG.info("Indexed " + entries.size() + " conferences at generation " + generation);
+    }
+
+    /**
+     * Applies a Conference created or updated on this instance to the index. Call it with the
+     * generation returned by ConferenceQueryCache.invalidate() after the change.
+     *
+     * @param conference the Conference as saved.
+     * @param generation the generation of ConferenceQueryCache after the change.
+     */
+    public static synchronized void conferenceChanged(final Conference conference,
+            final long generation) {
+        Snapshot current = snapshot;
+        if (current == null || current.generation != generation - 1) {
+            // Other changes happened since, the next query schedules a rebuild.
+            return;
+        }
+        List<Entry> entries = current.entries();
+        Integer position = current.positions.get(conference.getWebsafeKey());
+        Entry entry = new Entry(conference);
+        if (position == null) {
+            entries.add(entry);
+        } else {
+            entries.set(position, entry);
+        }
+        Collections.sort(entries, BY_NAME);
+        snapshot = new Snapshot(generation, entries);
+    }
+
+    /**
+     * Adjusts the seats available of a Conference in the index.
+     *
+     * @param conferenceKey the key of the Conference.
+     * @param delta the change of the seats available, negative for bookings.
+     */
+    public static void seatsChanged(final Key<Conference> conferenceKey, final int delta) {
+        Snapshot current = snapshot;
+        if (current == null) {
+            return;
+        }
+        Integer position = current.positions.get(conferenceKey.getString());
+        if (position != null) {
+            current.seatsAvailable.addAndGet(position, delta);
+        }
+    }
+
+    /**
+     * Drops the index once the rebuild started by scheduleRebuild is done, mostly for tests.
+     */
+    public static void clear() {
+        Thread thread = rebuildThread;
+        if (thread != null) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            rebuildThread = null;
+        }
+        snapshot = null;
+        lastScheduleMillis = 0;
+    }
+
+    /**
+     * Returns true when the given Conference matches all the given filters.
+     *
+     * @param conference the Conference.
+     * @param filters the filters, on any number of fields.
+     * @return true when the Conference matches all the filters.
+     */
+    public static boolean matches(final Conference conference, final List<Filter> filters) {
+        for (Filter filter : filters) {
+            boolean matches;
+            switch (filter.getField()) {
+                case CITY:
+                    matches = matches(filter, conference.getCity());
+                    break;
+                case TOPIC:
+                    matches = matchesAny(filter, topicsOf(conference));
+                    break;
+                case MONTH:
+                    matches = matches(filter, conference.getMonth());
+                    break;
+                case MAX_ATTENDEES:
+                    matches = matches(filter, conference.getMaxAttendees());
+                    break;
+                case SEATS_AVAILABLE:
+                    matches = matches(filter, conference.getSeatsAvailable());
+                    break;
+                default:
+                    // Full-text filters are matched by ConferenceTextIndex.
+                    matches = true;
+                    break;
+            }
+            if (!matches) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String[] topicsOf(final Conference conference) {
+        List<String> topics = conference.getTopics();
+        return topics == null ? new String[0] : topics.toArray(new String[topics.size()]);
+    }
+
+    private static boolean matches(final Filter filter, final String value) {
+        return value != null && filter.getOperator().matches(value.compareTo(filter.getValue()));
+    }
+
+    private static boolean matches(final Filter filter, final int value) {
+        if (filter.getField().getFieldType() != FieldType.INTEGER) {
+            return false;
+        }
+        return filter.getOperator().matches(
+                Integer.compare(value, Integer.parseInt(filter.getValue())));
+    }
+
+    /**
+     * Like the datastore, a list property matches when any of its values matches.
+     */
+    private static boolean matchesAny(final Filter filter, final String[] values) {
+        for (String value : values) {
+            if (matches(filter, value)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
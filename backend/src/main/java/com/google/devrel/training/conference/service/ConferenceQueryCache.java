@@ -0,0 +1,239 @@
+/* Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.devrel.training.conference.service;
+
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.Hashing;
+import com.google.devrel.training.conference.form.ConferenceQueryForm;
+import com.google.devrel.training.conference.form.ConferenceQueryForm.Field;
+import com.google.devrel.training.conference.form.ConferenceQueryForm.Filter;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Caches pages of queryConferences results as lists of websafe Conference keys.
+ *
+ * Pages are held in memcache and in a small LRU cache in the instance, under a key made of a
+ * generation number and a hash of the canonical form of the query. Creating or updating a
+ * Conference bumps the generation, so that every cached page is dropped at once.
+ *
+ * The pages of the queries filtering on seatsAvailable also carry a seats generation, which
+ * is bumped when seats are booked or given back and when their count is written back to the
+ * Conference, so that only these pages are dropped then.
+ */
+public class ConferenceQueryCache {
+
+    /**
+     * A cached page of Conference keys.
+     */
+    public static class Page implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final List<String> websafeConferenceKeys;
+
+        private final String nextPageToken;
+
+        public Page(final List<String> websafeConferenceKeys, final String nextPageToken) {
+            this.websafeConferenceKeys = new ArrayList<>(websafeConferenceKeys);
+            this.nextPageToken = nextPageToken;
+        }
+
+        public List<String> getWebsafeConferenceKeys() {
+            return ImmutableList.copyOf(websafeConferenceKeys);
+        }
+
+        public String getNextPageToken() {
+            return nextPageToken;
+        }
+    }
+
+    private static final String MEMCACHE_GENERATION_KEY = "CONFERENCE_QUERY_GENERATION";
+
+    private static final String MEMCACHE_SEATS_GENERATION_KEY =
+            "CONFERENCE_QUERY_SEATS_GENERATION";
+
+    private static final String MEMCACHE_PAGE_PREFIX = "CONFERENCE_QUERY_";
+
+    private static final int PAGE_EXPIRATION_SECONDS = 10 * 60;
+
+    /**
+     * The number of pages cached in the instance.
+     */
+    private static final int L1_CAPACITY = 256;
+
+    private static final Map<String, Page> L1 = Collections.synchronizedMap(
+            new LinkedHashMap<String, Page>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Page> eldest) {
+                    return size() > L1_CAPACITY;
+                }
+            });
+
+    /**
+     * Returns the current generation of the cached pages.
+     * Read it before running the query whose page is put in the cache.
+     *
+     * @return the current generation.
+     */
+    public static long generation() {
+        return generation(MEMCACHE_GENERATION_KEY);
+    }
+
+    private static long generation(final String memcacheKey) {
+        MemcacheService memcacheService = MemcacheServiceFactory.getMemcacheService();
+        Object generation = memcacheService.get(memcacheKey);
+        if (generation == null) {
+            // After an eviction, start from a generation that the instances have not seen.
+            memcacheService.put(memcacheKey, System.currentTimeMillis(), null,
+                    MemcacheService.SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+            generation = memcacheService.get(memcacheKey);
+        }
+        return generation == null ? 0L : ((Number) generation).longValue();
+    }
+
+    /**
+     * Drops every cached page. Call it after the transaction creating or updating a Conference.
+     *
+     * @return the new generation.
+     */
+    public static long invalidate() {
+        MemcacheService memcacheService = MemcacheServiceFactory.getMemcacheService();
+        Long generation = memcacheService.increment(MEMCACHE_GENERATION_KEY, 1L,
+                System.currentTimeMillis());
+        return generation == null ? 0L : generation;
+    }
+
+    /**
+     * Drops the cached pages of the queries filtering on seatsAvailable. Call it after seats
+     * are booked or given back, and after their count is written back to the Conference.
+     */
+    public static void seatsChanged() {
+        MemcacheService memcacheService = MemcacheServiceFactory.getMemcacheService();
+        memcacheService.increment(MEMCACHE_SEATS_GENERATION_KEY, 1L, System.currentTimeMillis());
+    }
+
+    /**
+     * Returns the cached page for the given query.
+     *
+     * @param generation the current generation.
+     * @param conferenceQueryForm the query.
+     * @return the page, or null when it is not cached.
+     */
+    public static Page get(final long generation, final ConferenceQueryForm conferenceQueryForm) {
+        return get(getKey(generation, conferenceQueryForm));
+    }
+
+    /**
+     * Returns the cached page under the given key.
+     *
+     * @param key the key returned by getKey.
+     * @return the page, or null when it is not cached.
+     */
+    public static Page get(final String key) {
+        Page page = L1.get(key);
+        if (page == null) {
+            MemcacheService memcacheService = MemcacheServiceFactory.getMemcacheService();
+            page = (Page) memcacheService.get(key);
+            if (page != null) {
+                L1.put(key, page);
+            }
+        }
+        return page;
+    }
+
+    /**
+     * Caches the page for the given query.
+     *
+     * @param generation the generation read before the query was run.
+     * @param conferenceQueryForm the query.
+     * @param page the page.
+     */
+    public static void put(final long generation, final ConferenceQueryForm conferenceQueryForm,
+            final Page page) {
+        put(getKey(generation, conferenceQueryForm), page);
+    }
+
+    /**
+     * Caches the page under the given key.
+     *
+     * @param key the key returned by getKey before the query was run.
+     * @param page the page.
+     */
+    public static void put(final String key, final Page page) {
+        L1.put(key, page);
+        MemcacheService memcacheService = MemcacheServiceFactory.getMemcacheService();
+        memcacheService.put(key, page, Expiration.byDeltaSeconds(PAGE_EXPIRATION_SECONDS));
+    }
+
+    /**
+     * Returns the canonical form of the given query. The order of the filters doesn't change
+     * the result, so they are sorted. The query mode is part of it, since the cursors of the
+     * modes differ.
+     *
+     * @param conferenceQueryForm the query.
+     * @return the canonical form of the query.
+     */
+    static String canonicalize(final ConferenceQueryForm conferenceQueryForm) {
+        List<String> filters = new ArrayList<>();
+        for (Filter filter : conferenceQueryForm.getFilters()) {
+            filters.add(filter.getField() + " " + filter.getOperator() + " " + filter.getValue());
+        }
+        Collections.sort(filters);
+        StringBuilder stringBuilder = new StringBuilder();
+        for (String filter : filters) {
+            stringBuilder.append(filter).append("\n");
+        }
+        stringBuilder.append("keysOnly ").append(ConferenceQueryForm.isKeysOnly()).append("\n");
+        stringBuilder.append("limit ").append(conferenceQueryForm.getLimit()).append("\n");
+        if (conferenceQueryForm.getCursor() != null) {
+            stringBuilder.append("cursor ").append(conferenceQueryForm.getCursor()).append("\n");
+        }
+        return stringBuilder.toString();
+    }
+
+    /**
+     * Returns the key of the page for the given query, equal for the queries with the same
+     * result in the given generation. The key of a query filtering on seatsAvailable also
+     * holds the current seats generation.
+     *
+     * @param generation the current generation.
+     * @param conferenceQueryForm the query.
+     * @return the key.
+     */
+    public static String getKey(final long generation,
+            final ConferenceQueryForm conferenceQueryForm) {
+        String hash = Hashing.sha1()
+                .hashString(canonicalize(conferenceQueryForm), Charsets.UTF_8).toString();
+        String prefix = MEMCACHE_PAGE_PREFIX + generation + "_";
+        for (Filter filter : conferenceQueryForm.getFilters()) {
+            if (filter.getField() == Field.SEATS_AVAILABLE) {
+                prefix += generation(MEMCACHE_SEATS_GENERATION_KEY) + "_";
+                break;
+            }
+        }
+        return prefix + hash;
+    }
+}
@@ -0,0 +1,472 @@
+/* Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.devrel.training.conference.domain.Conference;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+/**
+ * An in-memory inverted index of the name, description and topics of the Conferences of this
+ * instance, ranking full-text matches with BM25.
+ *
+ * Like ConferenceIndex, the index is tagged with the generation of ConferenceQueryCache it
+ * was built at, and changes made on this instance are applied when they are the only change
+ * since. A stale index keeps serving while the thread started by ConferenceIndex rebuilds
+ * it, so results may lag behind the changes made on other instances. Only a cold index, which has
+ * nothing to serve, is built by the query.
+ */
+public class ConferenceTextIndex {
+
+    private static final Logger LOG = Logger.getLogger(ConferenceTextIndex.class.getName());
+
+    /**
+     * The prefix of the page tokens of the index, followed by the offset of the next page.
+     */
+    public static final String TOKEN_PREFIX = "search:";
+
+    private static final int LOAD_CHUNK_SIZE = 500;
+
+    /**
+     * BM25 term frequency saturation.
+     */
+    private static final double K1 = 1.2;
+
+    /**
+     * BM25 document length normalization.
+     */
+    private static final double B = 0.75;
+
+    /**
+     * The weights of the fields, a term in the name counts as much as three in the description.
+     */
+    private static final int NAME_WEIGHT = 3;
+
+    private static final int TOPIC_WEIGHT = 2;
+
+    private static final int DESCRIPTION_WEIGHT = 1;
+
+    /**
+     * The weighted term frequencies of a Conference.
+     */
+    private static class Document {
+        private final String websafeKey;
+        private final Map<String, Integer> termFrequencies = new HashMap<>();
+        private int length;
+
+        private Document(final Conference conference) {
+            this.websafeKey = conference.getWebsafeKey();
+            add(conference.getName(), NAME_WEIGHT);
+            add(conference.getDescription(), DESCRIPTION_WEIGHT);
+            List<String> topics = conference.getTopics();
+            if (topics != null) {
+                for (String topic : topics) {
+                    add(topic, TOPIC_WEIGHT);
+                }
+            }
+        }
+
+        private void add(final String text, final int weight) {
+            for (String term : tokenize(text)) {
+                Integer frequency = termFrequencies.get(term);
+                termFrequencies.put(term, (frequency == null ? 0 : frequency) + weight);
+                length += weight;
+            }
+        }
+    }
+
+    /**
+     * The documents containing a term, with the term frequency in each of them.
+     */
+    private static class Postings {
+        private final int[] documents;
+        private final int[] frequencies;
+
+        private Postings(final int[] documents, final int[] frequencies) {
+            this.documents = documents;
+            this.frequencies = frequencies;
+        }
+    }
+
+    /**
+     * An immutable state of the index.
+     */
+    private static class Snapshot {
+        private final long generation;
+        private final List<Document> documents;
+        private final String[] keys;
+        private final int[] lengths;
+        private final long totalLength;
+        private final double averageLength;
+        private final Map<String, Postings> postings;
+        private final Map<String, Integer> positions;
+
+        private Snapshot(final long generation, final List<Document> documents) {
+            this.generation = generation;
+            this.documents = documents;
+            int size = documents.size();
+            keys = new String[size];
+            lengths = new int[size];
+            postings = new HashMap<>();
+            positions = new HashMap<>();
+            long totalLength = 0;
+            Map<String, List<int[]>> lists = new HashMap<>();
+            for (int i = 0; i < size; i++) {
+                Document document = documents.get(i);
+                keys[i] = document.websafeKey;
+                lengths[i] = document.length;
+                totalLength += document.length;
+                positions.put(document.websafeKey, i);
+                for (Map.Entry<String, Integer> entry : document.termFrequencies.entrySet()) {
+                    List<int[]> list = lists.get(entry.getKey());
+                    if (list == null) {
+                        list = new ArrayList<>();
+                        lists.put(entry.getKey(), list);
+                    }
+                    list.add(new int[] {i, entry.getValue()});
+                }
+            }
+            this.totalLength = totalLength;
+            averageLength = size == 0 ? 0 : (double) totalLength / size;
+            for (Map.Entry<String, List<int[]>> entry : lists.entrySet()) {
+                List<int[]> list = entry.getValue();
+                int[] documentIds = new int[list.size()];
+                int[] frequencies = new int[list.size()];
+                for (int i = 0; i < list.size(); i++) {
+                    documentIds[i] = list.get(i)[0];
+                    frequencies[i] = list.get(i)[1];
+                }
+                postings.put(entry.getKey(), new Postings(documentIds, frequencies));
+            }
+        }
+
+        /**
+         * Copies the given snapshot with the given document added or replaced. Only the
+         * postings of the terms of the old and the new versions of the document are copied,
+         * the others are shared.
+         */
+        private Snapshot(final Snapshot previous, final long generation,
+                final Document document) {
+            this.generation = generation;
+            Integer position = previous.positions.get(document.websafeKey);
+            int index = position == null ? previous.keys.length : position;
+            int size = Math.max(previous.keys.length, index + 1);
+            documents = new ArrayList<>(previous.documents);
+            keys = Arrays.copyOf(previous.keys, size);
+            lengths = Arrays.copyOf(previous.lengths, size);
+            postings = new HashMap<>(previous.postings);
+            positions = new HashMap<>(previous.positions);
+            Set<String> terms = new HashSet<>(document.termFrequencies.keySet());
+            if (position == null) {
+                documents.add(document);
+                positions.put(document.websafeKey, index);
+                totalLength = previous.totalLength + document.length;
+            } else {
+                Document old = previous.documents.get(index);
+                documents.set(index, document);
+                terms.addAll(old.termFrequencies.keySet());
+                totalLength = previous.totalLength - old.length + document.length;
+            }
+            keys[index] = document.websafeKey;
+            lengths[index] = document.length;
+            averageLength = (double) totalLength / size;
+            for (String term : terms) {
+                Postings termPostings = previous.postings.get(term);
+                Integer frequency = document.termFrequencies.get(term);
+                int count = termPostings == null ? 0 : termPostings.documents.length;
+                int[] documentIds = new int[count + 1];
+                int[] frequencies = new int[count + 1];
+                int n = 0;
+                for (int i = 0; i < count; i++) {
+                    if (termPostings.documents[i] != index) {
+                        documentIds[n] = termPostings.documents[i];
+                        frequencies[n] = termPostings.frequencies[i];
+                        n++;
+                    }
+                }
+                if (frequency != null) {
+                    documentIds[n] = index;
+                    frequencies[n] = frequency;
+                    n++;
+                }
+                if (n == 0) {
+                    postings.remove(term);
+                } else {
+                    postings.put(term, new Postings(Arrays.copyOf(documentIds, n),
+                            Arrays.copyOf(frequencies, n)));
+                }
+            }
+        }
+
+        /**
+         * Returns the positions of the matching documents, best first.
+         */
+        private List<Integer> search(final Set<String> terms) {
+            final double[] scores = new double[keys.length];
+            List<Integer> matching = new ArrayList<>();
+            for (String term : terms) {
+                Postings termPostings = postings.get(term);
+                if (termPostings == null) {
+                    continue;
+                }
+                int documentFrequency = termPostings.documents.length;
+                double idf = Math.log(1 + (keys.length - documentFrequency + 0.5)
+                        / (documentFrequency + 0.5));
+                for (int i = 0; i < termPostings.documents.length; i++) {
+                    int document = termPostings.documents[i];
+                    int frequency = termPostings.frequencies[i];
+                    if (scores[document] == 0) {
+                        matching.add(document);
+                    }
+                    double norm = K1 * (1 - B + B * lengths[document] / averageLength);
+                    scores[document] += idf * frequency * (K1 + 1) / (frequency + norm);
+                }
+            }
+            Collections.sort(matching, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer document1, Integer document2) {
+                    int result = Double.compare(scores[document2], scores[document1]);
+                    return result != 0 ? result : keys[document1].compareTo(keys[document2]);
+                }
+            });
+            return matching;
+        }
+    }
+
+    private static volatile Snapshot snapshot;
+
+    private static final ReentrantLock REBUILD_LOCK = new ReentrantLock();
+
+    /**
+     * A page of the keys of the matching Conferences.
+     */
+    public static class Page {
+        private final List<String> websafeConferenceKeys;
+        private final String nextPageToken;
+
+        private Page(final List<String> websafeConferenceKeys, final String nextPageToken) {
+            this.websafeConferenceKeys = websafeConferenceKeys;
+            this.nextPageToken = nextPageToken;
+        }
+
+        public List<String> getWebsafeConferenceKeys() {
+            return websafeConferenceKeys;
+        }
+
+        public String getNextPageToken() {
+            return nextPageToken;
+        }
+    }
+
+    /**
+     * Narrows the matches of the text down with the other filters of a search.
+     */
+    public interface Matcher {
+        /**
+         * Returns the given keys of the Conferences that match, in any order.
+         *
+         * @param websafeConferenceKeys the keys of the Conferences matching the text.
+         * @return the keys of the Conferences that match the other filters too.
+         */
+        List<String> retain(List<String> websafeConferenceKeys);
+    }
+
+    /**
+     * Splits the given text into lower case terms of letters and digits.
+     *
+     * @param text the text, may be null.
+     * @return the terms, in order.
+     */
+    public static List<String> tokenize(final String text) {
+        List<String> terms = new ArrayList<>();
+        if (text == null) {
+            return terms;
+        }
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean letterOrDigit = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (letterOrDigit && start < 0) {
+                start = i;
+            } else if (!letterOrDigit && start >= 0) {
+                terms.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                start = -1;
+            }
+        }
+        return terms;
+    }
+
+    /**
+     * Returns a page of the keys of the Conferences matching any of the words of the given
+     * text, best first. A cold index is built first, a stale one serves while it is rebuilt.
+     *
+     * @param text the words to search for.
+     * @param generation the current generation of ConferenceQueryCache.
+     * @param pageToken the nextPageToken of the previous page, or null.
+     * @param limit the maximum number of keys in the page.
+     * @return the page.
+     * @throws IllegalArgumentException when the page token is not valid.
+     */
+    public static Page search(final String text, final long generation,
+            final String pageToken, final int limit) {
+        return search(text, generation, pageToken, limit, null);
+    }
+
+    /**
+     * Returns a page of the keys of the Conferences matching any of the words of the given
+     * text and the given matcher, best first. The matches are checked against the matcher a
+     * page at a time, until the page is full, so that pages are only short at the end.
+     *
+     * @param text the words to search for.
+     * @param generation the current generation of ConferenceQueryCache.
+     * @param pageToken the nextPageToken of the previous page, or null.
+     * @param limit the maximum number of keys in the page.
+     * @param matcher the other filters of the search, or null.
+     * @return the page.
+     * @throws IllegalArgumentException when the page token is not valid.
+     */
+    public static Page search(final String text, final long generation,
+            final String pageToken, final int limit, final Matcher matcher) {
+        int offset = 0;
+        if (pageToken != null) {
+            if (!pageToken.startsWith(TOKEN_PREFIX)) {
+                throw new IllegalArgumentException("Invalid cursor: " + pageToken);
+            }
+            try {
+                offset = Integer.parseInt(pageToken.substring(TOKEN_PREFIX.length()));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid cursor: " + pageToken, e);
+            }
+            if (offset < 0) {
+                throw new IllegalArgumentException("Invalid cursor: " + pageToken);
+            }
+        }
+        Snapshot current = current(generation);
+        List<Integer> matching = current.search(new LinkedHashSet<>(tokenize(text)));
+        List<String> websafeConferenceKeys = new ArrayList<>(limit);
+        int end = offset;
+        while (end < matching.size() && websafeConferenceKeys.size() < limit) {
+            List<String> candidates = new ArrayList<>(limit);
+            for (int i = end; i < Math.min(matching.size(), end + limit); i++) {
+                candidates.add(current.keys[matching.get(i)]);
+            }
+            Set<String> retained = matcher == null ? null
+                    : new HashSet<>(matcher.retain(candidates));
+            for (String candidate : candidates) {
+                end++;
+                if (retained == null || retained.contains(candidate)) {
+                    websafeConferenceKeys.add(candidate);
+                    if (websafeConferenceKeys.size() == limit) {
+                        break;
+                    }
+                }
+            }
+        }
+        String nextPageToken = end < matching.size() ? TOKEN_PREFIX + end : null;
+        return new Page(websafeConferenceKeys, nextPageToken);
+    }
+
+    private static Snapshot current(final long generation) {
+        Snapshot current = snapshot;
+        if (current == null) {
+            REBUILD_LOCK.lock();
+            try {
+                if (snapshot == null) {
+                    rebuild(generation);
+                }
+            } finally {
+                REBUILD_LOCK.unlock();
+            }
+        } else if (current.generation != generation) {
+            ConferenceIndex.scheduleRebuild();
+        }
+        return snapshot;
+    }
+
+    /**
+     * Rebuilds the index unless it is current or being rebuilt.
+     *
+     * @param generation the current generation of ConferenceQueryCache.
+     */
+    public static void rebuildIfStale(final long generation) {
+        if (!REBUILD_LOCK.tryLock()) {
+            return;
+        }
+        try {
+            Snapshot current = snapshot;
+            if (current == null || current.generation != generation) {
+                rebuild(generation);
+            }
+        } finally {
+            REBUILD_LOCK.unlock();
+        }
+    }
+
+    /**
+     * Loads every Conference into a new index.
+     *
+     * @param generation the generation of ConferenceQueryCache read before the load.
+     */
+    public static void rebuild(final long generation) {
+        List<Document> documents = new ArrayList<>();
+        QueryResultIterator<Conference> iterator = ofy().load().type(Conference.class)
+                .chunk(LOAD_CHUNK_SIZE).hybrid(false).iterator();
+        while (iterator.hasNext()) {
+            documents.add(new Document(iterator.next()));
+        }
+        snapshot = new Snapshot(generation, documents);
+        LOG.info("Indexed the text of " + documents.size() + " conferences at generation "
+                + generation);
+    }
+
+    /**
+     * Applies a Conference created or updated on this instance to the index. Call it with the
+     * generation returned by ConferenceQueryCache.invalidate() after the change.
+     *
+     * @param conference the Conference as saved.
+     * @param generation the generation of ConferenceQueryCache after the change.
+     */
+    public static synchronized void conferenceChanged(final Conference conference,
+            final long generation) {
+        Snapshot current = snapshot;
+        if (current == null || current.generation != generation - 1) {
+            return;
+        }
+        // Only the postings of the terms of the Conference change.
+        snapshot = new Snapshot(current, generation, new Document(conference));
+    }
+
+    /**
+     * Drops the index, mostly for tests.
+     */
+    public static void clear() {
+        snapshot = null;
+    }
+}
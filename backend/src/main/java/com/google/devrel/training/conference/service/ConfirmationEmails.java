@@ -0,0 +1,298 @@
+/* Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.api.taskqueue.Queue;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskAlreadyExistsException;
+import com.google.appengine.api.taskqueue.TaskHandle;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.appengine.api.utils.SystemProperty;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.internet.AddressException;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+/**
+ * Delivers the confirmation e-mails of new Conferences.
+ *
+ * The e-mails are pull tasks in the email-queue, added in the transaction creating the
+ * Conference. A drain task leases them in batches of one second's worth at RATE_PER_SECOND,
+ * sends them through one EmailTransport, and deletes the sent ones in one call. A message
+ * that fails is leased again after a backoff growing with its retry count, until it is
+ * dropped after MAX_RETRIES.
+ */
+public class ConfirmationEmails {
+
+    private static final Logger LOG = Logger.getLogger(ConfirmationEmails.class.getName());
+
+    public static final String QUEUE_NAME = "email-queue";
+
+    /**
+     * The rate the e-mails are sent at, the rate the email-queue used to push them at.
+     */
+    public static final int RATE_PER_SECOND = 30;
+
+    /**
+     * Leased tasks become available again after this, when a drain dies with them.
+     */
+    private static final int LEASE_SECONDS = 60;
+
+    private static final int MAX_RETRIES = 8;
+
+    private static final int MAX_BACKOFF_SECONDS = 30 * 60;
+
+    /**
+     * Drains are kicked at most once per interval, after the end of it.
+     */
+    private static final long KICK_INTERVAL_MILLIS = 1000;
+
+    /**
+     * A drain stops leasing well before the 10 minute deadline of a push task.
+     */
+    private static final long DRAIN_MILLIS = 8 * 60 * 1000;
+
+    private static final String MEMCACHE_LOCK_KEY = "EMAIL_DRAIN_LOCK";
+
+    private static volatile EmailTransport transport = new MailApiTransport();
+
+    /**
+     * What became of an e-mail, FAILED ones are retried.
+     */
+    private static enum Outcome {
+        SENT, FAILED, DROPPED
+    }
+
+    /**
+     * The outcome of a drain.
+     */
+    public static class Stats {
+        private int sent;
+        private int retried;
+        private int dropped;
+        private long elapsedMillis;
+        private boolean drained;
+
+        public int getSent() {
+            return sent;
+        }
+
+        public int getRetried() {
+            return retried;
+        }
+
+        public int getDropped() {
+            return dropped;
+        }
+
+        public long getElapsedMillis() {
+            return elapsedMillis;
+        }
+
+        /**
+         * Returns true when the queue was empty at the end of the drain.
+         */
+        public boolean isDrained() {
+            return drained;
+        }
+
+        @Override
+        public String toString() {
+            double perSecond = elapsedMillis == 0 ? sent : sent * 1000.0 / elapsedMillis;
+            return String.format("Sent %d e-mails in %d ms (%.1f/s), %d retried, %d dropped",
+                    sent, elapsedMillis, perSecond, retried, dropped);
+        }
+    }
+
+    /**
+     * Replaces the EmailTransport, for tests.
+     *
+     * @param emailTransport the transport, null for the Mail API.
+     */
+    public static void setTransport(final EmailTransport emailTransport) {
+        transport = emailTransport == null ? new MailApiTransport() : emailTransport;
+    }
+
+    /**
+     * Adds a confirmation e-mail to the email-queue, in the current transaction if there is
+     * one. Call kick() once the transaction committed.
+     *
+     * @param email the e-mail address of the organizer.
+     * @param conferenceInfo the description of the Conference.
+     */
+    public static void enqueue(final String email, final String conferenceInfo) {
+        QueueFactory.getQueue(QUEUE_NAME).add(ofy().getTransaction(),
+                TaskOptions.Builder.withMethod(TaskOptions.Method.PULL)
+                        .param("email", email)
+                        .param("conferenceInfo", conferenceInfo));
+    }
+
+    /**
+     * Makes sure a drain runs after the current interval, which sends the e-mails enqueued
+     * in it.
+     */
+    public static void kick() {
+        long bucket = System.currentTimeMillis() / KICK_INTERVAL_MILLIS;
+        try {
+            QueueFactory.getDefaultQueue().add(
+                    TaskOptions.Builder.withUrl("/tasks/send_confirmation_email")
+                            .taskName("send-confirmation-email-" + bucket)
+                            .etaMillis((bucket + 1) * KICK_INTERVAL_MILLIS));
+        } catch (TaskAlreadyExistsException e) {
+            // Another request of the same interval kicked it.
+        }
+    }
+
+    /**
+     * Sends the e-mails in the email-queue until it is empty, or for DRAIN_MILLIS. Only one
+     * drain runs at a time.
+     *
+     * @return the outcome, or null when another drain is running.
+     */
+    public static Stats drain() {
+        MemcacheService memcacheService = MemcacheServiceFactory.getMemcacheService();
+        if (!memcacheService.put(MEMCACHE_LOCK_KEY, Boolean.TRUE,
+                Expiration.byDeltaMillis((int) DRAIN_MILLIS + LEASE_SECONDS * 1000),
+                SetPolicy.ADD_ONLY_IF_NOT_PRESENT)) {
+            return null;
+        }
+        try {
+            return drain(System.currentTimeMillis() + DRAIN_MILLIS);
+        } finally {
+            memcacheService.delete(MEMCACHE_LOCK_KEY);
+        }
+    }
+
+    private static Stats drain(final long deadlineMillis) {
+        Queue queue = QueueFactory.getQueue(QUEUE_NAME);
+        EmailTransport emailTransport = transport;
+        Stats stats = new Stats();
+        long startMillis = System.currentTimeMillis();
+        while (System.currentTimeMillis() < deadlineMillis) {
+            long batchMillis = System.currentTimeMillis();
+            List<TaskHandle> tasks =
+                    queue.leaseTasks(LEASE_SECONDS, TimeUnit.SECONDS, RATE_PER_SECOND);
+            if (tasks.isEmpty()) {
+                stats.drained = true;
+                break;
+            }
+            List<TaskHandle> done = new ArrayList<>(tasks.size());
+            for (TaskHandle task : tasks) {
+                Outcome outcome = send(emailTransport, task);
+                if (outcome == Outcome.SENT) {
+                    stats.sent++;
+                    done.add(task);
+                } else if (outcome == Outcome.DROPPED || retryCount(task) >= MAX_RETRIES) {
+                    stats.dropped++;
+                    done.add(task);
+                } else {
+                    stats.retried++;
+                    queue.modifyTaskLease(task, backoffSeconds(retryCount(task)),
+                            TimeUnit.SECONDS);
+                }
+            }
+            if (!done.isEmpty()) {
+                queue.deleteTask(done);
+            }
+            if (tasks.size() == RATE_PER_SECOND) {
+                // The queue may hold more, keep to the rate.
+                sleepUntil(batchMillis + 1000);
+            }
+        }
+        stats.elapsedMillis = System.currentTimeMillis() - startMillis;
+        LOG.info(stats.toString());
+        return stats;
+    }
+
+    /**
+     * Sends the e-mail of the given task.
+     */
+    private static Outcome send(final EmailTransport emailTransport, final TaskHandle task) {
+        Map<String, String> params = new HashMap<>();
+        try {
+            for (Map.Entry<String, String> param : task.extractParams()) {
+                params.put(param.getKey(), param.getValue());
+            }
+        } catch (UnsupportedEncodingException | UnsupportedOperationException e) {
+            LOG.log(Level.SEVERE, "Dropping the malformed e-mail task " + task.getName(), e);
+            return Outcome.DROPPED;
+        }
+        String email = params.get("email");
+        try {
+            emailTransport.send(newMessage(emailTransport, email, params.get("conferenceInfo")));
+            return Outcome.SENT;
+        } catch (AddressException e) {
+            LOG.log(Level.WARNING, String.format("Dropping an e-mail to %s", email), e);
+            return Outcome.DROPPED;
+        } catch (MessagingException | UnsupportedEncodingException e) {
+            LOG.log(Level.WARNING, String.format("Failed to send an e-mail to %s", email), e);
+            return Outcome.FAILED;
+        }
+    }
+
+    private static Message newMessage(final EmailTransport emailTransport, final String email,
+            final String conferenceInfo) throws MessagingException, UnsupportedEncodingException {
+        Message message = new MimeMessage(emailTransport.getSession());
+        InternetAddress from = new InternetAddress(
+                String.format("noreply@%s.appspotmail.com",
+                        SystemProperty.applicationId.get()), "Conference Central");
+        message.setFrom(from);
+        InternetAddress to = new InternetAddress(email, "");
+        to.validate();
+        message.addRecipient(Message.RecipientType.TO, to);
+        message.setSubject("You created a new Conference!");
+        message.setText("Hi, you have created a following conference.\n" + conferenceInfo);
+        return message;
+    }
+
+    private static int retryCount(final TaskHandle task) {
+        Integer retryCount = task.getRetryCount();
+        return retryCount == null ? 0 : retryCount;
+    }
+
+    private static long backoffSeconds(final int retryCount) {
+        return Math.min(MAX_BACKOFF_SECONDS, 1L << Math.min(retryCount + 2, 30));
+    }
+
+    private static void sleepUntil(final long millis) {
+        long delay = millis - System.currentTimeMillis();
+        if (delay <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(delay);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,43 @@
+/* Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.devrel.training.conference.service;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+
+/**
+ * Delivers the e-mails built by ConfirmationEmails. The default goes through the Mail API,
+ * tests plug in their own.
+ */
+public interface EmailTransport {
+
+    /**
+     * Returns the Session to build the messages with, the same one for every message.
+     *
+     * @return the Session.
+     */
+    Session getSession();
+
+    /**
+     * Sends the given message.
+     *
+     * @param message the message, built with the Session of this transport.
+     * @throws MessagingException when the message can't be sent, an AddressException when
+     *     it never will be.
+     */
+    void send(Message message) throws MessagingException;
+}
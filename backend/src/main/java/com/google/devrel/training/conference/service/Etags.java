@@ -0,0 +1,74 @@
+/* Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.devrel.training.conference.service;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.devrel.training.conference.domain.Conference;
+
+import java.util.Collection;
+
+/**
+ * Entity tags for conditional reads.
+ */
+public class Etags {
+
+    /**
+     * Returns a strong entity tag of a list of Conferences, which changes when a Conference
+     * changes, or when the members, their order or the next page change.
+     *
+     * @param conferences the Conferences, in the order they are returned.
+     * @param nextPageToken the token of the next page, null when there is none.
+     * @return the entity tag.
+     */
+    public static String combine(final Collection<Conference> conferences,
+            final String nextPageToken) {
+        Hasher hasher = Hashing.sha1().newHasher();
+        for (Conference conference : conferences) {
+            hasher.putString(conference.getWebsafeKey(), Charsets.UTF_8)
+                    .putString(conference.getEtag(), Charsets.UTF_8);
+        }
+        if (nextPageToken != null) {
+            hasher.putString(nextPageToken, Charsets.UTF_8);
+        }
+        return "\"" + hasher.hash().toString().substring(0, 16) + "\"";
+    }
+
+    /**
+     * Returns true when the given If-None-Match value lists the given etag, or is "*".
+     *
+     * @param ifNoneMatch the If-None-Match value sent by the client, may be null.
+     * @param etag the current entity tag.
+     * @return true when the client has the current version.
+     */
+    public static boolean matches(final String ifNoneMatch, final String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            String tag = candidate.trim();
+            // A weak comparison is enough for a read.
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.equals("*") || tag.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
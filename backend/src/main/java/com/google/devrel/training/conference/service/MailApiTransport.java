@@ -0,0 +1,45 @@
+/* Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.devrel.training.conference.service;
+
+import java.util.Properties;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Transport;
+
+/**
+ * Sends e-mails through the Mail API, which JavaMail is bound to on App Engine. The
+ * development server logs the messages instead of sending them.
+ */
+public class MailApiTransport implements EmailTransport {
+
+    /**
+     * The Session has no state worth a new instance per message.
+     */
+    private static final Session SESSION = Session.getDefaultInstance(new Properties(), null);
+
+    @Override
+    public Session getSession() {
+        return SESSION;
+    }
+
+    @Override
+    public void send(final Message message) throws MessagingException {
+        Transport.send(message);
+    }
+}
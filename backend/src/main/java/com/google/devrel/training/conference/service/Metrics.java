@@ -0,0 +1,489 @@
+/* Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.devrel.training.conference.service;
+
+import com.google.apphosting.api.ApiProxy;
+
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Per endpoint metrics of the requests served by this instance: latency, status codes,
+ * datastore calls, memcache hits and misses, and transaction retries. Per entity group
+ * metrics of the transactions run by Transactions: attempts, conflicts by cause, time, the
+ * transactions given up, and the waits for their turn in the instance. Per kind of call
+ * coalesced by SingleFlight: the calls run and the calls that joined them.
+ *
+ * MetricsFilter starts the counts of a request and records them when it is done. In between,
+ * MetricsDelegate counts the API calls made for the request. The metrics are written in the
+ * Prometheus text format, as counters since the start of the instance. Each instance has its
+ * own, the hit ratio over a window is rate(hits) / (rate(hits) + rate(misses)).
+ */
+public class Metrics {
+
+    private static final String ATTRIBUTE = Metrics.class.getName() + ".counts";
+
+    /**
+     * The upper bounds of the latency histogram buckets.
+     */
+    private static final double[] BUCKET_SECONDS =
+            {0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10};
+
+    private static final long[] BUCKET_NANOS = new long[BUCKET_SECONDS.length];
+
+    static {
+        for (int i = 0; i < BUCKET_SECONDS.length; i++) {
+            BUCKET_NANOS[i] = (long) (BUCKET_SECONDS[i] * TimeUnit.SECONDS.toNanos(1));
+        }
+    }
+
+    private static final ConcurrentMap<String, EndpointStats> ENDPOINTS =
+            new ConcurrentHashMap<>();
+
+    private static final ConcurrentMap<String, TransactionStats> TRANSACTIONS =
+            new ConcurrentHashMap<>();
+
+    /**
+     * The calls of each SingleFlight, the ones run and the ones that joined them.
+     */
+    private static final ConcurrentMap<String, AtomicLong> FLIGHTS_RUN =
+            new ConcurrentHashMap<>();
+
+    private static final ConcurrentMap<String, AtomicLong> FLIGHTS_JOINED =
+            new ConcurrentHashMap<>();
+
+    /**
+     * The API calls made for one request.
+     */
+    public static class RequestCounts {
+        private final Map<String, Integer> datastoreCalls = new HashMap<>();
+        private int memcacheHits;
+        private int memcacheMisses;
+        private int transactionRetries;
+
+        synchronized void datastoreCall(final String method) {
+            Integer calls = datastoreCalls.get(method);
+            datastoreCalls.put(method, calls == null ? 1 : calls + 1);
+        }
+
+        synchronized void memcacheGet(final int hits, final int misses) {
+            memcacheHits += hits;
+            memcacheMisses += misses;
+        }
+
+        synchronized void transactionRetry() {
+            transactionRetries++;
+        }
+
+        public synchronized int getDatastoreCalls(final String method) {
+            Integer calls = datastoreCalls.get(method);
+            return calls == null ? 0 : calls;
+        }
+
+        public synchronized int getMemcacheHits() {
+            return memcacheHits;
+        }
+
+        public synchronized int getMemcacheMisses() {
+            return memcacheMisses;
+        }
+
+        public synchronized int getTransactionRetries() {
+            return transactionRetries;
+        }
+    }
+
+    /**
+     * The totals of one endpoint.
+     */
+    private static class EndpointStats {
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_NANOS.length);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sumNanos = new AtomicLong();
+        private final ConcurrentMap<Integer, AtomicLong> statuses = new ConcurrentHashMap<>();
+        private final ConcurrentMap<String, AtomicLong> datastoreCalls =
+                new ConcurrentHashMap<>();
+        private final AtomicLong memcacheHits = new AtomicLong();
+        private final AtomicLong memcacheMisses = new AtomicLong();
+        private final AtomicLong transactionRetries = new AtomicLong();
+
+        private void add(final int status, final long elapsedNanos, final RequestCounts counts) {
+            for (int i = 0; i < BUCKET_NANOS.length; i++) {
+                if (elapsedNanos <= BUCKET_NANOS[i]) {
+                    buckets.incrementAndGet(i);
+                    break;
+                }
+            }
+            count.incrementAndGet();
+            sumNanos.addAndGet(elapsedNanos);
+            increment(statuses, status, 1);
+            synchronized (counts) {
+                for (Map.Entry<String, Integer> calls : counts.datastoreCalls.entrySet()) {
+                    increment(datastoreCalls, calls.getKey(), calls.getValue());
+                }
+                memcacheHits.addAndGet(counts.memcacheHits);
+                memcacheMisses.addAndGet(counts.memcacheMisses);
+                transactionRetries.addAndGet(counts.transactionRetries);
+            }
+        }
+    }
+
+    /**
+     * The totals of the transactions on one kind of entity group.
+     */
+    private static class TransactionStats {
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong attempts = new AtomicLong();
+        private final AtomicLong gaveUp = new AtomicLong();
+        private final AtomicLong sumNanos = new AtomicLong();
+        private final ConcurrentMap<String, AtomicLong> conflicts = new ConcurrentHashMap<>();
+        private final AtomicLong lockWaits = new AtomicLong();
+        private final AtomicLong lockWaitNanos = new AtomicLong();
+        private final AtomicLong lockTimeouts = new AtomicLong();
+    }
+
+    /**
+     * Starts counting the API calls of the current request.
+     *
+     * @return the counts, to pass to record() at the end of the request.
+     */
+    public static RequestCounts start() {
+        RequestCounts counts = new RequestCounts();
+        ApiProxy.Environment environment = ApiProxy.getCurrentEnvironment();
+        if (environment != null) {
+            environment.getAttributes().put(ATTRIBUTE, counts);
+        }
+        return counts;
+    }
+
+    /**
+     * Returns the counts of the request of the given environment.
+     *
+     * @return the counts, or null when the request isn't counted.
+     */
+    static RequestCounts countsOf(final ApiProxy.Environment environment) {
+        if (environment == null) {
+            return null;
+        }
+        Object counts = environment.getAttributes().get(ATTRIBUTE);
+        return counts instanceof RequestCounts ? (RequestCounts) counts : null;
+    }
+
+    /**
+     * Records a request served by the given endpoint, and stops counting its API calls.
+     *
+     * @param endpoint the name of the endpoint.
+     * @param status the HTTP status of the response.
+     * @param elapsedNanos the time it took.
+     * @param counts the counts returned by start().
+     */
+    public static void record(final String endpoint, final int status, final long elapsedNanos,
+            final RequestCounts counts) {
+        ApiProxy.Environment environment = ApiProxy.getCurrentEnvironment();
+        if (environment != null) {
+            environment.getAttributes().remove(ATTRIBUTE);
+        }
+        EndpointStats stats = ENDPOINTS.get(endpoint);
+        if (stats == null) {
+            ENDPOINTS.putIfAbsent(endpoint, new EndpointStats());
+            stats = ENDPOINTS.get(endpoint);
+        }
+        stats.add(status, elapsedNanos, counts);
+    }
+
+    /**
+     * Records a transaction run by Transactions, with its retries.
+     *
+     * @param group the kind of the entity group it contended on.
+     * @param attempts the number of times it ran.
+     * @param elapsedNanos the time it took, with the backoffs.
+     * @param gaveUp true when it was given up.
+     */
+    static void recordTransaction(final String group, final int attempts,
+            final long elapsedNanos, final boolean gaveUp) {
+        TransactionStats stats = transactionStats(group);
+        stats.count.incrementAndGet();
+        stats.attempts.addAndGet(attempts);
+        stats.sumNanos.addAndGet(elapsedNanos);
+        if (gaveUp) {
+            stats.gaveUp.incrementAndGet();
+        }
+    }
+
+    /**
+     * Records an attempt of a transaction that lost to a concurrent one.
+     *
+     * @param group the kind of the entity group it contended on.
+     * @param cause why it lost.
+     */
+    static void recordTransactionConflict(final String group, final String cause) {
+        increment(transactionStats(group).conflicts, cause, 1);
+    }
+
+    /**
+     * Records a wait of a transaction for its turn in the instance.
+     *
+     * @param group the kind of the entity group it contends on.
+     * @param waitedNanos the time it waited.
+     * @param locked false when it gave up waiting.
+     */
+    static void recordLockWait(final String group, final long waitedNanos,
+            final boolean locked) {
+        TransactionStats stats = transactionStats(group);
+        stats.lockWaits.incrementAndGet();
+        stats.lockWaitNanos.addAndGet(waitedNanos);
+        if (!locked) {
+            stats.lockTimeouts.incrementAndGet();
+        }
+    }
+
+    /**
+     * Records a call of a SingleFlight.
+     *
+     * @param flight the name of the SingleFlight.
+     * @param run true when the call ran, false when it joined a running one.
+     */
+    static void recordFlight(final String flight, final boolean run) {
+        increment(run ? FLIGHTS_RUN : FLIGHTS_JOINED, flight, 1);
+    }
+
+    private static TransactionStats transactionStats(final String group) {
+        TransactionStats stats = TRANSACTIONS.get(group);
+        if (stats == null) {
+            TRANSACTIONS.putIfAbsent(group, new TransactionStats());
+            stats = TRANSACTIONS.get(group);
+        }
+        return stats;
+    }
+
+    /**
+     * Writes the metrics in the Prometheus text format, version 0.0.4.
+     *
+     * @param out the writer.
+     */
+    public static void write(final PrintWriter out) {
+        SortedMap<String, EndpointStats> endpoints = new TreeMap<>(ENDPOINTS);
+
+        header(out, "conference_request_duration_seconds", "histogram",
+                "The latency of the requests.");
+        for (Map.Entry<String, EndpointStats> endpoint : endpoints.entrySet()) {
+            EndpointStats stats = endpoint.getValue();
+            String name = "conference_request_duration_seconds";
+            String labels = "endpoint=\"" + escape(endpoint.getKey()) + "\"";
+            long count = stats.count.get();
+            long cumulative = 0;
+            for (int i = 0; i < BUCKET_SECONDS.length; i++) {
+                cumulative += stats.buckets.get(i);
+                line(out, name + "_bucket{" + labels + ",le=\"" + BUCKET_SECONDS[i] + "\"} "
+                        + cumulative);
+            }
+            line(out, name + "_bucket{" + labels + ",le=\"+Inf\"} " + count);
+            line(out, name + "_sum{" + labels + "} " + stats.sumNanos.get() / 1e9);
+            line(out, name + "_count{" + labels + "} " + count);
+        }
+
+        header(out, "conference_requests_total", "counter",
+                "The requests, by HTTP status.");
+        for (Map.Entry<String, EndpointStats> endpoint : endpoints.entrySet()) {
+            for (Map.Entry<Integer, AtomicLong> status
+                    : new TreeMap<>(endpoint.getValue().statuses).entrySet()) {
+                line(out, "conference_requests_total{endpoint=\""
+                        + escape(endpoint.getKey()) + "\",status=\"" + status.getKey() + "\"} "
+                        + status.getValue().get());
+            }
+        }
+
+        header(out, "conference_datastore_calls_total", "counter",
+                "The datastore calls, by method: Get, Put, RunQuery, Next, Commit...");
+        for (Map.Entry<String, EndpointStats> endpoint : endpoints.entrySet()) {
+            for (Map.Entry<String, AtomicLong> calls
+                    : new TreeMap<>(endpoint.getValue().datastoreCalls).entrySet()) {
+                line(out, "conference_datastore_calls_total{endpoint=\""
+                        + escape(endpoint.getKey()) + "\",method=\"" + escape(calls.getKey())
+                        + "\"} " + calls.getValue().get());
+            }
+        }
+
+        header(out, "conference_memcache_gets_total", "counter",
+                "The keys looked up in memcache, by whether it had an item for them.");
+        for (Map.Entry<String, EndpointStats> endpoint : endpoints.entrySet()) {
+            String labels = "endpoint=\"" + escape(endpoint.getKey()) + "\"";
+            line(out, "conference_memcache_gets_total{" + labels + ",result=\"hit\"} "
+                    + endpoint.getValue().memcacheHits.get());
+            line(out, "conference_memcache_gets_total{" + labels + ",result=\"miss\"} "
+                    + endpoint.getValue().memcacheMisses.get());
+        }
+
+        header(out, "conference_memcache_hit_ratio", "gauge",
+                "The share of the keys found in memcache, since the start of the instance.");
+        for (Map.Entry<String, EndpointStats> endpoint : endpoints.entrySet()) {
+            long hits = endpoint.getValue().memcacheHits.get();
+            long total = hits + endpoint.getValue().memcacheMisses.get();
+            if (total > 0) {
+                line(out, "conference_memcache_hit_ratio{endpoint=\""
+                        + escape(endpoint.getKey()) + "\"} " + (double) hits / total);
+            }
+        }
+
+        header(out, "conference_transaction_retries_total", "counter",
+                "The transactions retried after a commit lost to a concurrent one.");
+        for (Map.Entry<String, EndpointStats> endpoint : endpoints.entrySet()) {
+            line(out, "conference_transaction_retries_total{endpoint=\""
+                    + escape(endpoint.getKey()) + "\"} "
+                    + endpoint.getValue().transactionRetries.get());
+        }
+
+        writeTransactions(out, new TreeMap<>(TRANSACTIONS));
+        writeFlights(out);
+    }
+
+    private static void writeFlights(final PrintWriter out) {
+        SortedMap<String, AtomicLong> run = new TreeMap<>(FLIGHTS_RUN);
+        header(out, "conference_single_flight_calls_total", "counter",
+                "The calls coalesced by name, the ones run and the ones that joined them.");
+        for (Map.Entry<String, AtomicLong> flight : run.entrySet()) {
+            String labels = "{flight=\"" + escape(flight.getKey()) + "\",result=";
+            line(out, "conference_single_flight_calls_total" + labels + "\"run\"} "
+                    + flight.getValue().get());
+            line(out, "conference_single_flight_calls_total" + labels + "\"joined\"} "
+                    + joined(flight.getKey()));
+        }
+
+        header(out, "conference_single_flight_coalescing_ratio", "gauge",
+                "The share of the calls that joined a running one, since the start of the "
+                + "instance.");
+        for (Map.Entry<String, AtomicLong> flight : run.entrySet()) {
+            long joined = joined(flight.getKey());
+            long total = joined + flight.getValue().get();
+            if (total > 0) {
+                line(out, "conference_single_flight_coalescing_ratio{flight=\""
+                        + escape(flight.getKey()) + "\"} " + (double) joined / total);
+            }
+        }
+    }
+
+    private static long joined(final String flight) {
+        AtomicLong joined = FLIGHTS_JOINED.get(flight);
+        return joined == null ? 0 : joined.get();
+    }
+
+    private static void writeTransactions(final PrintWriter out,
+            final SortedMap<String, TransactionStats> groups) {
+        header(out, "conference_transaction_attempts_total", "counter",
+                "The attempts of the transactions, retries included.");
+        for (Map.Entry<String, TransactionStats> group : groups.entrySet()) {
+            line(out, "conference_transaction_attempts_total{group=\""
+                    + escape(group.getKey()) + "\"} " + group.getValue().attempts.get());
+        }
+
+        header(out, "conference_transaction_conflicts_total", "counter",
+                "The attempts that lost to a concurrent transaction, by cause.");
+        for (Map.Entry<String, TransactionStats> group : groups.entrySet()) {
+            for (Map.Entry<String, AtomicLong> conflicts
+                    : new TreeMap<>(group.getValue().conflicts).entrySet()) {
+                line(out, "conference_transaction_conflicts_total{group=\""
+                        + escape(group.getKey()) + "\",cause=\"" + escape(conflicts.getKey())
+                        + "\"} " + conflicts.getValue().get());
+            }
+        }
+
+        header(out, "conference_transaction_give_ups_total", "counter",
+                "The transactions given up with a 503 once their budget was gone.");
+        for (Map.Entry<String, TransactionStats> group : groups.entrySet()) {
+            line(out, "conference_transaction_give_ups_total{group=\""
+                    + escape(group.getKey()) + "\"} " + group.getValue().gaveUp.get());
+        }
+
+        header(out, "conference_transaction_duration_seconds", "summary",
+                "The time of the transactions, with their retries and backoffs.");
+        for (Map.Entry<String, TransactionStats> group : groups.entrySet()) {
+            String labels = "{group=\"" + escape(group.getKey()) + "\"} ";
+            line(out, "conference_transaction_duration_seconds_sum" + labels
+                    + group.getValue().sumNanos.get() / 1e9);
+            line(out, "conference_transaction_duration_seconds_count" + labels
+                    + group.getValue().count.get());
+        }
+
+        header(out, "conference_transaction_lock_wait_seconds", "summary",
+                "The time the transactions waited for their turn in the instance.");
+        for (Map.Entry<String, TransactionStats> group : groups.entrySet()) {
+            if (group.getValue().lockWaits.get() == 0) {
+                continue;
+            }
+            String labels = "{group=\"" + escape(group.getKey()) + "\"} ";
+            line(out, "conference_transaction_lock_wait_seconds_sum" + labels
+                    + group.getValue().lockWaitNanos.get() / 1e9);
+            line(out, "conference_transaction_lock_wait_seconds_count" + labels
+                    + group.getValue().lockWaits.get());
+        }
+
+        header(out, "conference_transaction_lock_timeouts_total", "counter",
+                "The transactions given up with a 503 while waiting for their turn.");
+        for (Map.Entry<String, TransactionStats> group : groups.entrySet()) {
+            if (group.getValue().lockWaits.get() == 0) {
+                continue;
+            }
+            line(out, "conference_transaction_lock_timeouts_total{group=\""
+                    + escape(group.getKey()) + "\"} " + group.getValue().lockTimeouts.get());
+        }
+    }
+
+    /**
+     * Drops the metrics of the instance, for tests.
+     */
+    public static void clear() {
+        ENDPOINTS.clear();
+        TRANSACTIONS.clear();
+        FLIGHTS_RUN.clear();
+        FLIGHTS_JOINED.clear();
+    }
+
+    private static void header(final PrintWriter out, final String name, final String type,
+            final String help) {
+        line(out, "# HELP " + name + " " + help);
+        line(out, "# TYPE " + name + " " + type);
+    }
+
+    /**
+     * Ends the line with a line feed whatever the platform, as the format requires.
+     */
+    private static void line(final PrintWriter out, final String text) {
+        out.print(text);
+        out.print('\n');
+    }
+
+    private static String escape(final String labelValue) {
+        return labelValue.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static <K> void increment(final ConcurrentMap<K, AtomicLong> counters, final K key,
+            final long delta) {
+        AtomicLong counter = counters.get(key);
+        if (counter == null) {
+            counters.putIfAbsent(key, new AtomicLong());
+            counter = counters.get(key);
+        }
+        counter.addAndGet(delta);
+    }
+}
@@ -0,0 +1,198 @@
+/* Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.devrel.training.conference.service;
+
+import com.google.appengine.api.memcache.MemcacheServicePb.MemcacheGetRequest;
+import com.google.appengine.api.memcache.MemcacheServicePb.MemcacheGetResponse;
+import com.google.apphosting.api.ApiProxy;
+import com.google.common.util.concurrent.ForwardingFuture;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Counts the API calls of the requests counted by Metrics, and passes them on to the
+ * delegate it wraps. Like Appstats, it is installed in front of the delegate of the runtime.
+ */
+public class MetricsDelegate implements ApiProxy.Delegate<ApiProxy.Environment> {
+
+    private static final String DATASTORE = "datastore_v3";
+
+    private static final String MEMCACHE = "memcache";
+
+    /**
+     * The datastore_v3 error of a commit that lost to a concurrent transaction, after which
+     * Objectify runs the transaction again.
+     */
+    private static final int CONCURRENT_TRANSACTION = 2;
+
+    private final ApiProxy.Delegate<ApiProxy.Environment> delegate;
+
+    private MetricsDelegate(final ApiProxy.Delegate<ApiProxy.Environment> delegate) {
+        this.delegate = delegate;
+    }
+
+    /**
+     * Wraps the current delegate, unless it is already wrapped.
+     */
+    @SuppressWarnings("unchecked")
+    public static synchronized void install() {
+        ApiProxy.Delegate<ApiProxy.Environment> current = ApiProxy.getDelegate();
+        if (!(current instanceof MetricsDelegate)) {
+            ApiProxy.setDelegate(new MetricsDelegate(current));
+        }
+    }
+
+    /**
+     * Puts back the delegate wrapped by install().
+     */
+    public static synchronized void uninstall() {
+        ApiProxy.Delegate<?> current = ApiProxy.getDelegate();
+        if (current instanceof MetricsDelegate) {
+            ApiProxy.setDelegate(((MetricsDelegate) current).delegate);
+        }
+    }
+
+    @Override
+    public byte[] makeSyncCall(final ApiProxy.Environment environment, final String packageName,
+            final String methodName, final byte[] request) throws ApiProxy.ApiProxyException {
+        Metrics.RequestCounts counts = Metrics.countsOf(environment);
+        if (counts == null) {
+            return delegate.makeSyncCall(environment, packageName, methodName, request);
+        }
+        called(counts, packageName, methodName);
+        try {
+            byte[] response = delegate.makeSyncCall(environment, packageName, methodName,
+                    request);
+            returned(counts, packageName, methodName, request, response);
+            return response;
+        } catch (ApiProxy.ApplicationException e) {
+            failed(counts, packageName, methodName, e);
+            throw e;
+        }
+    }
+
+    @Override
+    public Future<byte[]> makeAsyncCall(final ApiProxy.Environment environment,
+            final String packageName, final String methodName, final byte[] request,
+            final ApiProxy.ApiConfig apiConfig) {
+        final Metrics.RequestCounts counts = Metrics.countsOf(environment);
+        Future<byte[]> future =
+                delegate.makeAsyncCall(environment, packageName, methodName, request, apiConfig);
+        if (counts == null) {
+            return future;
+        }
+        called(counts, packageName, methodName);
+        if (!isObserved(packageName, methodName)) {
+            return future;
+        }
+        return new ForwardingFuture.SimpleForwardingFuture<byte[]>(future) {
+            private boolean done;
+
+            @Override
+            public byte[] get() throws InterruptedException, ExecutionException {
+                try {
+                    return observe(super.get());
+                } catch (ExecutionException e) {
+                    throw observe(e);
+                }
+            }
+
+            @Override
+            public byte[] get(final long timeout, final TimeUnit unit)
+                    throws InterruptedException, ExecutionException, TimeoutException {
+                try {
+                    return observe(super.get(timeout, unit));
+                } catch (ExecutionException e) {
+                    throw observe(e);
+                }
+            }
+
+            private synchronized byte[] observe(final byte[] response) {
+                if (!done) {
+                    done = true;
+                    returned(counts, packageName, methodName, request, response);
+                }
+                return response;
+            }
+
+            private synchronized ExecutionException observe(final ExecutionException e) {
+                if (!done && e.getCause() instanceof ApiProxy.ApplicationException) {
+                    done = true;
+                    failed(counts, packageName, methodName,
+                            (ApiProxy.ApplicationException) e.getCause());
+                }
+                return e;
+            }
+        };
+    }
+
+    @Override
+    public void log(final ApiProxy.Environment environment, final ApiProxy.LogRecord record) {
+        delegate.log(environment, record);
+    }
+
+    @Override
+    public void flushLogs(final ApiProxy.Environment environment) {
+        delegate.flushLogs(environment);
+    }
+
+    @Override
+    public List<Thread> getRequestThreads(final ApiProxy.Environment environment) {
+        return delegate.getRequestThreads(environment);
+    }
+
+    /**
+     * Returns true for the calls counted from their outcome.
+     */
+    private static boolean isObserved(final String packageName, final String methodName) {
+        return packageName.equals(MEMCACHE) && methodName.equals("Get")
+                || packageName.equals(DATASTORE) && methodName.equals("Commit");
+    }
+
+    private static void called(final Metrics.RequestCounts counts, final String packageName,
+            final String methodName) {
+        if (packageName.equals(DATASTORE)) {
+            counts.datastoreCall(methodName);
+        }
+    }
+
+    private static void returned(final Metrics.RequestCounts counts, final String packageName,
+            final String methodName, final byte[] request, final byte[] response) {
+        if (!packageName.equals(MEMCACHE) || !methodName.equals("Get")) {
+            return;
+        }
+        try {
+            int keys = MemcacheGetRequest.parseFrom(request).getKeyCount();
+            int hits = MemcacheGetResponse.parseFrom(response).getItemCount();
+            counts.memcacheGet(hits, keys - hits);
+        } catch (IOException e) {
+            // Not worth failing the call over, the lookup goes uncounted.
+        }
+    }
+
+    private static void failed(final Metrics.RequestCounts counts, final String packageName,
+            final String methodName, final ApiProxy.ApplicationException e) {
+        if (packageName.equals(DATASTORE) && methodName.equals("Commit")
+                && e.getApplicationError() == CONCURRENT_TRANSACTION) {
+            counts.transactionRetry();
+        }
+    }
+}
@@ -0,0 +1,266 @@
+/* Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheService.IdentifiableValue;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.common.base.Joiner;
+import com.google.devrel.training.conference.Constants;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.domain.Profile;
+import com.googlecode.objectify.Key;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Tracks the Conferences that are nearly sold out, and the announcement listing them.
+ *
+ * The set is kept in memcache as a map from "organizerUserId:conferenceId" to the name of
+ * the Conference, and is updated with compare-and-set by the paths changing the seats. The
+ * announcement is only rewritten when the set changes.
+ *
+ * The seat counts of concurrent changes may arrive out of order, leaving a Conference wrongly
+ * in or out of the set. The cron reconciles the set on each run: the Conferences whose
+ * seatsAvailable snapshot is nearly sold out, and those in the set, are checked against their
+ * current seat counts. It also rebuilds the set when memcache evicted it.
+ */
+public class NearlySoldOut {
+
+    private static final Logger LOG = Logger.getLogger(NearlySoldOut.class.getName());
+
+    /**
+     * A Conference with fewer seats available than this, but at least one, is nearly sold out.
+     */
+    public static final int THRESHOLD = 5;
+
+    private static final String MEMCACHE_KEY = "NEARLY_SOLD_OUT";
+
+    private static final int MAX_CAS_ATTEMPTS = 10;
+
+    /**
+     * Returns true when the given number of seats available is nearly sold out.
+     *
+     * @param seatsAvailable the number of seats available.
+     * @return true when nearly sold out.
+     */
+    public static boolean isNearlySoldOut(final int seatsAvailable) {
+        return seatsAvailable > 0 && seatsAvailable < THRESHOLD;
+    }
+
+    /**
+     * Updates the set after a committed change of the seats of the given Conference.
+     *
+     * @param conferenceKey the key of the Conference.
+     * @param seatsAvailable the seats available after the change, null when unknown.
+     */
+    public static void seatsChanged(final Key<Conference> conferenceKey,
+            final Long seatsAvailable) {
+        MemcacheService memcacheService = MemcacheServiceFactory.getMemcacheService();
+        HashMap<String, String> current = getSet(memcacheService);
+        if (current == null) {
+            // The cron rebuilds the whole set.
+            return;
+        }
+        Conference conference = null;
+        int seats;
+        if (seatsAvailable != null) {
+            seats = seatsAvailable.intValue();
+        } else {
+            conference = ofy().load().key(conferenceKey).now();
+            if (conference == null) {
+                return;
+            }
+            seats = SeatInventory.getSeatsAvailable(conference);
+        }
+        String id = idOf(conferenceKey);
+        boolean nearlySoldOut = isNearlySoldOut(seats);
+        if (nearlySoldOut == current.containsKey(id)) {
+            return;
+        }
+        if (!nearlySoldOut) {
+            update(id, null);
+            return;
+        }
+        if (conference == null) {
+            conference = ofy().load().key(conferenceKey).now();
+            if (conference == null) {
+                return;
+            }
+        }
+        update(id, conference.getName());
+    }
+
+    /**
+     * Updates the name of the given Conference in the set, when it is in it.
+     *
+     * @param conference the Conference as saved.
+     */
+    public static void conferenceChanged(final Conference conference) {
+        MemcacheService memcacheService = MemcacheServiceFactory.getMemcacheService();
+        HashMap<String, String> current = getSet(memcacheService);
+        String id = idOf(Key.<Conference>create(conference.getWebsafeKey()));
+        if (current != null && current.containsKey(id)
+                && !conference.getName().equals(current.get(id))) {
+            update(id, conference.getName());
+        }
+    }
+
+    /**
+     * Adds, renames or removes a Conference in the set with compare-and-set.
+     *
+     * @param id the id of the Conference in the set.
+     * @param name the name of the Conference, or null to remove it.
+     */
+    private static void update(final String id, final String name) {
+        MemcacheService memcacheService = MemcacheServiceFactory.getMemcacheService();
+        for (int attempt = 0; attempt < MAX_CAS_ATTEMPTS; attempt++) {
+            IdentifiableValue identifiable = memcacheService.getIdentifiable(MEMCACHE_KEY);
+            if (identifiable == null) {
+                return;
+            }
+            @SuppressWarnings("unchecked")
+            HashMap<String, String> set =
+                    new HashMap<>((HashMap<String, String>) identifiable.getValue());
+            String previous = name == null ? set.remove(id) : set.put(id, name);
+            if (name == null ? previous == null : name.equals(previous)) {
+                return;
+            }
+            if (memcacheService.putIfUntouched(MEMCACHE_KEY, identifiable, set)) {
+                publish(set);
+                return;
+            }
+        }
+        // Too much contention, let the cron rebuild the set.
+        LOG.warning("Dropping the nearly sold out set after " + MAX_CAS_ATTEMPTS + " attempts");
+        memcacheService.delete(MEMCACHE_KEY);
+    }
+
+    /**
+     * Reconciles the set with the current seat counts, and makes sure the set and the
+     * announcement are in memcache.
+     */
+    public static void refresh() {
+        MemcacheService memcacheService = MemcacheServiceFactory.getMemcacheService();
+        for (int attempt = 0; attempt < MAX_CAS_ATTEMPTS; attempt++) {
+            IdentifiableValue identifiable = memcacheService.getIdentifiable(MEMCACHE_KEY);
+            @SuppressWarnings("unchecked")
+            HashMap<String, String> current = identifiable == null
+                    ? null : (HashMap<String, String>) identifiable.getValue();
+            HashMap<String, String> set = count(current);
+            if (current == null) {
+                if (!memcacheService.put(MEMCACHE_KEY, set, null,
+                        MemcacheService.SetPolicy.ADD_ONLY_IF_NOT_PRESENT)) {
+                    // Rebuilt meanwhile, reconcile that one.
+                    continue;
+                }
+            } else if (set.equals(current)) {
+                if (!set.isEmpty()
+                        && !memcacheService.contains(Constants.MEMCACHE_ANNOUNCEMENTS_KEY)) {
+                    publish(set);
+                }
+                return;
+            } else if (memcacheService.putIfUntouched(MEMCACHE_KEY, identifiable, set)) {
+                LOG.info("Reconciled the nearly sold out set from " + current.keySet() + " to "
+                        + set.keySet());
+            } else {
+                continue;
+            }
+            publish(set);
+            return;
+        }
+        // Too much contention, the next run reconciles the set.
+        LOG.warning("Could not reconcile the nearly sold out set after " + MAX_CAS_ATTEMPTS
+                + " attempts");
+    }
+
+    /**
+     * Returns the set of the Conferences nearly sold out by their current seat counts, out of
+     * those nearly sold out by their seatsAvailable snapshot and those in the given set.
+     *
+     * @param current the set in memcache, or null when evicted.
+     */
+    private static HashMap<String, String> count(final HashMap<String, String> current) {
+        Map<Key<Conference>, Conference> conferences = new HashMap<>();
+        Iterable<Conference> snapshots = ofy().load().type(Conference.class)
+                .filter("seatsAvailable <", THRESHOLD)
+                .filter("seatsAvailable >", 0);
+        for (Conference conference : snapshots) {
+            conferences.put(Key.<Conference>create(conference.getWebsafeKey()), conference);
+        }
+        if (current != null) {
+            List<Key<Conference>> listed = new ArrayList<>();
+            for (String id : current.keySet()) {
+                Key<Conference> conferenceKey = keyOf(id);
+                if (!conferences.containsKey(conferenceKey)) {
+                    listed.add(conferenceKey);
+                }
+            }
+            // The Conferences deleted meanwhile are left out.
+            conferences.putAll(ofy().load().keys(listed));
+        }
+        SeatInventory.refreshSeatsAvailable(conferences.values());
+
+        HashMap<String, String> set = new HashMap<>();
+        for (Map.Entry<Key<Conference>, Conference> entry : conferences.entrySet()) {
+            if (isNearlySoldOut(entry.getValue().getSeatsAvailable())) {
+                set.put(idOf(entry.getKey()), entry.getValue().getName());
+            }
+        }
+        return set;
+    }
+
+    /**
+     * Writes the announcement of the given set, or removes it when the set is empty.
+     */
+    private static void publish(final HashMap<String, String> set) {
+        MemcacheService memcacheService = MemcacheServiceFactory.getMemcacheService();
+        // This instance serves the new announcement right away, the others after their TTL.
+        Announcements.clear();
+        if (set.isEmpty()) {
+            memcacheService.delete(Constants.MEMCACHE_ANNOUNCEMENTS_KEY);
+            return;
+        }
+        List<String> conferenceNames = new ArrayList<>(set.values());
+        Collections.sort(conferenceNames);
+        // Build a String that announces the nearly sold-out conferences
+        String announcement = "Last chance to attend! The following conferences are nearly "
+                + "sold out: " + Joiner.on(", ").skipNulls().join(conferenceNames);
+        memcacheService.put(Constants.MEMCACHE_ANNOUNCEMENTS_KEY, announcement);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static HashMap<String, String> getSet(final MemcacheService memcacheService) {
+        return (HashMap<String, String>) memcacheService.get(MEMCACHE_KEY);
+    }
+
+    private static String idOf(final Key<Conference> conferenceKey) {
+        return conferenceKey.getParent().getName() + ":" + conferenceKey.getId();
+    }
+
+    private static Key<Conference> keyOf(final String id) {
+        int separator = id.lastIndexOf(':');
+        return Key.create(Key.create(Profile.class, id.substring(0, separator)),
+                Conference.class, Long.parseLong(id.substring(separator + 1)));
+    }
+}
@@ -18,6 +18,9 @@ package com.google.devrel.training.conference.service;
 import com.google.devrel.training.conference.domain.AppEngineUser;
 import com.google.devrel.training.conference.domain.Conference;
 import com.google.devrel.training.conference.domain.Profile;
+import com.google.devrel.training.conference.domain.Registration;
+import com.google.devrel.training.conference.domain.Reservation;
+import com.google.devrel.training.conference.domain.SeatShard;
 import com.googlecode.objectify.Objectify;
 import com.googlecode.objectify.ObjectifyFactory;
 import com.googlecode.objectify.ObjectifyService;
@@ -33,6 +36,9 @@ public class OfyService {
         factory().register(AppEngineUser.class);
         factory().register(Conference.class);
         factory().register(Profile.class);
+        factory().register(Registration.class);
+        factory().register(Reservation.class);
+        factory().register(SeatShard.class);
     }
 
     /**
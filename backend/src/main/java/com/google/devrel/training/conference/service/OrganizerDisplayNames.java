@@ -0,0 +1,152 @@
+/* Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.appengine.api.taskqueue.Queue;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.domain.Profile;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Work;
+import com.googlecode.objectify.cmd.Query;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Maintains the organizer's display name denormalized on Conferences.
+ *
+ * When an organizer changes the display name, a task rewrites it across the Conferences under
+ * the organizer's Profile in batches. The Conferences of an organizer share the entity group
+ * of the Profile, so a batch is written in a single transaction.
+ */
+public class OrganizerDisplayNames {
+
+    /**
+     * The number of Conferences rewritten per transaction.
+     */
+    static final int BATCH_SIZE = 100;
+
+    /**
+     * Enqueues the task rewriting the display name of the given organizer on the Conferences.
+     * Call it inside the transaction that saves the Profile.
+     *
+     * @param userId the userId of the organizer.
+     */
+    public static void enqueueUpdate(final String userId) {
+        enqueueUpdate(userId, null);
+    }
+
+    /**
+     * Rewrites the display name of the given organizer on a batch of Conferences, and enqueues
+     * the task for the next batch when there are more.
+     *
+     * The display name is read from the Profile, so a late task never writes an older name.
+     *
+     * @param userId the userId of the organizer.
+     * @param websafeCursor where the batch starts, null for the first batch.
+     * @return the number of Conferences rewritten.
+     */
+    public static int updateBatch(final String userId, final String websafeCursor) {
+        final Key<Profile> profileKey = Key.create(Profile.class, userId);
+        return ofy().transact(new Work<Integer>() {
+            @Override
+            public Integer run() {
+                Profile profile = ofy().load().key(profileKey).now();
+                if (profile == null) {
+                    return 0;
+                }
+                Query<Conference> query = ofy().load().type(Conference.class)
+                        .ancestor(profileKey).limit(BATCH_SIZE);
+                if (websafeCursor != null) {
+                    query = query.startAt(Cursor.fromWebSafeString(websafeCursor));
+                }
+                QueryResultIterator<Conference> iterator = query.iterator();
+                List<Conference> conferences = new ArrayList<>(BATCH_SIZE);
+                int read = 0;
+                while (iterator.hasNext()) {
+                    Conference conference = iterator.next();
+                    read++;
+                    if (!conference.hasOrganizerDisplayName() || !profile.getDisplayName()
+                            .equals(conference.getOrganizerDisplayName())) {
+                        conference.setOrganizerDisplayName(profile.getDisplayName());
+                        conferences.add(conference);
+                    }
+                }
+                ofy().save().entities(conferences).now();
+                if (read == BATCH_SIZE) {
+                    enqueueUpdate(userId, iterator.getCursor().toWebSafeString());
+                }
+                return conferences.size();
+            }
+        });
+    }
+
+    /**
+     * Copies the organizer's display name from the Profile to the given Conference, when it
+     * has not been denormalized yet.
+     *
+     * @param conference the Conference.
+     */
+    public static void resolve(final Conference conference) {
+        resolve(Collections.singletonList(conference));
+    }
+
+    /**
+     * Copies the organizer's display names from the Profiles to the given Conferences saved
+     * before the name was denormalized, loading the Profiles in one batch.
+     *
+     * @param conferences the Conferences.
+     */
+    public static void resolve(final Collection<Conference> conferences) {
+        Set<Key<Profile>> organizerKeys = new HashSet<>();
+        for (Conference conference : conferences) {
+            if (!conference.hasOrganizerDisplayName()) {
+                organizerKeys.add(conference.getProfileKey());
+            }
+        }
+        if (organizerKeys.isEmpty()) {
+            return;
+        }
+        Map<Key<Profile>, Profile> organizers = ofy().load().keys(organizerKeys);
+        for (Conference conference : conferences) {
+            Profile organizer = organizers.get(conference.getProfileKey());
+            if (organizer != null && !conference.hasOrganizerDisplayName()) {
+                conference.setOrganizerDisplayName(organizer.getDisplayName());
+            }
+        }
+    }
+
+    private static void enqueueUpdate(final String userId, final String websafeCursor) {
+        TaskOptions task = TaskOptions.Builder.withUrl("/tasks/update_organizer_display_name")
+                .param("userId", userId);
+        if (websafeCursor != null) {
+            task = task.param("cursor", websafeCursor);
+        }
+        Queue queue = QueueFactory.getDefaultQueue();
+        queue.add(ofy().getTransaction(), task);
+    }
+}
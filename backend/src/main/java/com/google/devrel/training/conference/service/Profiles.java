@@ -0,0 +1,100 @@
+/* Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.devrel.training.conference.domain.Profile;
+import com.googlecode.objectify.Key;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads the Profiles of the signed in users through a small cache in the instance.
+ *
+ * Within a request, Objectify's session cache already returns the Profile loaded before,
+ * since ObjectifyFilter starts a session per request. Across requests, Profiles are kept in
+ * the instance for up to TTL_SECONDS, so a change made on another instance shows up late
+ * by as much. Callers get a copy they may change without affecting the cache.
+ *
+ * Reads inside a transaction go to the datastore, so that the Profile is enlisted and the
+ * transaction is checked against concurrent writes. Call invalidate once the transaction that
+ * saved a Profile has committed, so that a read during the transaction doesn't cache the old
+ * Profile again.
+ */
+public class Profiles {
+
+    /**
+     * The number of Profiles cached in the instance.
+     */
+    private static final int CAPACITY = 10000;
+
+    private static final int TTL_SECONDS = 30;
+
+    private static final Cache<String, Profile> CACHE = CacheBuilder.newBuilder()
+            .maximumSize(CAPACITY)
+            .expireAfterWrite(TTL_SECONDS, TimeUnit.SECONDS)
+            .build();
+
+    /**
+     * Returns the Profile of the given user.
+     *
+     * @param userId the userId.
+     * @return a copy of the Profile, or null when the user has no Profile.
+     */
+    public static Profile get(final String userId) {
+        if (ofy().getTransaction() != null) {
+            return ofy().load().key(Key.create(Profile.class, userId)).now();
+        }
+        Profile profile = CACHE.getIfPresent(userId);
+        if (profile == null) {
+            profile = ofy().load().key(Key.create(Profile.class, userId)).now();
+            if (profile == null) {
+                return null;
+            }
+            // The session holds the loaded instance, the cache holds its own copy.
+            CACHE.put(userId, profile.copy());
+        }
+        return profile.copy();
+    }
+
+    /**
+     * Drops the cached Profile of the given user on this instance.
+     *
+     * @param userId the userId.
+     */
+    public static void invalidate(final String userId) {
+        CACHE.invalidate(userId);
+    }
+
+    /**
+     * Drops the cached Profiles of the given users on this instance.
+     *
+     * @param userIds the userIds.
+     */
+    public static void invalidate(final Iterable<String> userIds) {
+        CACHE.invalidateAll(userIds);
+    }
+
+    /**
+     * Drops every cached Profile, mostly for tests.
+     */
+    public static void clear() {
+        CACHE.invalidateAll();
+    }
+}
@@ -0,0 +1,138 @@
+/* Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.domain.Profile;
+import com.google.devrel.training.conference.domain.Registration;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.VoidWork;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Manages the Registration entities of the users, and their migration from the
+ * conferenceKeysToAttend list of Profile.
+ *
+ * The methods changing registrations must be called inside a transaction on the entity group
+ * of the user's Profile. Migrate the Profile after the change, so that an entity is not
+ * written twice in the transaction.
+ */
+public class Registrations {
+
+    /**
+     * Moves the conferences the given Profile registered for before Registration entities
+     * into Registration entities. Must be called inside a transaction, the caller saves the
+     * Profile when it returns true.
+     *
+     * @param profile the Profile, loaded in the transaction.
+     * @return true when the Profile changed.
+     */
+    public static boolean migrate(final Profile profile) {
+        List<String> websafeConferenceKeys = profile.getLegacyConferenceKeysToAttend();
+        if (websafeConferenceKeys.isEmpty()) {
+            return false;
+        }
+        List<Registration> registrations = new ArrayList<>(websafeConferenceKeys.size());
+        for (String websafeConferenceKey : websafeConferenceKeys) {
+            registrations.add(new Registration(profile.getUserId(), websafeConferenceKey));
+        }
+        ofy().save().entities(registrations);
+        profile.clearLegacyConferenceKeysToAttend();
+        return true;
+    }
+
+    /**
+     * Migrates the Profile of the given user in a transaction of its own, when it still has
+     * conferences registered before Registration entities.
+     *
+     * @param userId the userId.
+     */
+    public static void migrateIfNeeded(final String userId) {
+        final Key<Profile> profileKey = Key.create(Profile.class, userId);
+        Profile profile = ofy().load().key(profileKey).now();
+        if (profile == null || profile.getLegacyConferenceKeysToAttend().isEmpty()) {
+            return;
+        }
+        ofy().transactNew(new VoidWork() {
+            @Override
+            public void vrun() {
+                Profile profile = ofy().load().key(profileKey).now();
+                if (migrate(profile)) {
+                    ofy().save().entity(profile);
+                }
+            }
+        });
+        Profiles.invalidate(userId);
+    }
+
+    /**
+     * Returns true when the given user is registered for the given Conference, whether the
+     * Profile has been migrated or not.
+     *
+     * @param profile the Profile of the user.
+     * @param websafeConferenceKey the websafe key of the Conference.
+     * @return true when the user is registered.
+     */
+    public static boolean isRegistered(final Profile profile, final String websafeConferenceKey) {
+        return profile.getLegacyConferenceKeysToAttend().contains(websafeConferenceKey)
+                || ofy().load().key(Registration.createKey(profile.getUserId(),
+                        websafeConferenceKey)).now() != null;
+    }
+
+    /**
+     * Registers the given user for the given Conference.
+     *
+     * @param userId the userId.
+     * @param websafeConferenceKey the websafe key of the Conference.
+     */
+    public static void register(final String userId, final String websafeConferenceKey) {
+        ofy().save().entity(new Registration(userId, websafeConferenceKey));
+    }
+
+    /**
+     * Unregisters the given user from the given Conference. The caller saves the Profile.
+     *
+     * @param profile the Profile of the user, loaded in the transaction.
+     * @param websafeConferenceKey the websafe key of the Conference.
+     */
+    public static void unregister(final Profile profile, final String websafeConferenceKey) {
+        if (!profile.removeLegacyConferenceKeyToAttend(websafeConferenceKey)) {
+            ofy().delete().key(Registration.createKey(profile.getUserId(),
+                    websafeConferenceKey));
+        }
+    }
+
+    /**
+     * Returns the keys of the Conferences the given user is registered for, in the order of
+     * the Registration ids. Migrate the Profile first.
+     *
+     * @param userId the userId.
+     * @return the keys of the Conferences.
+     */
+    public static List<Key<Conference>> getConferenceKeys(final String userId) {
+        List<Key<Conference>> conferenceKeys = new ArrayList<>();
+        // An ancestor query is strongly consistent, and the keys carry all that is needed.
+        for (Key<Registration> key : ofy().load().type(Registration.class)
+                .ancestor(Key.create(Profile.class, userId)).keys()) {
+            conferenceKeys.add(Registration.getConferenceKey(key));
+        }
+        return conferenceKeys;
+    }
+}
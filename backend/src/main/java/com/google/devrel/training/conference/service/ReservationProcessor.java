@@ -0,0 +1,225 @@
+/* Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+
+import com.google.appengine.api.taskqueue.Queue;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.domain.Profile;
+import com.google.devrel.training.conference.domain.Reservation;
+import com.google.devrel.training.conference.domain.Reservation.Action;
+import com.google.devrel.training.conference.domain.Reservation.Status;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Work;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Commits pending Reservations in batches, one transaction per batch of the same Conference.
+ *
+ * A batch transaction touches the entity groups of its users' Profiles, where the
+ * Reservations live too, and the seat shards for the net number of seats of the batch.
+ * A batch whose seats don't fit in the shards left to it is committed one Reservation at a
+ * time instead.
+ */
+public class ReservationProcessor {
+
+    private static final Logger LOG = Logger.getLogger(ReservationProcessor.class.getName());
+
+    /**
+     * The number of Reservations committed in one transaction.
+     *
+     * A cross group transaction can operate on five entity groups, one is left for the
+     * seat shard.
+     */
+    public static final int BATCH_SIZE = 4;
+
+    /**
+     * The number of entity groups a cross group transaction can operate on.
+     */
+    private static final int MAX_ENTITY_GROUPS = 5;
+
+    private static final String QUEUE_NAME = "registration-queue";
+
+    /**
+     * Enqueues the task processing the given Reservation.
+     * Call it inside the transaction that saves the Reservation.
+     *
+     * @param reservation the pending Reservation.
+     */
+    public static void enqueue(final Reservation reservation) {
+        Queue queue = QueueFactory.getQueue(QUEUE_NAME);
+        queue.add(ofy().getTransaction(),
+                TaskOptions.Builder.withUrl("/tasks/process_reservations")
+                        .param("websafeReservationKey", reservation.getWebsafeKey()));
+    }
+
+    /**
+     * Commits the given Reservation, together with other pending Reservations for the
+     * same Conference.
+     *
+     * @param reservationKey the key of the Reservation the task was enqueued for.
+     */
+    public static void process(final Key<Reservation> reservationKey) {
+        Reservation reservation = ofy().load().key(reservationKey).now();
+        if (reservation == null || !reservation.isPending()) {
+            // Already committed in the batch of another task.
+            return;
+        }
+
+        final Conference conference = ofy().load().key(reservation.getConferenceKey()).now();
+
+        // The query is eventually consistent, Reservations it misses are committed by the
+        // tasks enqueued for them.
+        List<Key<Reservation>> batch = new ArrayList<>(BATCH_SIZE);
+        batch.add(reservationKey);
+        if (conference != null) {
+            Iterable<Key<Reservation>> pending = ofy().load().type(Reservation.class)
+                    .filter("conferenceKey", reservation.getConferenceKey())
+                    .filter("status", Status.PENDING)
+                    .limit(BATCH_SIZE)
+                    .keys();
+            for (Key<Reservation> key : pending) {
+                if (batch.size() < BATCH_SIZE && !key.equals(reservationKey)) {
+                    batch.add(key);
+                }
+            }
+        }
+
+        if (commit(conference, batch) == null) {
+            LOG.info("Committing " + batch.size() + " reservations one at a time");
+            for (Key<Reservation> key : batch) {
+                commit(conference, Collections.singletonList(key));
+            }
+        }
+    }
+
+    /**
+     * Commits the given Reservations in one transaction.
+     *
+     * @return the number of Reservations committed, or null when the seats of the batch don't
+     *     fit in the shards the transaction can touch and nothing has been committed.
+     */
+    private static Integer commit(final Conference conference,
+            final List<Key<Reservation>> batch) {
+        final int[] seatsDelta = new int[1];
+        final List<String> savedUserIds = new ArrayList<>();
+        Integer committed = ofy().transact(new Work<Integer>() {
+            @Override
+            public Integer run() {
+                seatsDelta[0] = 0;
+                savedUserIds.clear();
+                Map<Key<Reservation>, Reservation> reservations = ofy().load().keys(batch);
+                List<Key<Profile>> profileKeys = new ArrayList<>();
+                for (Reservation reservation : reservations.values()) {
+                    profileKeys.add(reservation.getProfileKey());
+                }
+                Map<Key<Profile>, Profile> profiles = ofy().load().keys(profileKeys);
+
+                List<Object> toSave = new ArrayList<>();
+                // The registrations are only changed once the seats are booked.
+                List<Reservation> toApply = new ArrayList<>();
+                int seatsToBook = 0;
+                int seatsToGiveBack = 0;
+                for (Reservation reservation : reservations.values()) {
+                    if (!reservation.isPending()) {
+                        continue;
+                    }
+                    toSave.add(reservation);
+                    String websafeConferenceKey = reservation.getWebsafeConferenceKey();
+                    Profile profile = profiles.get(reservation.getProfileKey());
+                    boolean registered = profile != null
+                            && Registrations.isRegistered(profile, websafeConferenceKey);
+                    if (conference == null) {
+                        reservation.reject("No Conference found with key: "
+                                + websafeConferenceKey);
+                    } else if (reservation.getAction() == Action.REGISTER) {
+                        if (profile == null) {
+                            reservation.reject("Profile doesn't exist.");
+                        } else if (registered) {
+                            reservation.reject("You have already registered for this conference");
+                        } else {
+                            toApply.add(reservation);
+                            reservation.confirm();
+                            seatsToBook++;
+                        }
+                    } else {
+                        if (!registered) {
+                            reservation.reject("You are not registered for this conference");
+                        } else {
+                            toApply.add(reservation);
+                            reservation.confirm();
+                            seatsToGiveBack++;
+                        }
+                    }
+                }
+
+                // Registrations and cancellations of the batch cancel each other out.
+                int net = seatsToBook - seatsToGiveBack;
+                int maxShards = MAX_ENTITY_GROUPS - profileKeys.size();
+                if (net > 0 && !SeatInventory.bookSeats(conference, net, maxShards)) {
+                    if (batch.size() > 1) {
+                        return null;
+                    }
+                    reservations.values().iterator().next()
+                            .reject("There are no seats available.");
+                    toApply.clear();
+                    net = 0;
+                } else if (net < 0 && !SeatInventory.giveBackSeats(conference, -net, maxShards)) {
+                    if (batch.size() > 1) {
+                        return null;
+                    }
+                    // Retrying the task would fail the same way, reject the Reservation
+                    // instead so that the task completes.
+                    Reservation reservation = reservations.values().iterator().next();
+                    LOG.warning("Rejecting " + reservation.getWebsafeKey() + ", the seats "
+                            + "given back exceed the capacity of " + conference.getWebsafeKey());
+                    reservation.reject("The number of seats will exceeds the capacity.");
+                    toApply.clear();
+                    net = 0;
+                }
+                for (Reservation reservation : toApply) {
+                    Profile profile = profiles.get(reservation.getProfileKey());
+                    if (reservation.getAction() == Action.REGISTER) {
+                        Registrations.register(profile.getUserId(),
+                                reservation.getWebsafeConferenceKey());
+                    } else {
+                        Registrations.unregister(profile, reservation.getWebsafeConferenceKey());
+                    }
+                    Registrations.migrate(profile);
+                    toSave.add(profile);
+                    savedUserIds.add(profile.getUserId());
+                }
+                ofy().save().entities(toSave).now();
+                seatsDelta[0] = -net;
+                return reservations.size();
+            }
+        });
+        Profiles.invalidate(savedUserIds);
+        if (committed != null && conference != null && seatsDelta[0] != 0) {
+            SeatInventory.seatsChanged(Key.<Conference>create(conference.getWebsafeKey()),
+                    seatsDelta[0]);
+        }
+        return committed;
+    }
+}
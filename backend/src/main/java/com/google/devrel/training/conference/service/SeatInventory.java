@@ -0,0 +1,763 @@
+/* Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheService.CasValues;
+import com.google.appengine.api.memcache.MemcacheService.IdentifiableValue;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.api.taskqueue.Queue;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskAlreadyExistsException;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.domain.SeatShard;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.VoidWork;
+import com.googlecode.objectify.Work;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.logging.Logger;
+
+/**
+ * Manages the seat inventory of Conferences, split across SeatShard entities.
+ *
+ * A SeatShard is only stored once it is written, until then it is derived from the numbers
+ * the Conference recorded when its inventory was sharded. The booking methods must be called
+ * inside a transaction. They pick shards that have seats according to a transactionless
+ * read, so concurrent registrations for the same Conference touch different entity groups.
+ */
+public class SeatInventory {
+
+    private static final Logger LOG = Logger.getLogger(SeatInventory.class.getName());
+
+    /**
+     * The maximum number of shards per Conference.
+     */
+    public static final int MAX_SHARDS = 20;
+
+    /**
+     * The maximum number of shards a single transaction may touch.
+     *
+     * A cross group transaction can operate on five entity groups, one is left for the
+     * Profile or the Conference.
+     */
+    public static final int MAX_SHARDS_PER_TRANSACTION = 4;
+
+    /**
+     * The changes a transaction can make to the seats of a shard.
+     */
+    private static enum Operation {
+        BOOK {
+            @Override
+            int room(SeatShard shard) {
+                return shard.getSeatsAvailable();
+            }
+
+            @Override
+            void apply(SeatShard shard, int number) {
+                shard.bookSeats(number);
+            }
+        },
+        GIVE_BACK {
+            @Override
+            int room(SeatShard shard) {
+                return shard.getCapacity() - shard.getSeatsAvailable();
+            }
+
+            @Override
+            void apply(SeatShard shard, int number) {
+                shard.giveBackSeats(number);
+            }
+        },
+        REMOVE {
+            @Override
+            int room(SeatShard shard) {
+                return shard.getSeatsAvailable();
+            }
+
+            @Override
+            void apply(SeatShard shard, int number) {
+                shard.removeSeats(number);
+            }
+        };
+
+        /**
+         * Returns the number of seats this operation can change in the given shard.
+         */
+        abstract int room(SeatShard shard);
+
+        abstract void apply(SeatShard shard, int number);
+    }
+
+    private static final String MEMCACHE_SEATS_AVAILABLE_PREFIX = "SEATS_AVAILABLE_";
+
+    private static final int SEATS_AVAILABLE_EXPIRATION_SECONDS = 60;
+
+    /**
+     * The value held in memcache while the seats available are being counted. Anything from
+     * half of it up is not a count, since registrations may have incremented it meanwhile.
+     */
+    private static final long UNCOUNTED = Long.MAX_VALUE / 2;
+
+    /**
+     * The interval in which the seatsAvailable snapshot on Conference is written back.
+     */
+    private static final long SYNC_INTERVAL_MILLIS = 10 * 1000;
+
+    /**
+     * The time after which a removal of seats recorded by startSeatsRemoval belongs to an
+     * update that died, well past the deadline of a request.
+     */
+    private static final long SEATS_REMOVAL_TIMEOUT_MILLIS = 2 * 60 * 1000;
+
+    /**
+     * Returns the number of shards for a Conference with the given capacity.
+     *
+     * @param maxAttendees the capacity of the Conference.
+     * @return the number of shards, at least 1.
+     */
+    public static int shardCountFor(final int maxAttendees) {
+        return Math.max(1, Math.min(MAX_SHARDS, maxAttendees));
+    }
+
+    /**
+     * Splits the seats of a Conference across the given number of shards.
+     *
+     * Allocated seats are packed into the first shards, so every shard stays within
+     * its capacity.
+     *
+     * @param conferenceKey the key of the Conference.
+     * @param shardCount the number of shards.
+     * @param maxAttendees the capacity of the Conference.
+     * @param seatsAvailable the number of seats currently available.
+     * @return the list of shards.
+     */
+    public static List<SeatShard> layout(final Key<Conference> conferenceKey,
+            final int shardCount, final int maxAttendees, final int seatsAvailable) {
+        List<SeatShard> shards = new ArrayList<>(shardCount);
+        int seatsAllocated = maxAttendees - seatsAvailable;
+        for (int i = 0; i < shardCount; i++) {
+            int capacity = maxAttendees / shardCount + (i < maxAttendees % shardCount ? 1 : 0);
+            int allocated = Math.min(capacity, seatsAllocated);
+            seatsAllocated -= allocated;
+            shards.add(new SeatShard(conferenceKey, i, capacity, capacity - allocated));
+        }
+        return shards;
+    }
+
+    /**
+     * Shards the seat inventory of the given Conference. The caller saves the Conference.
+     *
+     * @param conference the Conference, new or not sharded yet.
+     */
+    public static void initialize(final Conference conference) {
+        conference.shardSeatInventory(shardCountFor(conference.getMaxAttendees()));
+    }
+
+    /**
+     * Adds new seats to the capacity of the given Conference.
+     * Must be called inside the transaction that saves the Conference.
+     *
+     * @param conference the Conference.
+     * @param number the number of seats to add.
+     */
+    public static void addSeats(final Conference conference, final int number) {
+        if (number == 0 || conference.getSeatShardCount() == 0) {
+            return;
+        }
+        // Any shard can take the new seats.
+        List<SeatShard> shards = peekShards(conference);
+        Collections.shuffle(shards);
+        SeatShard shard = loadShard(conference, shards.get(0).getIndex());
+        shard.addSeats(number);
+        ofy().save().entity(shard);
+    }
+
+    /**
+     * Removes available seats from the capacity of the given Conference, in as many
+     * transactions of their own as needed. Call it before the transaction lowering
+     * maxAttendees, and add the seats again when that transaction fails. The seat inventory
+     * of a Conference created before it was sharded is sharded first.
+     *
+     * @param conference the Conference, see shardIfNeeded.
+     * @param number the number of seats to remove.
+     * @return true when the seats are removed, false when not enough seats are available,
+     *     in which case nothing is removed.
+     */
+    public static boolean removeSeats(final Conference conference, final int number) {
+        if (number == 0) {
+            return true;
+        }
+        final Conference sharded = shardIfNeeded(conference);
+        if (sharded.getSeatShardCount() == 0) {
+            // Deleted meanwhile, there are no seats left to remove.
+            return true;
+        }
+        final int removed = applyInTransactions(sharded, number, Operation.REMOVE);
+        if (removed < number) {
+            ofy().transactNew(new VoidWork() {
+                @Override
+                public void vrun() {
+                    addSeats(sharded, removed);
+                }
+            });
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Records on the given Conference that the given number of seats are being removed, and
+     * schedules a sync that puts them back if the update doesn't end the removal in time.
+     * Must be called inside the transaction that saves the Conference, before removeSeats.
+     *
+     * @param conference the Conference.
+     * @param number the number of seats to remove.
+     * @param startMillis the current time in milliseconds, which identifies the removal.
+     */
+    public static void startSeatsRemoval(final Conference conference, final int number,
+            final long startMillis) {
+        conference.startSeatsRemoval(number, startMillis);
+        QueueFactory.getDefaultQueue().add(ofy().getTransaction(),
+                TaskOptions.Builder.withUrl("/tasks/sync_seats_available")
+                        .countdownMillis(SEATS_REMOVAL_TIMEOUT_MILLIS + SYNC_INTERVAL_MILLIS)
+                        .param("websafeConferenceKey", conference.getWebsafeKey()));
+    }
+
+    /**
+     * Puts back the seats taken out of the shards by a removal that the update recorded with
+     * startSeatsRemoval but never ended, because the request died in between. The shards then
+     * hold fewer seats than maxAttendees, the missing ones are added again.
+     *
+     * @param conference the Conference.
+     * @return true when seats were put back.
+     */
+    public static boolean reconcileSeatsRemoval(final Conference conference) {
+        final long startMillis = conference.getSeatsRemovalStartMillis();
+        if (conference.getSeatsBeingRemoved() == 0
+                || System.currentTimeMillis() - startMillis < SEATS_REMOVAL_TIMEOUT_MILLIS) {
+            return false;
+        }
+        // The capacity of the shards only changes with maxAttendees meanwhile, which the
+        // version tracks.
+        int capacity = 0;
+        for (SeatShard shard : peekShards(conference)) {
+            capacity += shard.getCapacity();
+        }
+        final int missing = conference.getMaxAttendees() - capacity;
+        final Key<Conference> conferenceKey = getKey(conference);
+        final long version = conference.getVersion();
+        boolean reconciled = ofy().transact(new Work<Boolean>() {
+            @Override
+            public Boolean run() {
+                Conference current = ofy().load().key(conferenceKey).now();
+                if (current == null || current.getVersion() != version
+                        || current.getSeatsRemovalStartMillis() != startMillis) {
+                    return false;
+                }
+                addSeats(current, Math.max(0, missing));
+                current.endSeatsRemoval();
+                ofy().save().entity(current).now();
+                return true;
+            }
+        });
+        if (reconciled) {
+            LOG.warning(String.format("Put back %d seats of an unfinished update of %s",
+                    Math.max(0, missing), conferenceKey.getString()));
+        }
+        return reconciled && missing > 0;
+    }
+
+    /**
+     * Books many seats of the given Conference, in as many transactions of their own as
+     * needed. Call it before the transactions using the seats, and give the unused seats back
+     * with giveBackSeatsInTransactions.
+     *
+     * @param conference the Conference.
+     * @param number the number of seats to book.
+     * @return true when the seats are booked, false when not enough seats are available,
+     *     in which case nothing is booked.
+     */
+    public static boolean bookSeatsInTransactions(final Conference conference,
+            final int number) {
+        if (number == 0) {
+            return true;
+        }
+        Conference sharded = shardIfNeeded(conference);
+        int booked = applyInTransactions(sharded, number, Operation.BOOK);
+        if (booked < number) {
+            applyInTransactions(sharded, booked, Operation.GIVE_BACK);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Gives back seats booked with bookSeatsInTransactions, in as many transactions of their
+     * own as needed.
+     *
+     * @param conference the Conference.
+     * @param number the number of seats to give back.
+     */
+    public static void giveBackSeatsInTransactions(final Conference conference,
+            final int number) {
+        if (number == 0) {
+            return;
+        }
+        applyInTransactions(shardIfNeeded(conference), number, Operation.GIVE_BACK);
+    }
+
+    /**
+     * Counts the seats available over all the shards of the given Conference.
+     *
+     * @param conference the Conference.
+     * @return the number of seats available.
+     */
+    public static int countSeatsAvailable(final Conference conference) {
+        if (conference.getSeatShardCount() == 0) {
+            return conference.getSeatsAvailable();
+        }
+        int seatsAvailable = 0;
+        for (SeatShard shard : peekShards(conference)) {
+            seatsAvailable += shard.getSeatsAvailable();
+        }
+        return seatsAvailable;
+    }
+
+    /**
+     * Books seats from the shards of the given Conference.
+     * Must be called inside a transaction.
+     *
+     * @param conference the Conference.
+     * @param number the number of seats to book.
+     * @return true when the seats are booked, false when there are not enough seats in the
+     *     shards that a transaction can touch.
+     */
+    public static boolean bookSeats(final Conference conference, final int number) {
+        return bookSeats(conference, number, MAX_SHARDS_PER_TRANSACTION);
+    }
+
+    /**
+     * Books seats from at most the given number of shards of the given Conference.
+     * Must be called inside a transaction.
+     *
+     * @param conference the Conference.
+     * @param number the number of seats to book.
+     * @param maxShards the number of entity groups the transaction can spend on shards.
+     * @return true when the seats are booked, false when there are not enough seats in
+     *     maxShards shards.
+     */
+    public static boolean bookSeats(final Conference conference, final int number,
+            final int maxShards) {
+        Conference sharded = shardIfNeeded(conference);
+        return apply(sharded, candidates(sharded, number, Operation.BOOK), number,
+                Operation.BOOK, maxShards, false) == number;
+    }
+
+    /**
+     * Picks at random the shard a single seat of the given Conference is booked from or
+     * given back to, so that the caller can take turns with the others on that shard.
+     *
+     * @param conference the Conference.
+     * @return the index of the shard, 0 when the Conference is not sharded yet.
+     */
+    public static int pickShard(final Conference conference) {
+        int shardCount = conference.getSeatShardCount();
+        return shardCount > 1 ? ThreadLocalRandom.current().nextInt(shardCount) : 0;
+    }
+
+    /**
+     * Books a seat from the given shard of the given Conference, or from another shard when
+     * that one is full. Must be called inside a transaction.
+     *
+     * @param conference the Conference.
+     * @param shard the index of the shard to try first, see pickShard.
+     * @return true when the seat is booked, false when there are no seats in the shards that
+     *     a transaction can touch.
+     */
+    public static boolean bookSeat(final Conference conference, final int shard) {
+        Conference sharded = shardIfNeeded(conference);
+        return apply(sharded, candidates(sharded, 1, Operation.BOOK, shard), 1,
+                Operation.BOOK, MAX_SHARDS_PER_TRANSACTION, false) == 1;
+    }
+
+    /**
+     * Gives a seat back to the given shard of the given Conference, or to another shard when
+     * that one has no room. Must be called inside a transaction.
+     *
+     * @param conference the Conference.
+     * @param shard the index of the shard to try first, see pickShard.
+     */
+    public static void giveBackSeat(final Conference conference, final int shard) {
+        Conference sharded = shardIfNeeded(conference);
+        if (apply(sharded, candidates(sharded, 1, Operation.GIVE_BACK, shard), 1,
+                Operation.GIVE_BACK, MAX_SHARDS_PER_TRANSACTION, false) != 1) {
+            throw new IllegalArgumentException("The number of seats will exceeds the capacity.");
+        }
+    }
+
+    /**
+     * Gives seats back to the shards of the given Conference.
+     * Must be called inside a transaction.
+     *
+     * @param conference the Conference.
+     * @param number the number of seats to give back.
+     */
+    public static void giveBackSeats(final Conference conference, final int number) {
+        if (!giveBackSeats(conference, number, MAX_SHARDS_PER_TRANSACTION)) {
+            throw new IllegalArgumentException("The number of seats will exceeds the capacity.");
+        }
+    }
+
+    /**
+     * Gives seats back to at most the given number of shards of the given Conference.
+     * Must be called inside a transaction.
+     *
+     * @param conference the Conference.
+     * @param number the number of seats to give back.
+     * @param maxShards the number of entity groups the transaction can spend on shards.
+     * @return true when the seats are given back, false when maxShards shards don't have
+     *     enough room for them.
+     */
+    public static boolean giveBackSeats(final Conference conference, final int number,
+            final int maxShards) {
+        Conference sharded = shardIfNeeded(conference);
+        return apply(sharded, candidates(sharded, number, Operation.GIVE_BACK), number,
+                Operation.GIVE_BACK, maxShards, false) == number;
+    }
+
+    /**
+     * Records a committed change of the seats available of the given Conference.
+     * Call it after the transaction that booked or gave back the seats.
+     *
+     * @param conferenceKey the key of the Conference.
+     * @param delta the change of the seats available, negative for bookings.
+     */
+    public static void seatsChanged(final Key<Conference> conferenceKey, final int delta) {
+        MemcacheService memcacheService = MemcacheServiceFactory.getMemcacheService();
+        Long seatsAvailable = memcacheService.increment(getMemcacheKey(conferenceKey), delta);
+        if (seatsAvailable != null && seatsAvailable >= UNCOUNTED / 2) {
+            // Being counted, maybe from shards read before this change. Dropping the
+            // placeholder keeps that count out of memcache.
+            memcacheService.delete(getMemcacheKey(conferenceKey));
+            seatsAvailable = null;
+        }
+        scheduleSync(conferenceKey);
+        ConferenceQueryCache.seatsChanged();
+        ConferenceIndex.seatsChanged(conferenceKey, delta);
+        NearlySoldOut.seatsChanged(conferenceKey, seatsAvailable);
+    }
+
+    /**
+     * Returns the number of seats available of the given Conference, through memcache.
+     *
+     * @param conference the Conference.
+     * @return the number of seats available.
+     */
+    public static int getSeatsAvailable(final Conference conference) {
+        refreshSeatsAvailable(Collections.singletonList(conference));
+        return conference.getSeatsAvailable();
+    }
+
+    /**
+     * Replaces the seatsAvailable snapshot of the given Conferences with the number of seats
+     * counted over their shards. Counts are looked up in memcache first, and the shards of
+     * all the missing Conferences are loaded in one batch.
+     *
+     * A count is only cached when no registration was recorded by seatsChanged since the
+     * shards were read, since seatsChanged has nothing to increment while the count is
+     * missing. An UNCOUNTED placeholder is added before reading, which seatsChanged drops, and
+     * is replaced with the count if it is still there untouched.
+     *
+     * @param conferences the Conferences to refresh.
+     */
+    public static void refreshSeatsAvailable(final Collection<Conference> conferences) {
+        Map<String, Conference> conferencesByMemcacheKey = new HashMap<>();
+        for (Conference conference : conferences) {
+            if (conference.getSeatShardCount() > 0) {
+                conferencesByMemcacheKey.put(getMemcacheKey(getKey(conference)), conference);
+            }
+        }
+        if (conferencesByMemcacheKey.isEmpty()) {
+            return;
+        }
+        MemcacheService memcacheService = MemcacheServiceFactory.getMemcacheService();
+        Map<String, Object> cached = memcacheService.getAll(conferencesByMemcacheKey.keySet());
+
+        List<Conference> missing = new ArrayList<>();
+        for (Map.Entry<String, Conference> entry : conferencesByMemcacheKey.entrySet()) {
+            Object seatsAvailable = cached.get(entry.getKey());
+            if (seatsAvailable == null || ((Number) seatsAvailable).longValue() >= UNCOUNTED / 2) {
+                missing.add(entry.getValue());
+            } else {
+                syncSeatsAvailable(entry.getValue(), ((Number) seatsAvailable).intValue());
+            }
+        }
+        if (missing.isEmpty()) {
+            return;
+        }
+
+        Expiration expiration = Expiration.byDeltaSeconds(SEATS_AVAILABLE_EXPIRATION_SECONDS);
+        Map<String, Long> placeholders = new HashMap<>();
+        List<Key<SeatShard>> shardKeys = new ArrayList<>();
+        for (Conference conference : missing) {
+            placeholders.put(getMemcacheKey(getKey(conference)), UNCOUNTED);
+            shardKeys.addAll(getShardKeys(conference));
+        }
+        memcacheService.putAll(placeholders, expiration,
+                MemcacheService.SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+        Map<String, IdentifiableValue> identifiables =
+                memcacheService.getIdentifiables(placeholders.keySet());
+
+        Map<Key<SeatShard>, SeatShard> stored =
+                ofy().transactionless().load().keys(shardKeys);
+        Map<String, CasValues> toCache = new HashMap<>();
+        for (Conference conference : missing) {
+            int seatsAvailable = 0;
+            for (SeatShard shard : withDefaults(conference, stored)) {
+                seatsAvailable += shard.getSeatsAvailable();
+            }
+            syncSeatsAvailable(conference, seatsAvailable);
+            String memcacheKey = getMemcacheKey(getKey(conference));
+            IdentifiableValue identifiable = identifiables.get(memcacheKey);
+            // Another read may have cached a count meanwhile, which is kept.
+            if (identifiable != null && identifiable.getValue() instanceof Number
+                    && ((Number) identifiable.getValue()).longValue() >= UNCOUNTED / 2) {
+                toCache.put(memcacheKey,
+                        new CasValues(identifiable, (long) seatsAvailable, expiration));
+            }
+        }
+        // A registration recorded meanwhile dropped the entry, the next read counts again.
+        memcacheService.putIfUntouched(toCache);
+    }
+
+    /**
+     * Books, gives back or removes seats in transactions of their own, each touching the
+     * shards having the most room first, until the shards run out of room.
+     *
+     * @return the number of seats changed.
+     */
+    private static int applyInTransactions(final Conference conference, final int number,
+            final Operation operation) {
+        int applied = 0;
+        while (applied < number) {
+            final int remaining = number - applied;
+            int count = ofy().transactNew(new Work<Integer>() {
+                @Override
+                public Integer run() {
+                    List<SeatShard> shards = candidates(conference, remaining, operation);
+                    return apply(conference, shards, remaining, operation,
+                            MAX_SHARDS_PER_TRANSACTION, true);
+                }
+            });
+            if (count == 0) {
+                break;
+            }
+            applied += count;
+        }
+        return applied;
+    }
+
+    /**
+     * Books, gives back or removes seats, touching the given candidate shards in order.
+     * The candidates are loaded again transactionally before they are changed.
+     *
+     * @return the number of seats changed, 0 when the candidates that a transaction can touch
+     *     are not enough and partial changes are not allowed.
+     */
+    private static int apply(final Conference conference, final List<SeatShard> candidates,
+            final int number, final Operation operation, final int maxShards,
+            final boolean allowPartial) {
+        List<SeatShard> touched = new ArrayList<>();
+        List<Integer> counts = new ArrayList<>();
+        int remaining = number;
+        for (SeatShard candidate : candidates) {
+            if (remaining == 0 || touched.size() == maxShards) {
+                break;
+            }
+            if (operation.room(candidate) == 0) {
+                continue;
+            }
+            SeatShard shard = loadShard(conference, candidate.getIndex());
+            int count = Math.min(remaining, operation.room(shard));
+            if (count > 0) {
+                touched.add(shard);
+                counts.add(count);
+                remaining -= count;
+            }
+        }
+        if (remaining > 0 && !allowPartial) {
+            return 0;
+        }
+        for (int i = 0; i < touched.size(); i++) {
+            operation.apply(touched.get(i), counts.get(i));
+        }
+        ofy().save().entities(touched);
+        return number - remaining;
+    }
+
+    /**
+     * Orders the shards of the given Conference for an operation on the given number of seats.
+     *
+     * Single seats go to a random shard, to spread the writes. More seats go to the shards
+     * having the most room first, so that they fit in the shards a transaction can touch.
+     */
+    private static List<SeatShard> candidates(final Conference conference, final int number,
+            final Operation operation) {
+        return candidates(conference, number, operation, -1);
+    }
+
+    /**
+     * Orders the shards of the given Conference for an operation on the given number of seats,
+     * the given shard first for a single seat.
+     */
+    private static List<SeatShard> candidates(final Conference conference, final int number,
+            final Operation operation, final int preferred) {
+        List<SeatShard> shards = peekShards(conference);
+        Collections.shuffle(shards);
+        if (number == 1 && preferred >= 0) {
+            for (int i = 0; i < shards.size(); i++) {
+                if (shards.get(i).getIndex() == preferred) {
+                    shards.add(0, shards.remove(i));
+                    break;
+                }
+            }
+        }
+        if (number > 1) {
+            Collections.sort(shards, new Comparator<SeatShard>() {
+                @Override
+                public int compare(SeatShard shard1, SeatShard shard2) {
+                    return operation.room(shard2) - operation.room(shard1);
+                }
+            });
+        }
+        return shards;
+    }
+
+    /**
+     * Shards the seat inventory of a Conference created before the inventory was sharded,
+     * in a transaction of its own on the Conference entity group.
+     * A Conference deleted meanwhile is returned as is, it has no shard to change seats in.
+     *
+     * @param conference the Conference.
+     * @return the Conference with a sharded seat inventory.
+     */
+    public static Conference shardIfNeeded(final Conference conference) {
+        if (conference.getSeatShardCount() > 0) {
+            return conference;
+        }
+        final Key<Conference> conferenceKey = getKey(conference);
+        ofy().transactNew(new VoidWork() {
+            @Override
+            public void vrun() {
+                Conference current = ofy().load().key(conferenceKey).now();
+                if (current != null && current.getSeatShardCount() == 0) {
+                    initialize(current);
+                    ofy().save().entity(current).now();
+                }
+            }
+        });
+        Conference sharded = ofy().transactionless().load().key(conferenceKey).now();
+        return sharded == null ? conference : sharded;
+    }
+
+    /**
+     * Loads all the shards of the given Conference without enlisting them in the
+     * current transaction.
+     */
+    private static List<SeatShard> peekShards(final Conference conference) {
+        return withDefaults(conference,
+                ofy().transactionless().load().keys(getShardKeys(conference)));
+    }
+
+    private static SeatShard loadShard(final Conference conference, final int index) {
+        SeatShard shard = ofy().load().key(SeatShard.createKey(getKey(conference), index)).now();
+        return shard == null ? initialShard(conference, index) : shard;
+    }
+
+    private static List<SeatShard> withDefaults(final Conference conference,
+            final Map<Key<SeatShard>, SeatShard> stored) {
+        List<SeatShard> shards = new ArrayList<>(conference.getSeatShardCount());
+        Key<Conference> conferenceKey = getKey(conference);
+        for (int i = 0; i < conference.getSeatShardCount(); i++) {
+            SeatShard shard = stored.get(SeatShard.createKey(conferenceKey, i));
+            shards.add(shard == null ? initialShard(conference, i) : shard);
+        }
+        return shards;
+    }
+
+    private static SeatShard initialShard(final Conference conference, final int index) {
+        return layout(getKey(conference), conference.getSeatShardCount(),
+                conference.getShardedMaxAttendees(), conference.getShardedSeatsAvailable())
+                .get(index);
+    }
+
+    private static List<Key<SeatShard>> getShardKeys(final Conference conference) {
+        Key<Conference> conferenceKey = getKey(conference);
+        List<Key<SeatShard>> shardKeys = new ArrayList<>(conference.getSeatShardCount());
+        for (int i = 0; i < conference.getSeatShardCount(); i++) {
+            shardKeys.add(SeatShard.createKey(conferenceKey, i));
+        }
+        return shardKeys;
+    }
+
+    private static void syncSeatsAvailable(final Conference conference,
+            final int seatsAvailable) {
+        // A stale count can briefly exceed a lowered capacity, keep the snapshot in that case.
+        if (seatsAvailable <= conference.getMaxAttendees()) {
+            conference.syncSeatsAvailable(seatsAvailable);
+        }
+    }
+
+    /**
+     * Enqueues a task writing the seats available back to the Conference entity.
+     *
+     * The task name is bucketed by time, so a hot Conference gets at most one write per
+     * interval, whatever the rate of the registrations.
+     */
+    private static void scheduleSync(final Key<Conference> conferenceKey) {
+        String websafeConferenceKey = conferenceKey.getString();
+        long bucket = System.currentTimeMillis() / SYNC_INTERVAL_MILLIS;
+        Queue queue = QueueFactory.getDefaultQueue();
+        try {
+            queue.add(TaskOptions.Builder.withUrl("/tasks/sync_seats_available")
+                    .taskName("seats-" + websafeConferenceKey + "-" + bucket)
+                    .countdownMillis(SYNC_INTERVAL_MILLIS)
+                    .param("websafeConferenceKey", websafeConferenceKey));
+        } catch (TaskAlreadyExistsException e) {
+            // Already scheduled for this interval.
+        }
+    }
+
+    private static String getMemcacheKey(final Key<Conference> conferenceKey) {
+        return MEMCACHE_SEATS_AVAILABLE_PREFIX + conferenceKey.getString();
+    }
+
+    private static Key<Conference> getKey(final Conference conference) {
+        return Key.create(conference.getProfileKey(), Conference.class, conference.getId());
+    }
+}
@@ -0,0 +1,112 @@
+/* Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.devrel.training.conference.service;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Coalesces the identical calls running at the same time in the instance: the first call for
+ * a key runs, the calls for the same key arriving meanwhile wait for it and share its result
+ * or its exception. A call arriving after it finished runs again, nothing is cached.
+ *
+ * The shared result must not be changed by the callers. A caller joining a call may get a
+ * result read a little before it arrived, no older than the call it joined.
+ *
+ * @param <K> the type of the keys.
+ * @param <V> the type of the results.
+ * @param <E> the checked exception of the calls.
+ */
+public class SingleFlight<K, V, E extends Exception> {
+
+    /**
+     * A call that may be shared.
+     */
+    public interface Call<V, E extends Exception> {
+        V call() throws E;
+    }
+
+    /**
+     * A call running, with its outcome once done.
+     */
+    private static class Flight<V> {
+        private final CountDownLatch done = new CountDownLatch(1);
+        private V result;
+        private Throwable failure;
+    }
+
+    private final String name;
+
+    private final ConcurrentMap<K, Flight<V>> flights = new ConcurrentHashMap<>();
+
+    /**
+     * @param name the name of the calls in Metrics.
+     */
+    public SingleFlight(final String name) {
+        this.name = name;
+    }
+
+    /**
+     * Runs the given call, or waits for the one running for the same key.
+     *
+     * @param key the key of the call, equal for the calls with the same result.
+     * @param call the call.
+     * @return the result of the call.
+     * @throws E when the call threw it.
+     */
+    public V run(final K key, final Call<V, E> call) throws E {
+        Flight<V> flight = new Flight<>();
+        Flight<V> running = flights.putIfAbsent(key, flight);
+        if (running != null) {
+            Metrics.recordFlight(name, false);
+            return join(running, call);
+        }
+        Metrics.recordFlight(name, true);
+        try {
+            flight.result = call.call();
+            return flight.result;
+        } catch (Throwable t) {
+            flight.failure = t;
+            throw t;
+        } finally {
+            flights.remove(key, flight);
+            flight.done.countDown();
+        }
+    }
+
+    private V join(final Flight<V> flight, final Call<V, E> call) throws E {
+        try {
+            flight.done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return call.call();
+        }
+        if (flight.failure == null) {
+            return flight.result;
+        }
+        if (flight.failure instanceof RuntimeException) {
+            throw (RuntimeException) flight.failure;
+        }
+        if (flight.failure instanceof Error) {
+            throw (Error) flight.failure;
+        }
+        // The calls for a key are of the same kind, and only throw E.
+        @SuppressWarnings("unchecked")
+        E failure = (E) flight.failure;
+        throw failure;
+    }
+}
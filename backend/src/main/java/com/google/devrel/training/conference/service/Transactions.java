@@ -0,0 +1,254 @@
+/* Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+
+import com.google.api.server.spi.response.ServiceUnavailableException;
+import com.google.apphosting.api.ApiProxy;
+import com.google.common.util.concurrent.Striped;
+import com.googlecode.objectify.Work;
+
+import java.util.ConcurrentModificationException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.logging.Logger;
+
+/**
+ * Runs transactions in place of ofy().transact, which retries a transaction that lost to a
+ * concurrent one right away, and with no limit. Under a stampede that piles more load on the
+ * entity group that is already hot.
+ *
+ * Here a lost transaction is retried after a backoff drawn at random below a cap that doubles
+ * with each attempt, so that the losers spread out. Once the next retry would not start within
+ * the budget of the call, it gives up with a 503 the client can retry later. The attempts,
+ * the conflicts and the time of the transactions go to Metrics, by entity group.
+ *
+ * The requests of one instance can also take turns on a key, like the seat shard they book
+ * a seat from, with runSerialized. They then queue on a lock in the instance instead of losing
+ * to each other in the datastore, and only contend with the other instances. The lock is held
+ * for each attempt only, not while backing off.
+ */
+public class Transactions {
+
+    private static final Logger LOG = Logger.getLogger(Transactions.class.getName());
+
+    /**
+     * The time a transaction may take with its retries, by default.
+     */
+    public static final long DEFAULT_BUDGET_MILLIS = 3000;
+
+    private static final long BASE_BACKOFF_MILLIS = 20;
+
+    private static final long MAX_BACKOFF_MILLIS = 1000;
+
+    /**
+     * The time kept from the deadline of the request for the work after the transaction.
+     */
+    private static final long DEADLINE_MARGIN_MILLIS = 1000;
+
+    /**
+     * The locks of runSerialized. Keys sharing a stripe take turns too, which is rare enough
+     * with this many stripes, and the stripes not in use are collected.
+     */
+    private static final Striped<Lock> LOCKS = Striped.lazyWeakLock(1024);
+
+    /**
+     * Runs the given work in a transaction with the default budget, or in the current
+     * transaction if there is one.
+     *
+     * @param group the kind of the entity group the transaction contends on, like "SeatShard".
+     * @param work the work, which may run several times.
+     * @return the result of the work.
+     * @throws ServiceUnavailableException when the transaction kept losing until the budget
+     *     was gone.
+     */
+    public static <R> R run(final String group, final Work<R> work)
+            throws ServiceUnavailableException {
+        return run(group, DEFAULT_BUDGET_MILLIS, work);
+    }
+
+    /**
+     * Runs the given work in a transaction with the given budget, or in the current
+     * transaction if there is one.
+     *
+     * @param group the kind of the entity group the transaction contends on.
+     * @param budgetMillis the time the transaction may take with its retries.
+     * @param work the work, which may run several times.
+     * @return the result of the work.
+     * @throws ServiceUnavailableException when the transaction kept losing until the budget
+     *     was gone.
+     */
+    static <R> R run(final String group, final long budgetMillis, final Work<R> work)
+            throws ServiceUnavailableException {
+        return run(group, null, budgetMillis, work);
+    }
+
+    /**
+     * Runs the given work in a transaction with the given budget, holding the lock of the
+     * given key, if any, during each attempt.
+     */
+    private static <R> R run(final String group, final Object key, final long budgetMillis,
+            final Work<R> work) throws ServiceUnavailableException {
+        if (ofy().getTransaction() != null) {
+            // Like ofy().transact, the outer transaction retries.
+            return work.run();
+        }
+        long startNanos = System.nanoTime();
+        long deadlineNanos =
+                startNanos + TimeUnit.MILLISECONDS.toNanos(budgetMillis(budgetMillis));
+        Lock lock = key == null ? null : LOCKS.get(key);
+        int attempts = 0;
+        boolean gaveUp = false;
+        try {
+            while (true) {
+                if (lock != null && !lock(group, key, lock, deadlineNanos)) {
+                    gaveUp = true;
+                    throw new ServiceUnavailableException(
+                            "Too many concurrent requests, please try again.");
+                }
+                attempts++;
+                ConcurrentModificationException conflict;
+                try {
+                    // transactNew(n) tries n + 1 times, the retries are done here.
+                    return ofy().transactNew(0, work);
+                } catch (ConcurrentModificationException e) {
+                    conflict = e;
+                } finally {
+                    if (lock != null) {
+                        lock.unlock();
+                    }
+                }
+                Metrics.recordTransactionConflict(group, causeOf(conflict));
+                long backoffMillis = backoffMillis(attempts);
+                if (System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(backoffMillis)
+                        >= deadlineNanos) {
+                    gaveUp = true;
+                    LOG.warning(String.format("Gave up a transaction on %s after %d attempts"
+                            + " in %d ms: %s", group, attempts,
+                            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos),
+                            conflict.getMessage()));
+                    throw new ServiceUnavailableException(
+                            "Too many concurrent requests, please try again.");
+                }
+                try {
+                    Thread.sleep(backoffMillis);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    gaveUp = true;
+                    throw new ServiceUnavailableException("Interrupted, please try again.");
+                }
+            }
+        } finally {
+            Metrics.recordTransaction(group, attempts, System.nanoTime() - startNanos, gaveUp);
+        }
+    }
+
+    /**
+     * Runs the given work in a transaction with the default budget, each attempt once the
+     * other requests of the instance running a transaction on the same key are done. In the
+     * current transaction if there is one.
+     *
+     * @param group the kind of the entity group the transaction contends on.
+     * @param key the key the transactions take turns on, like the key of a seat shard.
+     * @param work the work, which may run several times.
+     * @return the result of the work.
+     * @throws ServiceUnavailableException when the budget was gone, waiting for the turn or
+     *     retrying.
+     */
+    public static <R> R runSerialized(final String group, final Object key,
+            final Work<R> work) throws ServiceUnavailableException {
+        return runSerialized(group, key, DEFAULT_BUDGET_MILLIS, work);
+    }
+
+    /**
+     * Runs the given work in a transaction with the given budget, each attempt once the
+     * other requests of the instance running a transaction on the same key are done. In the
+     * current transaction if there is one.
+     *
+     * @param group the kind of the entity group the transaction contends on.
+     * @param key the key the transactions take turns on.
+     * @param budgetMillis the time the transaction may take with the wait and its retries.
+     * @param work the work, which may run several times.
+     * @return the result of the work.
+     * @throws ServiceUnavailableException when the budget was gone, waiting for the turn or
+     *     retrying.
+     */
+    static <R> R runSerialized(final String group, final Object key, final long budgetMillis,
+            final Work<R> work) throws ServiceUnavailableException {
+        return run(group, key, budgetMillis, work);
+    }
+
+    /**
+     * Waits for the given lock until the deadline.
+     *
+     * @return true when the lock is held.
+     */
+    private static boolean lock(final String group, final Object key, final Lock lock,
+            final long deadlineNanos) {
+        long startNanos = System.nanoTime();
+        boolean locked = false;
+        try {
+            locked = lock.tryLock(Math.max(0, deadlineNanos - startNanos), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            Metrics.recordLockWait(group, System.nanoTime() - startNanos, locked);
+        }
+        if (!locked) {
+            LOG.warning(String.format("Gave up waiting for a transaction on %s of %s", group,
+                    key));
+        }
+        return locked;
+    }
+
+    /**
+     * Returns the budget left by the deadline of the request, at most the given one.
+     */
+    private static long budgetMillis(final long budgetMillis) {
+        ApiProxy.Environment environment = ApiProxy.getCurrentEnvironment();
+        if (environment == null) {
+            return budgetMillis;
+        }
+        long remainingMillis = environment.getRemainingMillis();
+        if (remainingMillis <= 0 || remainingMillis == Long.MAX_VALUE) {
+            // The environment doesn't know the deadline.
+            return budgetMillis;
+        }
+        return Math.max(0, Math.min(budgetMillis, remainingMillis - DEADLINE_MARGIN_MILLIS));
+    }
+
+    /**
+     * Returns the backoff after the given attempt, at random between 0 and a cap doubling
+     * from BASE_BACKOFF_MILLIS up to MAX_BACKOFF_MILLIS.
+     */
+    static long backoffMillis(final int attempts) {
+        long cap = Math.min(MAX_BACKOFF_MILLIS,
+                BASE_BACKOFF_MILLIS << Math.min(attempts - 1, 20));
+        return ThreadLocalRandom.current().nextLong(cap + 1);
+    }
+
+    /**
+     * Returns why a transaction lost: "contention" when the datastore refused it because of
+     * the concurrent writes to the entity group, "concurrent_modification" otherwise.
+     */
+    private static String causeOf(final ConcurrentModificationException e) {
+        String message = e.getMessage();
+        return message != null && message.contains("contention")
+                ? "contention" : "concurrent_modification";
+    }
+}
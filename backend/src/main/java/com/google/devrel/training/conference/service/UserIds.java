@@ -0,0 +1,177 @@
+/* Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.api.users.User;
+import com.google.devrel.training.conference.domain.AppEngineUser;
+import com.googlecode.objectify.Key;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Resolves the userIds of the users signed in with OAuth, whose User objects carry no userId.
+ *
+ * The datastore fills in the userId of a User when it is saved, so the mapping from e-mail
+ * address to userId is persisted as an AppEngineUser entity the first time a user signs in.
+ * It is then looked up in a small LRU cache in the instance, in memcache, and in the
+ * AppEngineUser entity, in this order, and is never written again.
+ */
+public class UserIds {
+
+    private static final String MEMCACHE_PREFIX = "USER_ID_";
+
+    /**
+     * The number of userIds cached in the instance.
+     */
+    private static final int L1_CAPACITY = 10000;
+
+    private static final Map<String, String> L1 = Collections.synchronizedMap(
+            new LinkedHashMap<String, String>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                    return size() > L1_CAPACITY;
+                }
+            });
+
+    /**
+     * Returns the userId of the given user.
+     *
+     * @param user A User object injected by the cloud endpoints.
+     * @return the App Engine userId for the user.
+     */
+    public static String resolve(final User user) {
+        if (user.getUserId() != null) {
+            return user.getUserId();
+        }
+        String userId = L1.get(user.getEmail());
+        if (userId == null) {
+            userId = resolveAll(Collections.singleton(user.getEmail()), true)
+                    .get(user.getEmail());
+        }
+        return userId;
+    }
+
+    /**
+     * Resolves the userIds of the given e-mail addresses in one batch. Only the users who have
+     * signed in before are resolved, nothing is saved for the others.
+     *
+     * @param emails the e-mail addresses.
+     * @return the userIds by e-mail address, without the e-mail addresses of unknown users.
+     */
+    public static Map<String, String> resolveAll(final Collection<String> emails) {
+        return resolveAll(emails, false);
+    }
+
+    /**
+     * Resolves the userIds of the given e-mail addresses in one batch, saving an AppEngineUser
+     * for the users seen for the first time when create is true.
+     */
+    private static Map<String, String> resolveAll(final Collection<String> emails,
+            final boolean create) {
+        Map<String, String> userIds = new HashMap<>();
+        List<String> misses = new ArrayList<>();
+        for (String email : emails) {
+            String userId = L1.get(email);
+            if (userId != null) {
+                userIds.put(email, userId);
+            } else {
+                misses.add(email);
+            }
+        }
+        if (misses.isEmpty()) {
+            return userIds;
+        }
+
+        MemcacheService memcacheService = MemcacheServiceFactory.getMemcacheService();
+        List<String> memcacheKeys = new ArrayList<>(misses.size());
+        for (String email : misses) {
+            memcacheKeys.add(MEMCACHE_PREFIX + email);
+        }
+        Map<String, Object> cached = memcacheService.getAll(memcacheKeys);
+        List<Key<AppEngineUser>> keys = new ArrayList<>();
+        for (String email : misses) {
+            String userId = (String) cached.get(MEMCACHE_PREFIX + email);
+            if (userId != null) {
+                userIds.put(email, userId);
+                L1.put(email, userId);
+            } else {
+                keys.add(Key.create(AppEngineUser.class, email));
+            }
+        }
+        if (keys.isEmpty()) {
+            return userIds;
+        }
+
+        Map<String, String> loaded = load(keys);
+        // Only the users seen for the first time are saved.
+        List<AppEngineUser> appEngineUsers = new ArrayList<>();
+        for (Key<AppEngineUser> key : keys) {
+            if (create && !loaded.containsKey(key.getName())) {
+                appEngineUsers.add(new AppEngineUser(new User(key.getName(), "gmail.com")));
+            }
+        }
+        if (!appEngineUsers.isEmpty()) {
+            ofy().save().entities(appEngineUsers).now();
+            List<Key<AppEngineUser>> savedKeys = new ArrayList<>(appEngineUsers.size());
+            for (AppEngineUser appEngineUser : appEngineUsers) {
+                savedKeys.add(appEngineUser.getKey());
+            }
+            loaded.putAll(load(savedKeys));
+        }
+        Map<String, Object> toCache = new HashMap<>();
+        for (Map.Entry<String, String> entry : loaded.entrySet()) {
+            userIds.put(entry.getKey(), entry.getValue());
+            L1.put(entry.getKey(), entry.getValue());
+            toCache.put(MEMCACHE_PREFIX + entry.getKey(), entry.getValue());
+        }
+        memcacheService.putAll(toCache);
+        return userIds;
+    }
+
+    /**
+     * Loads the userIds of the given AppEngineUsers, by e-mail address.
+     */
+    private static Map<String, String> load(final List<Key<AppEngineUser>> keys) {
+        // Begin new session for not using session cache, which holds the Users as saved.
+        Map<Key<AppEngineUser>, AppEngineUser> appEngineUsers =
+                ofy().factory().begin().load().keys(keys);
+        Map<String, String> userIds = new HashMap<>();
+        for (AppEngineUser appEngineUser : appEngineUsers.values()) {
+            if (appEngineUser.getUser().getUserId() != null) {
+                userIds.put(appEngineUser.getUser().getEmail(),
+                        appEngineUser.getUser().getUserId());
+            }
+        }
+        return userIds;
+    }
+
+    /**
+     * Drops the userIds cached in the instance, mostly for tests.
+     */
+    public static void clear() {
+        L1.clear();
+    }
+}
@@ -0,0 +1,56 @@
+/* Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.devrel.training.conference.servlet;
+
+import com.google.devrel.training.conference.domain.Announcement;
+import com.google.devrel.training.conference.service.Announcements;
+import com.google.devrel.training.conference.service.Etags;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A servlet for polling the announcement as plain text, with conditional GET. The response
+ * carries the etag of the announcement, and a request sending it back in If-None-Match gets
+ * a 304 while the announcement is unchanged. There is no content when there is no
+ * announcement.
+ */
+@SuppressWarnings("serial")
+public class AnnouncementServlet extends HttpServlet {
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        // Caches may keep the announcement, but must check it with us before using it.
+        response.setHeader("Cache-Control", "no-cache");
+        Announcement announcement = Announcements.get();
+        if (announcement == null) {
+            response.setStatus(HttpServletResponse.SC_NO_CONTENT);
+            return;
+        }
+        response.setHeader("ETag", announcement.getEtag());
+        if (Etags.matches(request.getHeader("If-None-Match"), announcement.getEtag())) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+        response.setContentType("text/plain; charset=UTF-8");
+        response.getWriter().print(announcement.getMessage());
+    }
+}
@@ -0,0 +1,119 @@
+/* Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.devrel.training.conference.servlet;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.appengine.api.users.User;
+import com.google.appengine.api.users.UserService;
+import com.google.appengine.api.users.UserServiceFactory;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.domain.Profile;
+import com.google.devrel.training.conference.domain.Registration;
+import com.google.devrel.training.conference.service.Attendees;
+import com.googlecode.objectify.Key;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A servlet for downloading the roster of a Conference as CSV. Only the organizer of the
+ * Conference and the administrators of the application can download it.
+ *
+ * The Registrations are read in chunks, and the Profiles of a chunk are written out before
+ * the next one is loaded, so the memory used doesn't grow with the size of the roster.
+ */
+@SuppressWarnings("serial")
+public class ExportAttendeesServlet extends HttpServlet {
+
+    private static final int CHUNK_SIZE = 500;
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        UserService userService = UserServiceFactory.getUserService();
+        User user = userService.getCurrentUser();
+        if (user == null) {
+            response.sendRedirect(userService.createLoginURL(request.getRequestURI() + "?"
+                    + request.getQueryString()));
+            return;
+        }
+        Key<Conference> conferenceKey;
+        try {
+            conferenceKey = Key.create(request.getParameter("websafeConferenceKey"));
+        } catch (IllegalArgumentException | NullPointerException e) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND, "No such conference");
+            return;
+        }
+        Conference conference = ofy().load().key(conferenceKey).now();
+        if (conference == null) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND, "No such conference");
+            return;
+        }
+        if (!conference.getOrganizerUserId().equals(user.getUserId())
+                && !userService.isUserAdmin()) {
+            response.sendError(HttpServletResponse.SC_FORBIDDEN,
+                    "Only the owner can see the attendees.");
+            return;
+        }
+
+        response.setContentType("text/csv; charset=UTF-8");
+        response.setHeader("Content-Disposition",
+                "attachment; filename=\"attendees-" + conference.getId() + ".csv\"");
+        PrintWriter writer = response.getWriter();
+        writer.print("displayName,mainEmail,teeShirtSize\r\n");
+        QueryResultIterator<Key<Registration>> iterator = Attendees.query(conferenceKey, null)
+                .chunk(CHUNK_SIZE).keys().iterator();
+        List<Key<Registration>> chunk = new ArrayList<>(CHUNK_SIZE);
+        while (iterator.hasNext()) {
+            chunk.add(iterator.next());
+            if (chunk.size() == CHUNK_SIZE || !iterator.hasNext()) {
+                for (Profile profile : Attendees.loadProfiles(chunk)) {
+                    writer.print(csv(profile.getDisplayName()) + ","
+                            + csv(profile.getMainEmail()) + ","
+                            + csv(String.valueOf(profile.getTeeShirtSize())) + "\r\n");
+                }
+                writer.flush();
+                chunk.clear();
+                // Profiles already written don't need to stay in the session cache.
+                ofy().clear();
+            }
+        }
+    }
+
+    /**
+     * Quotes a CSV field. Fields starting like a formula are prefixed with a quote, so that
+     * spreadsheets don't evaluate what the attendees typed in.
+     */
+    private static String csv(final String value) {
+        if (value == null) {
+            return "";
+        }
+        String field = value;
+        if (!field.isEmpty() && "=+-@".indexOf(field.charAt(0)) >= 0) {
+            field = "'" + field;
+        }
+        return "\"" + field.replace("\"", "\"\"") + "\"";
+    }
+}
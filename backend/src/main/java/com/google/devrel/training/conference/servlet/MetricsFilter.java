@@ -0,0 +1,170 @@
+/* Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.devrel.training.conference.servlet;
+
+import com.google.api.server.spi.config.ApiMethod;
+import com.google.devrel.training.conference.service.Metrics;
+import com.google.devrel.training.conference.service.MetricsDelegate;
+import com.google.devrel.training.conference.spi.ConferenceApi;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * Records the Metrics of every request, under the name of its endpoint: the API method for
+ * the Endpoints calls, the servlet path for the other servlets.
+ *
+ * It is mapped first, so that the end of the Objectify session counts in the request.
+ */
+public class MetricsFilter implements Filter {
+
+    /**
+     * The servlet path of the SystemServiceServlet, the Endpoints calls come in under it.
+     */
+    private static final String SPI_PATH = "/_ah/spi";
+
+    /**
+     * The endpoint of the requests no servlet served, kept apart so that random paths
+     * don't make new endpoints.
+     */
+    private static final String UNKNOWN_ENDPOINT = "unknown";
+
+    /**
+     * The names of the API methods, only these make endpoints of the Endpoints calls.
+     */
+    private static final Set<String> API_METHODS = apiMethods(ConferenceApi.class);
+
+    /**
+     * Remembers the status of the response, which the Servlet 2.5 API can't tell.
+     */
+    private static class StatusResponse extends HttpServletResponseWrapper {
+        private int status = SC_OK;
+
+        private StatusResponse(final HttpServletResponse response) {
+            super(response);
+        }
+
+        @Override
+        public void setStatus(final int sc) {
+            status = sc;
+            super.setStatus(sc);
+        }
+
+        @Override
+        @SuppressWarnings("deprecation")
+        public void setStatus(final int sc, final String sm) {
+            status = sc;
+            super.setStatus(sc, sm);
+        }
+
+        @Override
+        public void sendError(final int sc) throws IOException {
+            status = sc;
+            super.sendError(sc);
+        }
+
+        @Override
+        public void sendError(final int sc, final String msg) throws IOException {
+            status = sc;
+            super.sendError(sc, msg);
+        }
+
+        @Override
+        public void sendRedirect(final String location) throws IOException {
+            status = SC_FOUND;
+            super.sendRedirect(location);
+        }
+    }
+
+    @Override
+    public void init(final FilterConfig filterConfig) throws ServletException {
+        MetricsDelegate.install();
+    }
+
+    @Override
+    public void doFilter(final ServletRequest request, final ServletResponse response,
+            final FilterChain chain) throws IOException, ServletException {
+        if (!(request instanceof HttpServletRequest)) {
+            chain.doFilter(request, response);
+            return;
+        }
+        HttpServletRequest httpRequest = (HttpServletRequest) request;
+        StatusResponse statusResponse = new StatusResponse((HttpServletResponse) response);
+        Metrics.RequestCounts counts = Metrics.start();
+        long startNanos = System.nanoTime();
+        boolean failed = true;
+        try {
+            chain.doFilter(request, statusResponse);
+            failed = false;
+        } finally {
+            int status = failed ? HttpServletResponse.SC_INTERNAL_SERVER_ERROR
+                    : statusResponse.status;
+            Metrics.record(endpointOf(httpRequest, status), status,
+                    System.nanoTime() - startNanos, counts);
+        }
+    }
+
+    @Override
+    public void destroy() {
+        MetricsDelegate.uninstall();
+    }
+
+    /**
+     * Returns the name of the endpoint that served the given request, like
+     * "ConferenceApi.getConference" or "/tasks/process_reservations".
+     */
+    static String endpointOf(final HttpServletRequest request, final int status) {
+        String servletPath = request.getServletPath();
+        if (status == HttpServletResponse.SC_NOT_FOUND || servletPath == null
+                || servletPath.isEmpty()) {
+            return UNKNOWN_ENDPOINT;
+        }
+        if (SPI_PATH.equals(servletPath)) {
+            if (request.getPathInfo() == null) {
+                return UNKNOWN_ENDPOINT;
+            }
+            // The path info is "/<service class>.<method>".
+            String name = request.getPathInfo().substring(1);
+            int method = name.lastIndexOf('.');
+            name = name.substring(name.lastIndexOf('.', method - 1) + 1);
+            return API_METHODS.contains(name) ? name : UNKNOWN_ENDPOINT;
+        }
+        return servletPath;
+    }
+
+    private static Set<String> apiMethods(final Class<?> api) {
+        Set<String> names = new HashSet<>();
+        for (Method method : api.getDeclaredMethods()) {
+            if (method.isAnnotationPresent(ApiMethod.class)) {
+                names.add(api.getSimpleName() + "." + method.getName());
+            }
+        }
+        return Collections.unmodifiableSet(names);
+    }
+}
@@ -0,0 +1,69 @@
+/* Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.devrel.training.conference.servlet;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.devrel.training.conference.domain.Profile;
+import com.google.devrel.training.conference.service.Registrations;
+import com.googlecode.objectify.cmd.Query;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A servlet for migrating the registrations of every Profile into Registration entities,
+ * so that the rosters of the Conferences are complete. Each request migrates a batch of
+ * Profiles, and queues the next batch with its cursor.
+ */
+@SuppressWarnings("serial")
+public class MigrateRegistrationsServlet extends HttpServlet {
+
+    private static final int BATCH_SIZE = 100;
+
+    @Override
+    protected void doPost(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        Query<Profile> query = ofy().load().type(Profile.class).limit(BATCH_SIZE);
+        String cursor = request.getParameter("cursor");
+        if (cursor != null) {
+            query = query.startAt(Cursor.fromWebSafeString(cursor));
+        }
+        QueryResultIterator<Profile> iterator = query.iterator();
+        int count = 0;
+        while (iterator.hasNext()) {
+            Profile profile = iterator.next();
+            if (!profile.getLegacyConferenceKeysToAttend().isEmpty()) {
+                Registrations.migrateIfNeeded(profile.getUserId());
+            }
+            count++;
+        }
+        if (count == BATCH_SIZE) {
+            QueueFactory.getDefaultQueue().add(TaskOptions.Builder
+                    .withUrl("/tasks/migrate_registrations")
+                    .param("cursor", iterator.getCursor().toWebSafeString()));
+        }
+        response.setStatus(204);
+    }
+}
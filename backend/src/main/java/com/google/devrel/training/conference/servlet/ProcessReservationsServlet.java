@@ -0,0 +1,43 @@
+/* Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.devrel.training.conference.servlet;
+
+import com.google.devrel.training.conference.domain.Reservation;
+import com.google.devrel.training.conference.service.ReservationProcessor;
+import com.googlecode.objectify.Key;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A servlet for committing pending Reservations from the registration-queue.
+ */
+@SuppressWarnings("serial")
+public class ProcessReservationsServlet extends HttpServlet {
+
+    @Override
+    protected void doPost(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        Key<Reservation> reservationKey =
+                Key.create(request.getParameter("websafeReservationKey"));
+        ReservationProcessor.process(reservationKey);
+        response.setStatus(204);
+    }
+}
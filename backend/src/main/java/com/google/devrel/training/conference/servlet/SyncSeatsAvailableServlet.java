@@ -0,0 +1,71 @@
+/* Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.devrel.training.conference.servlet;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.service.ConferenceQueryCache;
+import com.google.devrel.training.conference.service.SeatInventory;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.VoidWork;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A servlet for writing the seats available counted over the SeatShards back to the
+ * Conference entity, so that queries on seatsAvailable keep working.
+ *
+ * It also puts back the seats of an update lowering maxAttendees that died after taking them
+ * out of the SeatShards, see SeatInventory.startSeatsRemoval.
+ */
+@SuppressWarnings("serial")
+public class SyncSeatsAvailableServlet extends HttpServlet {
+
+    @Override
+    protected void doPost(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        final Key<Conference> conferenceKey =
+                Key.create(request.getParameter("websafeConferenceKey"));
+        Conference conference = ofy().load().key(conferenceKey).now();
+        if (conference != null && SeatInventory.reconcileSeatsRemoval(conference)) {
+            ofy().clear();
+            conference = ofy().load().key(conferenceKey).now();
+        }
+        if (conference != null) {
+            // Count outside of the transaction, so that it doesn't enlist the shards.
+            final int seatsAvailable = SeatInventory.countSeatsAvailable(conference);
+            ofy().transact(new VoidWork() {
+                @Override
+                public void vrun() {
+                    Conference conference = ofy().load().key(conferenceKey).now();
+                    if (seatsAvailable <= conference.getMaxAttendees()) {
+                        conference.syncSeatsAvailable(seatsAvailable);
+                        ofy().save().entity(conference).now();
+                    }
+                }
+            });
+            // Queries on seatsAvailable now read the new count.
+            ConferenceQueryCache.seatsChanged();
+        }
+        response.setStatus(204);
+    }
+}
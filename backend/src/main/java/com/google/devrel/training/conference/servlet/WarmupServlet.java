@@ -0,0 +1,44 @@
+/* Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.devrel.training.conference.servlet;
+
+import com.google.devrel.training.conference.service.ConferenceIndex;
+import com.google.devrel.training.conference.service.ConferenceQueryCache;
+import com.google.devrel.training.conference.service.ConferenceTextIndex;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A servlet for warmup requests, building the ConferenceIndex and the ConferenceTextIndex
+ * before a new instance serves queries.
+ */
+@SuppressWarnings("serial")
+public class WarmupServlet extends HttpServlet {
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        long generation = ConferenceQueryCache.generation();
+        ConferenceIndex.rebuild(generation);
+        ConferenceTextIndex.rebuild(generation);
+        response.setStatus(204);
+    }
+}
@@ -23,33 +23,63 @@ import com.google.api.server.spi.config.ApiMethod;
 import com.google.api.server.spi.config.ApiMethod.HttpMethod;
 import com.google.api.server.spi.config.ApiNamespace;
 import com.google.api.server.spi.config.Named;
+import com.google.api.server.spi.config.Nullable;
+import com.google.api.server.spi.response.BadRequestException;
+import com.google.api.server.spi.response.CollectionResponse;
 import com.google.api.server.spi.response.ConflictException;
 import com.google.api.server.spi.response.ForbiddenException;
 import com.google.api.server.spi.response.NotFoundException;
+import com.google.api.server.spi.response.ServiceUnavailableException;
 import com.google.api.server.spi.response.UnauthorizedException;
-import com.google.appengine.api.memcache.MemcacheService;
-import com.google.appengine.api.memcache.MemcacheServiceFactory;
-import com.google.appengine.api.taskqueue.Queue;
-import com.google.appengine.api.taskqueue.QueueFactory;
-import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.appengine.api.oauth.OAuthRequestException;
+import com.google.appengine.api.oauth.OAuthServiceFactory;
 import com.google.appengine.api.users.User;
 import com.google.devrel.training.conference.Constants;
 import com.google.devrel.training.conference.domain.Announcement;
-import com.google.devrel.training.conference.domain.AppEngineUser;
 import com.google.devrel.training.conference.domain.Conference;
 import com.google.devrel.training.conference.domain.Profile;
+import com.google.devrel.training.conference.domain.Registration;
+import com.google.devrel.training.conference.domain.Reservation;
+import com.google.devrel.training.conference.domain.Reservation.Action;
+import com.google.devrel.training.conference.domain.SeatShard;
 import com.google.devrel.training.conference.form.ConferenceForm;
 import com.google.devrel.training.conference.form.ConferenceQueryForm;
+import com.google.devrel.training.conference.form.ConferenceQueryForm.Filter;
 import com.google.devrel.training.conference.form.ProfileForm;
+import com.google.devrel.training.conference.form.RegistrationBatchForm;
 import com.google.devrel.training.conference.form.ProfileForm.TeeShirtSize;
+import com.google.devrel.training.conference.service.Announcements;
+import com.google.devrel.training.conference.service.Attendees;
+import com.google.devrel.training.conference.service.ConferenceIndex;
+import com.google.devrel.training.conference.service.ConferenceQueryCache;
+import com.google.devrel.training.conference.service.ConferenceTextIndex;
+import com.google.devrel.training.conference.service.ConfirmationEmails;
+import com.google.devrel.training.conference.service.Etags;
+import com.google.devrel.training.conference.service.NearlySoldOut;
+import com.google.devrel.training.conference.service.OrganizerDisplayNames;
+import com.google.devrel.training.conference.service.Profiles;
+import com.google.devrel.training.conference.service.Registrations;
+import com.google.devrel.training.conference.service.ReservationProcessor;
+import com.google.devrel.training.conference.service.SeatInventory;
+import com.google.devrel.training.conference.service.SingleFlight;
+import com.google.devrel.training.conference.service.Transactions;
+import com.google.devrel.training.conference.service.UserIds;
 import com.googlecode.objectify.Key;
-import com.googlecode.objectify.Objectify;
+import com.googlecode.objectify.VoidWork;
 import com.googlecode.objectify.Work;
 import com.googlecode.objectify.cmd.Query;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * Defines conference APIs.
@@ -77,6 +107,31 @@ import java.util.List;
         )
 )
 public class ConferenceApi {
+
+    /**
+     * The maximum number of attendees of a group booking.
+     */
+    private static final int MAX_REGISTRATION_BATCH_SIZE = 100;
+
+    /**
+     * The number of Profiles updated per transaction of a group booking. A cross group
+     * transaction can operate on five entity groups.
+     */
+    private static final int REGISTRATION_BATCH_CHUNK_SIZE = 5;
+
+    /**
+     * Coalesces the concurrent getConference calls of the instance, by Conference.
+     */
+    private static final SingleFlight<Key<Conference>, Conference, NotFoundException>
+            CONFERENCE_FLIGHTS = new SingleFlight<>("getConference");
+
+    /**
+     * Coalesces the concurrent identical queryConferences calls of the instance, by the key
+     * of their page in the ConferenceQueryCache.
+     */
+    private static final SingleFlight<String, CollectionResponse<Conference>,
+            BadRequestException> QUERY_FLIGHTS = new SingleFlight<>("queryConferences");
+
     /*
      * Get the display name from the user's email. For example, if the email is
      * lemoncake@example.com, then the display name becomes "lemoncake."
@@ -87,8 +142,7 @@ public class ConferenceApi {
 
     private static Profile getProfileFromUser(User user, String userId) {
         // First fetch it from the datastore.
-        Profile profile = ofy().load().key(
-                Key.create(Profile.class, userId)).now();
+        Profile profile = Profiles.get(userId);
         if (profile == null) {
             // Create a new Profile if not exist.
             String email = user.getEmail();
@@ -103,16 +157,29 @@ public class ConferenceApi {
      * @return the App Engine userId for the user.
      */
     private static String getUserId(User user) {
-        String userId = user.getUserId();
-        if (null == userId) {
-            AppEngineUser appEngineUser = new AppEngineUser(user);
-            ofy().save().entity(appEngineUser).now();
-            // Begin new session for not using session cache.
-            Objectify objectify = ofy().factory().begin();
-            AppEngineUser savedUser = objectify.load().key(appEngineUser.getKey()).now();
-            userId = savedUser.getUser().getUserId();
+        return UserIds.resolve(user);
+    }
+
+    /**
+     * Resolves the userIds of the given e-mail addresses in one batch, the same way as
+     * getUserId, but only for the users who have signed in before.
+     *
+     * @param emails the e-mail addresses.
+     * @return the userIds by e-mail address, without the e-mail addresses of unknown users.
+     */
+    private static Map<String, String> getUserIds(Collection<String> emails) {
+        return UserIds.resolveAll(emails);
+    }
+
+    /**
+     * Returns true when the user signed in with OAuth is an administrator of the application.
+     */
+    private static boolean isAdmin() {
+        try {
+            return OAuthServiceFactory.getOAuthService().isUserAdmin(Constants.EMAIL_SCOPE);
+        } catch (OAuthRequestException e) {
+            return false;
         }
-        return userId;
     }
 
     /**
@@ -145,6 +212,90 @@ public class ConferenceApi {
         }
     }
 
+    /**
+     * The outcome of a group booking.
+     */
+    public static class RegistrationBatchResult {
+
+        private final List<String> registered;
+        private final List<String> alreadyRegistered;
+        private final List<String> unknown;
+
+        public RegistrationBatchResult(List<String> registered, List<String> alreadyRegistered,
+                List<String> unknown) {
+            this.registered = registered;
+            this.alreadyRegistered = alreadyRegistered;
+            this.unknown = unknown;
+        }
+
+        /**
+         * Returns the e-mail addresses of the attendees registered by the booking.
+         * @return the e-mail addresses of the attendees registered by the booking.
+         */
+        public List<String> getRegistered() {
+            return registered;
+        }
+
+        /**
+         * Returns the e-mail addresses of the attendees who were registered already.
+         * @return the e-mail addresses of the attendees who were registered already.
+         */
+        public List<String> getAlreadyRegistered() {
+            return alreadyRegistered;
+        }
+
+        /**
+         * Returns the e-mail addresses of the attendees without a Profile, who have to sign
+         * in before they can be registered.
+         * @return the e-mail addresses of the attendees without a Profile.
+         */
+        public List<String> getUnknown() {
+            return unknown;
+        }
+    }
+
+    /**
+     * The answer to a conditional read of Conferences.
+     *
+     * Endpoints can't answer 304 Not Modified, so an unchanged answer is an instance without
+     * the items, which skips their serialization and most of the payload.
+     */
+    public static class ConditionalConferences {
+
+        private final Boolean modified;
+        private final String etag;
+        private final Collection<Conference> items;
+        private final String nextPageToken;
+
+        public ConditionalConferences(String etag, Collection<Conference> items,
+                String nextPageToken, String ifNoneMatch) {
+            this.modified = !Etags.matches(ifNoneMatch, etag);
+            this.etag = etag;
+            this.items = modified ? items : null;
+            this.nextPageToken = nextPageToken;
+        }
+
+        /**
+         * Returns false when the client has the current version, and the items are left out.
+         * @return false when the client has the current version.
+         */
+        public Boolean getModified() {
+            return modified;
+        }
+
+        public String getEtag() {
+            return etag;
+        }
+
+        public Collection<Conference> getItems() {
+            return items;
+        }
+
+        public String getNextPageToken() {
+            return nextPageToken;
+        }
+    }
+
     /**
      * A wrapper class that can embrace a generic result or some kind of exception.
      *
@@ -217,10 +368,7 @@ public class ConferenceApi {
             throw new UnauthorizedException("Authorization required");
         }
 
-        String userId = user.getUserId();
-        Key key = Key.create(Profile.class, userId);
-        Profile profile = (Profile) ofy().load().key(key).now();
-        return profile;
+        return Profiles.get(getUserId(user));
     }
 
     /**
@@ -244,35 +392,48 @@ public class ConferenceApi {
             teeShirtSize = profileForm.getTeeShirtSize();
         }
 
-        String displayName = profileForm.getDisplayName();
+        final String displayName = profileForm.getDisplayName();
 
-        String mainEmail = user.getEmail();
+        final String mainEmail = user.getEmail();
 
-        // Get the Profile from the datastore if it exists
-        // otherwise create a new one
-        Profile profile = ofy().load().key(Key.create(Profile.class, getUserId(user))).now();
+        final String userId = getUserId(user);
 
-        if (null == profile) {
-            // Populate the displayName and teeShirtSize with default values
-            // if not sent in request
-            if (null == displayName) {
-                displayName = extractDefaultDisplayNameFromEmail(mainEmail);
-            }
+        final TeeShirtSize size = teeShirtSize;
+        // Save the entity in the database, and rewrite the display name on the user's
+        // Conferences in the background. The Profile is read in the transaction, so that
+        // a concurrent change is not overwritten with a cached copy.
+        Profile profile = ofy().transact(new Work<Profile>() {
+            @Override
+            public Profile run() {
+                // Get the Profile from the datastore if it exists
+                // otherwise create a new one
+                Profile profile = Profiles.get(userId);
+                boolean renamed = profile != null && null != displayName
+                        && !displayName.equals(profile.getDisplayName());
+
+                if (null == profile) {
+                    // Populate the displayName with the default value if not sent in request
+                    String name = displayName;
+                    if (null == name) {
+                        name = extractDefaultDisplayNameFromEmail(mainEmail);
+                    }
+
+                    // Now create a new Profile entity
+                    profile = new Profile(userId, name, mainEmail, size);
+                } else {
+                    // The Profile entity already exists
+                    // Update the Profile entity
+                    profile.update(displayName, size);
+                }
 
-            if (null == teeShirtSize) {
-                teeShirtSize = TeeShirtSize.NOT_SPECIFIED;
+                ofy().save().entity(profile).now();
+                if (renamed) {
+                    OrganizerDisplayNames.enqueueUpdate(userId);
+                }
+                return profile;
             }
-
-            // Now create a new Profile entity
-            profile = new Profile(getUserId(user), displayName, mainEmail, teeShirtSize);
-        } else {
-            // The Profile entity already exists
-            // Update the Profile entity
-            profile.update(displayName, teeShirtSize);
-        }
-
-        // Save the entity in the database
-        ofy().save().entity(profile).now();
+        });
+        Profiles.invalidate(userId);
 
         // Return the profile
         return profile;
@@ -285,10 +446,11 @@ public class ConferenceApi {
      * @param conferenceForm A ConferenceForm object representing user's inputs.
      * @return A newly created Conference Object.
      * @throws UnauthorizedException when the user is not signed in.
+     * @throws ServiceUnavailableException when the transaction kept losing to concurrent ones.
      */
     @ApiMethod(name = "createConference", path = "conference", httpMethod = HttpMethod.POST)
     public Conference createConference(final User user, final ConferenceForm conferenceForm)
-            throws UnauthorizedException {
+            throws UnauthorizedException, ServiceUnavailableException {
         if (null == user) {
             throw new UnauthorizedException("Authorization required");
         }
@@ -301,24 +463,29 @@ public class ConferenceApi {
 
         final long conferenceId = conferenceKey.getId();
 
-        final Queue queue = QueueFactory.getQueue("default");
-
         // Start a transaction
-        Conference conference = ofy().transact(new Work<Conference>() {
+        Conference conference = Transactions.run("Profile", new Work<Conference>() {
             @Override
             public Conference run() {
                 // Fetch user's profile.
                 Profile profile = getProfileFromUser(user, userId);
                 Conference conference = new Conference(conferenceId, userId, conferenceForm);
+                conference.setOrganizerDisplayName(profile.getDisplayName());
+                // Split the seats across the shards.
+                SeatInventory.initialize(conference);
                 // Save Conference and Profile.
                 ofy().save().entities(conference, profile).now();
-                queue.add(ofy().getTransaction(),
-                        TaskOptions.Builder.withUrl("/tasks/send_confirmation_email")
-                        .param("email", profile.getMainEmail())
-                        .param("conferenceInfo", conference.toString()));
+                ConfirmationEmails.enqueue(profile.getMainEmail(), conference.toString());
                 return conference;
             }
         });
+        Profiles.invalidate(userId);
+        ConfirmationEmails.kick();
+        long generation = ConferenceQueryCache.invalidate();
+        ConferenceIndex.conferenceChanged(conference, generation);
+        ConferenceTextIndex.conferenceChanged(conference, generation);
+        // A small Conference is nearly sold out from the start.
+        NearlySoldOut.seatsChanged(conferenceKey, (long) conference.getSeatsAvailable());
 
         return conference;
     }
@@ -333,6 +500,7 @@ public class ConferenceApi {
      * @throws UnauthorizedException when the user is not signed in.
      * @throws NotFoundException when there is no Conference with the given conferenceId.
      * @throws ForbiddenException when the user is not the owner of the Conference.
+     * @throws ServiceUnavailableException when the transaction kept losing to concurrent ones.
      */
     @ApiMethod(
             name = "updateConference",
@@ -341,58 +509,175 @@ public class ConferenceApi {
     )
     public Conference updateConference(final User user, final ConferenceForm conferenceForm,
             @Named("websafeConferenceKey") final String websafeConferenceKey)
-            throws UnauthorizedException, NotFoundException, ForbiddenException, ConflictException {
+            throws UnauthorizedException, NotFoundException, ForbiddenException, ConflictException,
+            ServiceUnavailableException {
         if (user == null) {
             throw new UnauthorizedException("Authorization required");
         }
 
-        // TODO
         // Get the user ID.
-        final String userId = null;
+        final String userId = getUserId(user);
 
-        TxResult<Conference> result = ofy().transact(new Work<TxResult<Conference>>() {
+        // Get the conference key -- you can get it from websafeConferenceKey
+        // Will throw ForbiddenException if the key cannot be created
+        final Key<Conference> conferenceKey;
+        try {
+            conferenceKey = Key.create(websafeConferenceKey);
+        } catch (IllegalArgumentException e) {
+            throw new ForbiddenException("Invalid conference key: " + websafeConferenceKey);
+        }
+
+        final Conference loaded = ofy().load().key(conferenceKey).now();
+        if (null == loaded) {
+            throw new NotFoundException("No Conference found with key: " + websafeConferenceKey);
+        }
+        if (!loaded.getOrganizerUserId().equals(userId)) {
+            throw new ForbiddenException("Only the owner can update the conference.");
+        }
+        // The seats of a Conference created before the inventory was sharded are counted on
+        // the Conference, shard them so that the seats removed below are taken from them.
+        final Conference current = SeatInventory.shardIfNeeded(loaded);
+
+        // Seats removed from the capacity are taken from the shards before the transaction,
+        // since they can be spread over more shards than a transaction can touch. The removal
+        // is recorded on the Conference first, so that SyncSeatsAvailableServlet puts the
+        // seats back when this request dies before the update.
+        final int seatsRemoved = Math.max(0,
+                current.getMaxAttendees() - conferenceForm.getMaxAttendees());
+        final long removalStartMillis = seatsRemoved > 0 ? System.currentTimeMillis() : 0;
+        if (seatsRemoved > 0) {
+            Work<TxResult<Boolean>> startRemoval = new Work<TxResult<Boolean>>() {
+                @Override
+                public TxResult<Boolean> run() {
+                    Conference conference = ofy().load().key(conferenceKey).now();
+                    if (null == conference) {
+                        return new TxResult<>(new NotFoundException(
+                                "No Conference found with key: " + websafeConferenceKey));
+                    }
+                    if (conference.getMaxAttendees() != current.getMaxAttendees()
+                            || conference.getSeatsBeingRemoved() != 0) {
+                        return new TxResult<>(new ConflictException(
+                                "The conference is being updated meanwhile."));
+                    }
+                    SeatInventory.startSeatsRemoval(conference, seatsRemoved,
+                            removalStartMillis);
+                    ofy().save().entity(conference).now();
+                    return new TxResult<>(true);
+                }
+            };
+            Transactions.run("Conference", startRemoval).getResult();
+            if (!SeatInventory.removeSeats(current, seatsRemoved)) {
+                putBackSeats(conferenceKey, current, 0, removalStartMillis);
+                throw new ConflictException("Too many seats are already allocated to set "
+                        + "maxAttendees to " + conferenceForm.getMaxAttendees());
+            }
+        }
+
+        Work<TxResult<Conference>> update = new Work<TxResult<Conference>>() {
             @Override
             public TxResult<Conference> run() {
-                // TODO
-                // Get the conference key -- you can get it from websafeConferenceKey
-                // Will throw ForbiddenException if the key cannot be created
-                Key<Conference> conferenceKey = null;
-
-                // TODO
                 // Get the Conference entity from the datastore
-                Conference conference = null;
+                Conference conference = ofy().load().key(conferenceKey).now();
+                if (null == conference) {
+                    return new TxResult<>(new NotFoundException(
+                            "No Conference found with key: " + websafeConferenceKey));
+                }
 
-                // TODO
                 // Get the user's Profile entity
-                Profile profile = null;
+                Profile profile = ofy().load().key(Key.create(Profile.class, userId)).now();
 
-                // TODO
                 // Check if user is the conference owner.
+                if (null == profile || !conference.getOrganizerUserId().equals(userId)) {
+                    return new TxResult<>(
+                            new ForbiddenException("Only the owner can update the conference."));
+                }
+                if (conference.getMaxAttendees() != current.getMaxAttendees()
+                        || conference.getSeatsRemovalStartMillis() != removalStartMillis) {
+                    return new TxResult<>(
+                            new ConflictException("The conference has been updated meanwhile."));
+                }
 
-                // TODO
                 // Update the conference with the conferenceForm sent from the client.
-                return null;
+                // The seats available are counted over the shards first, since the snapshot
+                // on the Conference may lag behind the registrations. The removed seats
+                // still count as available until the new maxAttendees is saved.
+                conference.syncSeatsAvailable(
+                        SeatInventory.countSeatsAvailable(conference) + seatsRemoved);
+                try {
+                    conference.updateWithConferenceForm(conferenceForm);
+                } catch (IllegalArgumentException e) {
+                    return new TxResult<>(new ConflictException(e.getMessage()));
+                }
+                SeatInventory.addSeats(conference,
+                        Math.max(0, conference.getMaxAttendees() - current.getMaxAttendees()));
+                conference.endSeatsRemoval();
+                ofy().save().entity(conference).now();
+                conference.setOrganizerDisplayName(profile.getDisplayName());
+                return new TxResult<>(conference);
             }
-        });
+        };
+        TxResult<Conference> result;
+        try {
+            result = Transactions.run("Conference", update);
+        } catch (ServiceUnavailableException e) {
+            putBackSeats(conferenceKey, current, seatsRemoved, removalStartMillis);
+            throw e;
+        }
 
-        return result.getResult();
+        try {
+            Conference conference = result.getResult();
+            SeatInventory.seatsChanged(conferenceKey,
+                    conference.getMaxAttendees() - current.getMaxAttendees());
+            NearlySoldOut.conferenceChanged(conference);
+            long generation = ConferenceQueryCache.invalidate();
+            ConferenceIndex.conferenceChanged(conference, generation);
+            ConferenceTextIndex.conferenceChanged(conference, generation);
+            return conference;
+        } catch (ConflictException | ForbiddenException | NotFoundException e) {
+            putBackSeats(conferenceKey, current, seatsRemoved, removalStartMillis);
+            throw e;
+        }
     }
 
+    /**
+     * Puts back the seats removed from the shards by an update that failed, the capacity is
+     * unchanged, and ends the removal recorded on the Conference in the same transaction.
+     */
+    private static void putBackSeats(final Key<Conference> conferenceKey,
+            final Conference conference, final int seatsRemoved, final long removalStartMillis) {
+        if (removalStartMillis == 0) {
+            return;
+        }
+        ofy().transact(new VoidWork() {
+            @Override
+            public void vrun() {
+                Conference current = ofy().load().key(conferenceKey).now();
+                if (current == null
+                        || current.getSeatsRemovalStartMillis() != removalStartMillis) {
+                    // Reconciled meanwhile.
+                    return;
+                }
+                SeatInventory.addSeats(conference, seatsRemoved);
+                current.endSeatsRemoval();
+                ofy().save().entity(current).now();
+            }
+        });
+    }
+
+    /**
+     * Returns the announcement of the nearly sold out Conferences, from a copy in the
+     * instance. Clients polling it can use the /announcement servlet instead, which answers
+     * with 304 when the etag they send still matches.
+     *
+     * @return the announcement, or null when there is none.
+     */
     @ApiMethod(
             name = "getAnnouncement",
             path = "announcement",
             httpMethod = HttpMethod.GET
     )
     public Announcement getAnnouncement() {
-        MemcacheService memcacheService = MemcacheServiceFactory.getMemcacheService();
-        String announcementKey = Constants.MEMCACHE_ANNOUNCEMENTS_KEY;
-        Object message = memcacheService.get(announcementKey);
-
-        if (null != message) {
-            return new Announcement(message.toString());
-        }
-
-        return null;
+        return Announcements.get();
     }
 
     /**
@@ -410,12 +695,45 @@ public class ConferenceApi {
     public Conference getConference(
             @Named("websafeConferenceKey") final String websafeConferenceKey)
             throws NotFoundException {
-        Key<Conference> conferenceKey = Key.create(websafeConferenceKey);
-        Conference conference = ofy().load().key(conferenceKey).now();
-        if (null == conference) {
-            throw new NotFoundException("No Conference found with key: " + websafeConferenceKey);
-        }
-        return conference;
+        final Key<Conference> conferenceKey = Key.create(websafeConferenceKey);
+        // The requests for a Conference that is shared around arrive together, one of them
+        // reads it for all. The Conference returned is shared, so it is only read from here.
+        return CONFERENCE_FLIGHTS.run(conferenceKey,
+                new SingleFlight.Call<Conference, NotFoundException>() {
+                    @Override
+                    public Conference call() throws NotFoundException {
+                        Conference conference = ofy().load().key(conferenceKey).now();
+                        if (null == conference) {
+                            throw new NotFoundException(
+                                    "No Conference found with key: " + websafeConferenceKey);
+                        }
+                        SeatInventory.getSeatsAvailable(conference);
+                        OrganizerDisplayNames.resolve(conference);
+                        return conference;
+                    }
+                });
+    }
+
+    /**
+     * Returns the Conference with the given key, unless the client has the current version.
+     *
+     * @param websafeConferenceKey The String representation of the Conference Key.
+     * @param ifNoneMatch the etag of the version the client has, may be null.
+     * @return the Conference as the only item, or no items when it didn't change.
+     * @throws NotFoundException when there is no Conference with the given key.
+     */
+    @ApiMethod(
+            name = "getConferenceIfModified",
+            path = "conference/{websafeConferenceKey}/ifModified",
+            httpMethod = HttpMethod.GET
+    )
+    public ConditionalConferences getConferenceIfModified(
+            @Named("websafeConferenceKey") final String websafeConferenceKey,
+            @Named("ifNoneMatch") @Nullable final String ifNoneMatch)
+            throws NotFoundException {
+        Conference conference = getConference(websafeConferenceKey);
+        return new ConditionalConferences(conference.getEtag(),
+                Collections.singletonList(conference), null, ifNoneMatch);
     }
 
     /**
@@ -437,47 +755,312 @@ public class ConferenceApi {
             throw new UnauthorizedException("Authorization required");
         }
 
-        Profile profile = ofy().load().key(Key.create(Profile.class, user.getUserId())).now();
+        Profile profile = Profiles.get(getUserId(user));
         if (profile == null) {
             throw new NotFoundException("Profile doesn't exist.");
         }
 
-        List<String> keyStringsToAttend = profile.getConferenceKeysToAttend();
+        Registrations.migrateIfNeeded(profile.getUserId());
+        List<Key<Conference>> keysToAttend = Registrations.getConferenceKeys(profile.getUserId());
+        // One batch, looked up in memcache first, only the misses are read from the datastore.
+        Collection<Conference> conferences = ofy().load().keys(keysToAttend).values();
+        SeatInventory.refreshSeatsAvailable(conferences);
+        OrganizerDisplayNames.resolve(conferences);
+        return conferences;
+    }
 
-        List<Key<Conference>> keysToAttend = new ArrayList<>();
-        for (String keyString : keyStringsToAttend) {
-            keysToAttend.add(Key.<Conference>create(keyString));
-        }
-        return ofy().load().keys(keysToAttend).values();
+    /**
+     * Returns the Conferences that the user is going to attend, unless the client has the
+     * current version of the list.
+     *
+     * @param user An user who invokes this method, null when the user is not signed in.
+     * @param ifNoneMatch the etag of the list the client has, may be null.
+     * @return the Conferences, or no items when none of them changed.
+     * @throws UnauthorizedException when the User object is null.
+     */
+    @ApiMethod(
+            name = "getConferencesToAttendIfModified",
+            path = "getConferencesToAttend/ifModified",
+            httpMethod = HttpMethod.GET
+    )
+    public ConditionalConferences getConferencesToAttendIfModified(final User user,
+            @Named("ifNoneMatch") @Nullable final String ifNoneMatch)
+            throws UnauthorizedException, NotFoundException {
+        Collection<Conference> conferences = getConferencesToAttend(user);
+        return new ConditionalConferences(Etags.combine(conferences, null), conferences, null,
+                ifNoneMatch);
     }
 
     /**
-     * Queries against the datastore with the given filters and returns the result.
+     * Queries against the datastore with the given filters and returns a page of the result.
      *
      * Normally this kind of method is supposed to get invoked by a GET HTTP method,
      * but we do it with POST, in order to receive conferenceQueryForm Object via the POST body.
+     * Queries with TEXT filters are answered by searchConferences.
      *
-     * @param conferenceQueryForm A form object representing the query.
-     * @return A List of Conferences that match the query.
+     * @param conferenceQueryForm A form object representing the query and the page.
+     * @return A page of Conferences that match the query, with the nextPageToken for the
+     *     next page when there may be more.
+     * @throws BadRequestException when the filters or the cursor are not valid.
      */
     @ApiMethod(
             name = "queryConferences",
             path = "queryConferences",
             httpMethod = HttpMethod.POST
     )
-    public List<Conference> queryConferences(ConferenceQueryForm conferenceQueryForm) {
-        Iterable<Conference> conferenceIterable = conferenceQueryForm.getQuery();
-        List<Conference> result = new ArrayList<>(0);
-        List<Key<Profile>> organizersKeyList = new ArrayList<>(0);
+    public CollectionResponse<Conference> queryConferences(
+            final ConferenceQueryForm conferenceQueryForm) throws BadRequestException {
+        if (hasTextQuery(conferenceQueryForm)) {
+            return searchConferences(conferenceQueryForm);
+        }
+        final long generation = ConferenceQueryCache.generation();
+        final String key = ConferenceQueryCache.getKey(generation, conferenceQueryForm);
+        // Identical queries running together share one run, and its response.
+        return QUERY_FLIGHTS.run(key,
+                new SingleFlight.Call<CollectionResponse<Conference>, BadRequestException>() {
+                    @Override
+                    public CollectionResponse<Conference> call() throws BadRequestException {
+                        return queryConferences(conferenceQueryForm, generation, key);
+                    }
+                });
+    }
+
+    /**
+     * Answers queryConferences for a query without TEXT filters, caching the page under the
+     * given key of the ConferenceQueryCache.
+     */
+    private CollectionResponse<Conference> queryConferences(
+            final ConferenceQueryForm conferenceQueryForm, final long generation,
+            final String key) throws BadRequestException {
+        List<Conference> result = new ArrayList<>(conferenceQueryForm.getLimit());
+        if (conferenceQueryForm.hasMultipleInequalityFields()) {
+            return searchIndex(conferenceQueryForm, generation, result);
+        }
+        // Pages are cached as key lists, the Conferences are loaded through Objectify's cache.
+        ConferenceQueryCache.Page page = ConferenceQueryCache.get(key);
+        if (page == null) {
+            page = runQuery(conferenceQueryForm, result);
+            ConferenceQueryCache.put(key, page);
+        } else {
+            loadInOrder(page.getWebsafeConferenceKeys(), result);
+        }
+        SeatInventory.refreshSeatsAvailable(result);
+        // Conferences saved before the display name was denormalized fetch it in one batch.
+        OrganizerDisplayNames.resolve(result);
+
+        return CollectionResponse.<Conference>builder()
+                .setItems(result)
+                .setNextPageToken(page.getNextPageToken())
+                .build();
+    }
+
+    /**
+     * Answers queryConferences unless the client has the current version of the page.
+     *
+     * @param conferenceQueryForm A form object representing the query and the page.
+     * @param ifNoneMatch the etag of the page the client has, may be null.
+     * @return the page, without the items when none of them changed.
+     * @throws BadRequestException when the filters or the cursor are not valid.
+     */
+    @ApiMethod(
+            name = "queryConferencesIfModified",
+            path = "queryConferences/ifModified",
+            httpMethod = HttpMethod.POST
+    )
+    public ConditionalConferences queryConferencesIfModified(
+            ConferenceQueryForm conferenceQueryForm,
+            @Named("ifNoneMatch") @Nullable final String ifNoneMatch)
+            throws BadRequestException {
+        CollectionResponse<Conference> page = queryConferences(conferenceQueryForm);
+        return new ConditionalConferences(
+                Etags.combine(page.getItems(), page.getNextPageToken()), page.getItems(),
+                page.getNextPageToken(), ifNoneMatch);
+    }
+
+    /**
+     * Searches Conferences by the words of their name, description and topics, best matches
+     * first. The words are given as TEXT filters, the other filters narrow the matches down.
+     *
+     * @param conferenceQueryForm A form object with at least one TEXT filter, and the page.
+     * @return A page of the matching Conferences, with the nextPageToken for the next page
+     *     when there are more matches.
+     * @throws BadRequestException when there is no TEXT filter, or the filters or the cursor
+     *     are not valid.
+     */
+    @ApiMethod(
+            name = "searchConferences",
+            path = "searchConferences",
+            httpMethod = HttpMethod.POST
+    )
+    public CollectionResponse<Conference> searchConferences(
+            ConferenceQueryForm conferenceQueryForm) throws BadRequestException {
+        if (!hasTextQuery(conferenceQueryForm)) {
+            throw new BadRequestException("A TEXT filter is required.");
+        }
+        final List<Filter> filters = conferenceQueryForm.getFilters();
+        // The other filters are checked on the Conferences as the page fills, those loaded
+        // for the check make the page.
+        final Map<String, Conference> loaded = new HashMap<>();
+        ConferenceTextIndex.Matcher matcher = new ConferenceTextIndex.Matcher() {
+            @Override
+            public List<String> retain(final List<String> websafeConferenceKeys) {
+                List<Conference> candidates = new ArrayList<>(websafeConferenceKeys.size());
+                loadInOrder(websafeConferenceKeys, candidates);
+                SeatInventory.refreshSeatsAvailable(candidates);
+                List<String> retained = new ArrayList<>(candidates.size());
+                for (Conference conference : candidates) {
+                    if (ConferenceIndex.matches(conference, filters)) {
+                        loaded.put(conference.getWebsafeKey(), conference);
+                        retained.add(conference.getWebsafeKey());
+                    }
+                }
+                return retained;
+            }
+        };
+        ConferenceTextIndex.Page page;
+        try {
+            page = ConferenceTextIndex.search(conferenceQueryForm.getTextQuery(),
+                    ConferenceQueryCache.generation(), conferenceQueryForm.getCursor(),
+                    conferenceQueryForm.getLimit(), matcher);
+        } catch (IllegalArgumentException e) {
+            throw new BadRequestException(e.getMessage());
+        }
+        List<Conference> result = new ArrayList<>(conferenceQueryForm.getLimit());
+        for (String websafeConferenceKey : page.getWebsafeConferenceKeys()) {
+            result.add(loaded.get(websafeConferenceKey));
+        }
+        OrganizerDisplayNames.resolve(result);
+
+        return CollectionResponse.<Conference>builder()
+                .setItems(result)
+                .setNextPageToken(page.getNextPageToken())
+                .build();
+    }
+
+    private static boolean hasTextQuery(final ConferenceQueryForm conferenceQueryForm)
+            throws BadRequestException {
+        try {
+            return conferenceQueryForm.getTextQuery() != null;
+        } catch (IllegalArgumentException e) {
+            throw new BadRequestException(e.getMessage());
+        }
+    }
+
+    /**
+     * Answers a query with inequality filters on several fields from the ConferenceIndex.
+     * When the index is cold or stale, a rebuild is scheduled and the datastore query on the
+     * first inequality field is filtered in memory meanwhile, which may return short pages.
+     * The page tokens of the index and of the datastore don't mix.
+     */
+    private static CollectionResponse<Conference> searchIndex(
+            final ConferenceQueryForm conferenceQueryForm, final long generation,
+            final List<Conference> result) throws BadRequestException {
+        String pageToken = conferenceQueryForm.getCursor();
+        String nextPageToken;
+        if (pageToken == null || ConferenceIndex.isIndexToken(pageToken)) {
+            ConferenceIndex.Page page;
+            try {
+                page = ConferenceIndex.search(conferenceQueryForm.getFilters(), generation,
+                        pageToken, conferenceQueryForm.getLimit());
+            } catch (IllegalArgumentException e) {
+                throw new BadRequestException(e.getMessage());
+            }
+            if (page != null) {
+                loadInOrder(page.getWebsafeConferenceKeys(), result);
+                nextPageToken = page.getNextPageToken();
+            } else if (pageToken != null) {
+                // Following pages are only served by the index, which this instance lacks.
+                throw new BadRequestException("Expired cursor: " + pageToken);
+            } else {
+                ConferenceIndex.scheduleRebuild();
+                nextPageToken = runQuery(conferenceQueryForm, result).getNextPageToken();
+            }
+        } else {
+            nextPageToken = runQuery(conferenceQueryForm, result).getNextPageToken();
+        }
+        SeatInventory.refreshSeatsAvailable(result);
+        // The index may lag behind the seats and the updates of other instances.
+        Iterator<Conference> iterator = result.iterator();
+        while (iterator.hasNext()) {
+            if (!ConferenceIndex.matches(iterator.next(), conferenceQueryForm.getFilters())) {
+                iterator.remove();
+            }
+        }
+        OrganizerDisplayNames.resolve(result);
+
+        return CollectionResponse.<Conference>builder()
+                .setItems(result)
+                .setNextPageToken(nextPageToken)
+                .build();
+    }
 
-        for (Conference conference : conferenceIterable) {
-            organizersKeyList.add(Key.create(Profile.class, conference.getOrganizerUserId()));
-            result.add(conference);
+    /**
+     * Batch loads the Conferences of the given keys into the given result, in order.
+     */
+    private static void loadInOrder(final List<String> websafeConferenceKeys,
+            final List<Conference> result) {
+        List<Key<Conference>> keys = new ArrayList<>();
+        for (String websafeConferenceKey : websafeConferenceKeys) {
+            keys.add(Key.<Conference>create(websafeConferenceKey));
+        }
+        Map<Key<Conference>, Conference> conferences = ofy().load().keys(keys);
+        for (Key<Conference> key : keys) {
+            // A Conference may be gone since the keys were read.
+            if (conferences.containsKey(key)) {
+                result.add(conferences.get(key));
+            }
+        }
+    }
+
+    /**
+     * Runs the given query, adding the Conferences to the given result.
+     *
+     * @return the page of the keys of the result.
+     */
+    private static ConferenceQueryCache.Page runQuery(
+            final ConferenceQueryForm conferenceQueryForm, final List<Conference> result)
+            throws BadRequestException {
+        List<String> websafeConferenceKeys = new ArrayList<>(conferenceQueryForm.getLimit());
+        Cursor cursor;
+        try {
+            if (ConferenceQueryForm.isKeysOnly()) {
+                // Hot Conferences are in memcache, so only the keys are read from the datastore.
+                QueryResultIterator<Key<Conference>> iterator =
+                        conferenceQueryForm.getQuery().keys().iterator();
+                List<Key<Conference>> keys = new ArrayList<>(conferenceQueryForm.getLimit());
+                while (iterator.hasNext()) {
+                    keys.add(iterator.next());
+                }
+                cursor = iterator.getCursor();
+                Map<Key<Conference>, Conference> conferences = ofy().load().keys(keys);
+                for (Key<Conference> key : keys) {
+                    if (conferences.containsKey(key)) {
+                        result.add(conferences.get(key));
+                    }
+                    websafeConferenceKeys.add(key.getString());
+                }
+            } else {
+                QueryResultIterator<Conference> iterator =
+                        conferenceQueryForm.getQuery().iterator();
+                while (iterator.hasNext()) {
+                    Conference conference = iterator.next();
+                    result.add(conference);
+                    websafeConferenceKeys.add(conference.getWebsafeKey());
+                }
+                cursor = iterator.getCursor();
+            }
+        } catch (IllegalArgumentException e) {
+            // The filters are not feasible, or the cursor doesn't match the query.
+            throw new BadRequestException(e.getMessage());
         }
 
-        // To avoid separate datastore gets for each Conference, pre-fetch the Profiles.
-        ofy().load().keys(organizersKeyList);
-        return result;
+        // A full page may be followed by more Conferences. The datastore runs a query with a
+        // != filter as several queries, which have no cursor, so it only has a first page.
+        String nextPageToken = null;
+        if (websafeConferenceKeys.size() == conferenceQueryForm.getLimit() && cursor != null) {
+            nextPageToken = cursor.toWebSafeString();
+        }
+        return new ConferenceQueryCache.Page(websafeConferenceKeys, nextPageToken);
     }
 
     /**
@@ -501,7 +1084,11 @@ public class ConferenceApi {
 
         Key<Profile> userKey = Key.create(Profile.class, getUserId(user));
 
-        return ofy().load().type(Conference.class).ancestor(userKey).order("name").list();
+        List<Conference> conferences =
+                ofy().load().type(Conference.class).ancestor(userKey).order("name").list();
+        SeatInventory.refreshSeatsAvailable(conferences);
+        OrganizerDisplayNames.resolve(conferences);
+        return conferences;
     }
 
     /**
@@ -512,6 +1099,7 @@ public class ConferenceApi {
      * @return Boolean true when success, otherwise false
      * @throws UnauthorizedException when the user is not signed in.
      * @throws NotFoundException when there is no Conference with the given conferenceId.
+     * @throws ServiceUnavailableException when the transaction kept losing to concurrent ones.
      */
     @ApiMethod(
             name = "registerForConference",
@@ -520,48 +1108,142 @@ public class ConferenceApi {
     )
     public WrappedBoolean registerForConference(final User user,
                                                 @Named("websafeConferenceKey") final String websafeConferenceKey)
-            throws ConflictException, ForbiddenException, NotFoundException, UnauthorizedException {
+            throws ConflictException, ForbiddenException, NotFoundException, UnauthorizedException,
+            ServiceUnavailableException {
         if (null == user) {
             throw new UnauthorizedException("Authorization required");
         }
 
         // Get the userId
-        final String userId = user.getUserId();
+        final String userId = getUserId(user);
 
-        TxResult<Boolean> result = ofy().transact(new Work<TxResult<Boolean>>() {
+        // Load the Conference outside of the transaction, so that its entity group is not
+        // enlisted. Only the Profile and a seat shard are written.
+        final Key<Conference> conferenceKey = Key.create(websafeConferenceKey);
+        final Conference conference = ofy().load().key(conferenceKey).now();
+        if (null == conference) {
+            throw new NotFoundException("No Conference found with key: " + websafeConferenceKey);
+        }
+
+        // The seat shards are the hot entity groups when a Conference opens. The registrations
+        // of the instance booking from the same shard take turns on it, instead of colliding
+        // in the datastore.
+        final int shard = SeatInventory.pickShard(conference);
+        Work<TxResult<Boolean>> register = new Work<TxResult<Boolean>>() {
             @Override
             public TxResult<Boolean> run() {
-                Key<Conference> conferenceKey = Key.create(websafeConferenceKey);
-
-                Conference conference = ofy().load().key(conferenceKey).now();
-
                 Profile profile = getProfileFromUser(user, userId);
 
-                if (null == conference) {
-                    String message = "No Conference found with key: " + websafeConferenceKey;
-                    return new TxResult<>(new NotFoundException(message));
-                } else if (profile.getConferenceKeysToAttend().contains(websafeConferenceKey)) {
+                if (Registrations.isRegistered(profile, websafeConferenceKey)) {
                     String message = "You have already registered for this conference";
                     return new TxResult<>(new ConflictException(message));
-                } else if (conference.getSeatsAvailable() <= 0) {
+                } else if (!SeatInventory.bookSeat(conference, shard)) {
                     String message = "There are no seats available.";
                     return new TxResult<>(new ConflictException(message));
                 } else {
-                    // All looks good, go ahead and book the seat
-
-                    profile.addToConferenceKeysToAttend(websafeConferenceKey);
+                    // All looks good, the seat is booked
 
-                    conference.bookSeats(1);
+                    Registrations.register(userId, websafeConferenceKey);
+                    Registrations.migrate(profile);
 
-                    ofy().save().entities(profile, conference).now();
+                    ofy().save().entity(profile).now();
 
                     // We are booked!
                     return new TxResult<>(true);
                 }
             }
-        });
+        };
+        TxResult<Boolean> result = Transactions.runSerialized("SeatShard",
+                SeatShard.createKey(conferenceKey, shard), register);
+        Profiles.invalidate(userId);
+
+        WrappedBoolean booked = new WrappedBoolean(result.getResult());
+        SeatInventory.seatsChanged(conferenceKey, -1);
+        return booked;
+    }
 
-        return new WrappedBoolean(result.getResult());
+    /**
+     * Returns the registration of the user for the specified Conference.
+     *
+     * @param user An user who invokes this method, null when the user is not signed in.
+     * @param websafeConferenceKey The String representation of the Conference Key.
+     * @return the Registration.
+     * @throws UnauthorizedException when the user is not signed in.
+     * @throws NotFoundException when the user is not registered for the Conference.
+     */
+    @ApiMethod(
+            name = "getRegistration",
+            path = "conference/{websafeConferenceKey}/registration",
+            httpMethod = HttpMethod.GET
+    )
+    public Registration getRegistration(final User user,
+            @Named("websafeConferenceKey") final String websafeConferenceKey)
+            throws NotFoundException, UnauthorizedException {
+        if (user == null) {
+            throw new UnauthorizedException("Authorization required");
+        }
+        String userId = getUserId(user);
+        Registrations.migrateIfNeeded(userId);
+        Registration registration =
+                ofy().load().key(Registration.createKey(userId, websafeConferenceKey)).now();
+        if (registration == null) {
+            throw new NotFoundException("You are not registered for this conference");
+        }
+        return registration;
+    }
+
+    /**
+     * Returns a page of the Profiles of the users registered for the specified Conference.
+     * Only the organizer can see them.
+     *
+     * @param user A user who invokes this method, null when the user is not signed in.
+     * @param websafeConferenceKey The String representation of the Conference Key.
+     * @param cursor The nextPageToken of the previous page, or null for the first page.
+     * @param limit The number of attendees in the page, Attendees.DEFAULT_LIMIT when null.
+     * @return A page of the attendees, with the nextPageToken for the next page when there
+     *     may be more.
+     * @throws UnauthorizedException when the user is not signed in.
+     * @throws NotFoundException when there is no Conference with the given key.
+     * @throws ForbiddenException when the user is not the organizer of the Conference.
+     * @throws BadRequestException when the cursor is not valid.
+     */
+    @ApiMethod(
+            name = "getAttendees",
+            path = "conference/{websafeConferenceKey}/attendees",
+            httpMethod = HttpMethod.GET
+    )
+    public CollectionResponse<Profile> getAttendees(final User user,
+            @Named("websafeConferenceKey") final String websafeConferenceKey,
+            @Named("cursor") @Nullable final String cursor,
+            @Named("limit") @Nullable final Integer limit)
+            throws UnauthorizedException, NotFoundException, ForbiddenException,
+            BadRequestException {
+        if (user == null) {
+            throw new UnauthorizedException("Authorization required");
+        }
+        Key<Conference> conferenceKey;
+        try {
+            conferenceKey = Key.create(websafeConferenceKey);
+        } catch (IllegalArgumentException e) {
+            throw new NotFoundException("No Conference found with key: " + websafeConferenceKey);
+        }
+        Conference conference = ofy().load().key(conferenceKey).now();
+        if (conference == null) {
+            throw new NotFoundException("No Conference found with key: " + websafeConferenceKey);
+        }
+        if (!conference.getOrganizerUserId().equals(getUserId(user))) {
+            throw new ForbiddenException("Only the owner can see the attendees.");
+        }
+        Attendees.Page page;
+        try {
+            page = Attendees.getPage(conferenceKey, cursor, limit);
+        } catch (IllegalArgumentException e) {
+            throw new BadRequestException(e.getMessage());
+        }
+        return CollectionResponse.<Profile>builder()
+                .setItems(page.getProfiles())
+                .setNextPageToken(page.getNextPageToken())
+                .build();
     }
 
     /**
@@ -573,6 +1255,7 @@ public class ConferenceApi {
      * @return Boolean true when success, otherwise false.
      * @throws UnauthorizedException when the user is not signed in.
      * @throws NotFoundException when there is no Conference with the given conferenceId.
+     * @throws ServiceUnavailableException when the transaction kept losing to concurrent ones.
      */
     @ApiMethod(
             name = "unregisterFromConference",
@@ -581,18 +1264,20 @@ public class ConferenceApi {
     )
     public WrappedBoolean unregisterFromConference(final User user,
             @Named("websafeConferenceKey") final String websafeConferenceKey)
-            throws UnauthorizedException, NotFoundException, ForbiddenException, ConflictException {
+            throws UnauthorizedException, NotFoundException, ForbiddenException, ConflictException,
+            ServiceUnavailableException {
         // If not signed in, throw a 401 error.
         if (user == null) {
             throw new UnauthorizedException("Authorization required");
         }
 
         final String userId = getUserId(user);
-        WrappedBoolean result = ofy().transact(new Work<WrappedBoolean>() {
+        final Key<Conference> conferenceKey = Key.create(websafeConferenceKey);
+        final Conference conference = ofy().load().key(conferenceKey).now();
+        final int shard = conference == null ? 0 : SeatInventory.pickShard(conference);
+        Work<WrappedBoolean> unregister = new Work<WrappedBoolean>() {
             @Override
             public WrappedBoolean run() {
-                Key<Conference> conferenceKey = Key.create(websafeConferenceKey);
-                Conference conference = ofy().load().key(conferenceKey).now();
                 // 404 when there is no Conference with the given conferenceId.
                 if (conference == null) {
                     return new  WrappedBoolean(false,
@@ -601,16 +1286,20 @@ public class ConferenceApi {
 
                 // Un-registering from the Conference.
                 Profile profile = getProfileFromUser(user, userId);
-                if (profile.getConferenceKeysToAttend().contains(websafeConferenceKey)) {
-                    profile.unregisterFromConference(websafeConferenceKey);
-                    conference.giveBackSeats(1);
-                    ofy().save().entities(profile, conference).now();
+                if (Registrations.isRegistered(profile, websafeConferenceKey)) {
+                    Registrations.unregister(profile, websafeConferenceKey);
+                    Registrations.migrate(profile);
+                    SeatInventory.giveBackSeat(conference, shard);
+                    ofy().save().entity(profile).now();
                     return new WrappedBoolean(true);
                 } else {
                     return new WrappedBoolean(false, "You are not registered for this conference");
                 }
             }
-        });
+        };
+        WrappedBoolean result = Transactions.runSerialized("SeatShard",
+                SeatShard.createKey(conferenceKey, shard), unregister);
+        Profiles.invalidate(userId);
         // if result is false
         if (!result.getResult()) {
             if (result.getReason().contains("No Conference found with key")) {
@@ -620,7 +1309,277 @@ public class ConferenceApi {
                 throw new ForbiddenException(result.getReason());
             }
         }
+        SeatInventory.seatsChanged(conferenceKey, 1);
         // NotFoundException is actually thrown here.
         return new WrappedBoolean(result.getResult());
     }
+
+    /**
+     * Registers a group of attendees for the specified Conference in one request.
+     *
+     * The seats of the whole group are booked first, all or none, in transactions on the seat
+     * shards only. The Profiles are then updated in cross group transactions of
+     * REGISTRATION_BATCH_CHUNK_SIZE Profiles each, and the seats of attendees who turn out to
+     * be registered already are given back. Only the organizer of the Conference and the
+     * administrators of the application can book for a group, and only attendees who have a
+     * Profile are registered.
+     *
+     * @param user An user who invokes this method, null when the user is not signed in.
+     * @param websafeConferenceKey The String representation of the Conference Key.
+     * @param registrationBatchForm The e-mail addresses of the attendees.
+     * @return the attendees registered, those who were registered already, and those
+     *     without a Profile.
+     * @throws UnauthorizedException when the user is not signed in.
+     * @throws BadRequestException when there are no attendees or too many of them.
+     * @throws NotFoundException when there is no Conference with the given conferenceId.
+     * @throws ForbiddenException when the user is neither the organizer nor an administrator.
+     * @throws ConflictException when there are not enough seats for the group.
+     * @throws ServiceUnavailableException when the transactions kept losing to concurrent
+     *     ones.
+     */
+    @ApiMethod(
+            name = "registerBatch",
+            path = "conference/{websafeConferenceKey}/registrations",
+            httpMethod = HttpMethod.POST
+    )
+    public RegistrationBatchResult registerBatch(final User user,
+            @Named("websafeConferenceKey") final String websafeConferenceKey,
+            final RegistrationBatchForm registrationBatchForm)
+            throws BadRequestException, ConflictException, ForbiddenException, NotFoundException,
+            UnauthorizedException, ServiceUnavailableException {
+        if (user == null) {
+            throw new UnauthorizedException("Authorization required");
+        }
+        List<String> emails = registrationBatchForm.getEmails();
+        if (emails == null || emails.isEmpty()) {
+            throw new BadRequestException("At least one attendee is required.");
+        }
+        Set<String> uniqueEmails = new LinkedHashSet<>(emails);
+        if (uniqueEmails.size() > MAX_REGISTRATION_BATCH_SIZE) {
+            throw new BadRequestException("At most " + MAX_REGISTRATION_BATCH_SIZE
+                    + " attendees can be registered at once.");
+        }
+        final Key<Conference> conferenceKey = Key.create(websafeConferenceKey);
+        final Conference conference = ofy().load().key(conferenceKey).now();
+        if (conference == null) {
+            throw new NotFoundException("No Conference found with key: " + websafeConferenceKey);
+        }
+        if (!conference.getOrganizerUserId().equals(getUserId(user)) && !isAdmin()) {
+            throw new ForbiddenException("Only the owner can register a group.");
+        }
+
+        // Attendees registered already don't need a seat, unknown ones don't get one.
+        final Map<String, String> userIds = getUserIds(uniqueEmails);
+        List<Key<Profile>> profileKeys = new ArrayList<>(userIds.size());
+        List<Key<Registration>> registrationKeys = new ArrayList<>(userIds.size());
+        for (String userId : userIds.values()) {
+            profileKeys.add(Key.create(Profile.class, userId));
+            registrationKeys.add(Registration.createKey(userId, websafeConferenceKey));
+        }
+        Map<Key<Profile>, Profile> profiles = ofy().load().keys(profileKeys);
+        Map<Key<Registration>, Registration> registrations = ofy().load().keys(registrationKeys);
+        List<String> newcomers = new ArrayList<>();
+        List<String> alreadyRegistered = new ArrayList<>();
+        List<String> unknown = new ArrayList<>();
+        for (String email : uniqueEmails) {
+            String userId = userIds.get(email);
+            Profile profile = userId == null ? null
+                    : profiles.get(Key.create(Profile.class, userId));
+            if (profile == null) {
+                unknown.add(email);
+            } else if (registrations.containsKey(
+                    Registration.createKey(userId, websafeConferenceKey))
+                    || profile.getLegacyConferenceKeysToAttend().contains(websafeConferenceKey)) {
+                alreadyRegistered.add(email);
+            } else {
+                newcomers.add(email);
+            }
+        }
+
+        if (!SeatInventory.bookSeatsInTransactions(conference, newcomers.size())) {
+            throw new ConflictException("There are not enough seats available.");
+        }
+        List<String> registered = new ArrayList<>(newcomers.size());
+        try {
+            for (int i = 0; i < newcomers.size(); i += REGISTRATION_BATCH_CHUNK_SIZE) {
+                final List<String> chunk = newcomers.subList(i,
+                        Math.min(newcomers.size(), i + REGISTRATION_BATCH_CHUNK_SIZE));
+                registered.addAll(Transactions.run("Profile", new Work<List<String>>() {
+                    @Override
+                    public List<String> run() {
+                        List<Key<Profile>> keys = new ArrayList<>(chunk.size());
+                        for (String email : chunk) {
+                            keys.add(Key.create(Profile.class, userIds.get(email)));
+                        }
+                        Map<Key<Profile>, Profile> profiles = ofy().load().keys(keys);
+                        List<String> chunkRegistered = new ArrayList<>(chunk.size());
+                        List<Profile> toSave = new ArrayList<>(chunk.size());
+                        for (String email : chunk) {
+                            String userId = userIds.get(email);
+                            Profile profile = profiles.get(Key.create(Profile.class, userId));
+                            if (profile == null
+                                    || Registrations.isRegistered(profile, websafeConferenceKey)) {
+                                // Deleted or registered concurrently.
+                                continue;
+                            }
+                            Registrations.register(userId, websafeConferenceKey);
+                            Registrations.migrate(profile);
+                            toSave.add(profile);
+                            chunkRegistered.add(email);
+                        }
+                        ofy().save().entities(toSave).now();
+                        return chunkRegistered;
+                    }
+                }));
+            }
+        } finally {
+            Profiles.invalidate(userIds.values());
+            // Give back the seats of the attendees registered concurrently, or of the chunks
+            // that failed.
+            SeatInventory.giveBackSeatsInTransactions(conference,
+                    newcomers.size() - registered.size());
+            if (!registered.isEmpty()) {
+                SeatInventory.seatsChanged(conferenceKey, -registered.size());
+            }
+        }
+        for (String email : newcomers) {
+            if (!registered.contains(email)) {
+                alreadyRegistered.add(email);
+            }
+        }
+        return new RegistrationBatchResult(registered, alreadyRegistered, unknown);
+    }
+
+    /**
+     * Requests a registration for the specified Conference, which is committed asynchronously
+     * through the registration-queue.
+     *
+     * @param user An user who invokes this method, null when the user is not signed in.
+     * @param websafeConferenceKey The String representation of the Conference Key.
+     * @return the pending Reservation, whose websafeKey is the ticket for polling the outcome.
+     * @throws UnauthorizedException when the user is not signed in.
+     * @throws NotFoundException when there is no Conference with the given conferenceId.
+     * @throws ConflictException when the user is registered or a Reservation is pending.
+     */
+    @ApiMethod(
+            name = "registerForConferenceAsync",
+            path = "conference/{websafeConferenceKey}/reservation",
+            httpMethod = HttpMethod.POST
+    )
+    public Reservation registerForConferenceAsync(final User user,
+            @Named("websafeConferenceKey") final String websafeConferenceKey)
+            throws ConflictException, ForbiddenException, NotFoundException, UnauthorizedException {
+        return reserve(user, websafeConferenceKey, Action.REGISTER);
+    }
+
+    /**
+     * Requests an unregistration from the specified Conference, which is committed
+     * asynchronously through the registration-queue.
+     *
+     * @param user An user who invokes this method, null when the user is not signed in.
+     * @param websafeConferenceKey The String representation of the Conference Key.
+     * @return the pending Reservation, whose websafeKey is the ticket for polling the outcome.
+     * @throws UnauthorizedException when the user is not signed in.
+     * @throws NotFoundException when there is no Conference with the given conferenceId.
+     * @throws ForbiddenException when the user is not registered for the Conference.
+     * @throws ConflictException when a Reservation is pending.
+     */
+    @ApiMethod(
+            name = "unregisterFromConferenceAsync",
+            path = "conference/{websafeConferenceKey}/reservation",
+            httpMethod = HttpMethod.DELETE
+    )
+    public Reservation unregisterFromConferenceAsync(final User user,
+            @Named("websafeConferenceKey") final String websafeConferenceKey)
+            throws ConflictException, ForbiddenException, NotFoundException, UnauthorizedException {
+        return reserve(user, websafeConferenceKey, Action.UNREGISTER);
+    }
+
+    /**
+     * Returns the Reservation with the given ticket, for polling its outcome.
+     *
+     * @param user An user who invokes this method, null when the user is not signed in.
+     * @param websafeReservationKey The ticket returned when the Reservation was requested.
+     * @return the Reservation.
+     * @throws UnauthorizedException when the user is not signed in.
+     * @throws ForbiddenException when the Reservation belongs to another user.
+     * @throws NotFoundException when there is no Reservation with the given ticket.
+     */
+    @ApiMethod(
+            name = "getReservation",
+            path = "reservation/{websafeReservationKey}",
+            httpMethod = HttpMethod.GET
+    )
+    public Reservation getReservation(final User user,
+            @Named("websafeReservationKey") final String websafeReservationKey)
+            throws UnauthorizedException, ForbiddenException, NotFoundException {
+        if (user == null) {
+            throw new UnauthorizedException("Authorization required");
+        }
+        Key<Reservation> reservationKey;
+        try {
+            reservationKey = Key.create(websafeReservationKey);
+        } catch (IllegalArgumentException e) {
+            throw new NotFoundException("No Reservation found with key: " + websafeReservationKey);
+        }
+        if (!Reservation.class.getSimpleName().equals(reservationKey.getKind())) {
+            throw new NotFoundException("No Reservation found with key: " + websafeReservationKey);
+        }
+        if (!getUserId(user).equals(reservationKey.getParent().getName())) {
+            throw new ForbiddenException("Only the owner can see the Reservation.");
+        }
+        Reservation reservation = ofy().load().key(reservationKey).now();
+        if (reservation == null) {
+            throw new NotFoundException("No Reservation found with key: " + websafeReservationKey);
+        }
+        return reservation;
+    }
+
+    /**
+     * Saves a pending Reservation and enqueues its task in the same transaction, on the entity
+     * group of the user's Profile.
+     */
+    private Reservation reserve(final User user, final String websafeConferenceKey,
+            final Action action)
+            throws ConflictException, ForbiddenException, NotFoundException, UnauthorizedException {
+        if (user == null) {
+            throw new UnauthorizedException("Authorization required");
+        }
+        final String userId = getUserId(user);
+        final Key<Conference> conferenceKey = Key.create(websafeConferenceKey);
+        if (ofy().load().key(conferenceKey).now() == null) {
+            throw new NotFoundException("No Conference found with key: " + websafeConferenceKey);
+        }
+
+        TxResult<Reservation> result = ofy().transact(new Work<TxResult<Reservation>>() {
+            @Override
+            public TxResult<Reservation> run() {
+                Reservation pending = ofy().load()
+                        .key(Reservation.createKey(userId, websafeConferenceKey)).now();
+                if (pending != null && pending.isPending()) {
+                    return new TxResult<>(new ConflictException(
+                            "A reservation for this conference is already pending"));
+                }
+
+                Profile profile = getProfileFromUser(user, userId);
+                boolean registered = Registrations.isRegistered(profile, websafeConferenceKey);
+                if (action == Action.REGISTER && registered) {
+                    return new TxResult<>(new ConflictException(
+                            "You have already registered for this conference"));
+                } else if (action == Action.UNREGISTER && !registered) {
+                    return new TxResult<>(new ForbiddenException(
+                            "You are not registered for this conference"));
+                }
+
+                Reservation reservation = new Reservation(userId, websafeConferenceKey, action);
+                // The processor needs the Profile of a new user.
+                Registrations.migrate(profile);
+                ofy().save().entities(profile, reservation).now();
+                ReservationProcessor.enqueue(reservation);
+                return new TxResult<>(reservation);
+            }
+        });
+        Profiles.invalidate(userId);
+        return result.getResult();
+    }
 }
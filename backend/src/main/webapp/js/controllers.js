@@ -264,7 +264,9 @@ conferenceApp.controllers.controller('ShowConferenceCtrl', function ($scope, $lo
         {enumValue: 'CITY', displayName: 'City'},
         {enumValue: 'TOPIC', displayName: 'Topic'},
         {enumValue: 'MONTH', displayName: 'Start month'},
-        {enumValue: 'MAX_ATTENDEES', displayName: 'Max Attendees'}
+        {enumValue: 'MAX_ATTENDEES', displayName: 'Max Attendees'},
+        {enumValue: 'SEATS_AVAILABLE', displayName: 'Seats Available'},
+        {enumValue: 'TEXT', displayName: 'Text'}
     ]
 
     /**
@@ -287,6 +289,12 @@ conferenceApp.controllers.controller('ShowConferenceCtrl', function ($scope, $lo
      */
     $scope.conferences = [];
 
+    /**
+     * Holds the token for the next page of the conferences queried, null when there are no more.
+     * @type {string}
+     */
+    $scope.nextPageToken = null;
+
     /**
      * Holds the state if offcanvas is enabled.
      *
@@ -408,6 +416,7 @@ conferenceApp.controllers.controller('ShowConferenceCtrl', function ($scope, $lo
      */
     $scope.queryConferences = function () {
         $scope.submitted = false;
+        $scope.nextPageToken = null;
         if ($scope.selectedTab == 'ALL') {
             $scope.queryConferencesAll();
         } else if ($scope.selectedTab == 'YOU_HAVE_CREATED') {
@@ -419,10 +428,17 @@ conferenceApp.controllers.controller('ShowConferenceCtrl', function ($scope, $lo
 
     /**
      * Invokes the conference.queryConferences API.
+     *
+     * @param pageToken the nextPageToken of the previous page, to append the next page of the
+     *     conferences. The first page replaces the conferences when not specified.
      */
-    $scope.queryConferencesAll = function () {
+    $scope.queryConferencesAll = function (pageToken) {
         var sendFilters = {
-            filters: []
+            filters: [],
+            limit: $scope.pagination.pageSize
+        }
+        if (pageToken) {
+            sendFilters.cursor = pageToken;
         }
         for (var i = 0; i < $scope.filters.length; i++) {
             var filter = $scope.filters[i];
@@ -434,8 +450,14 @@ conferenceApp.controllers.controller('ShowConferenceCtrl', function ($scope, $lo
                 });
             }
         }
+        // A refresh of the first page sends the etag of the page shown, the items are only
+        // sent back when it changed.
+        var filtersKey = JSON.stringify(sendFilters);
+        if (!pageToken && $scope.firstPage && $scope.firstPage.filtersKey == filtersKey) {
+            sendFilters.ifNoneMatch = $scope.firstPage.etag;
+        }
         $scope.loading = true;
-        gapi.client.conference.queryConferences(sendFilters).
+        gapi.client.conference.queryConferencesIfModified(sendFilters).
             execute(function (resp) {
                 $scope.$apply(function () {
                     $scope.loading = false;
@@ -452,10 +474,19 @@ conferenceApp.controllers.controller('ShowConferenceCtrl', function ($scope, $lo
                         $scope.alertStatus = 'success';
                         $log.info($scope.messages);
 
-                        $scope.conferences = [];
-                        angular.forEach(resp.items, function (conference) {
-                            $scope.conferences.push(conference);
-                        });
+                        if (!pageToken) {
+                            if (resp.modified) {
+                                $scope.firstPage = {filtersKey: filtersKey, etag: resp.etag,
+                                    items: resp.items || []};
+                            }
+                            $scope.conferences = $scope.firstPage.items.slice();
+                            $scope.pagination.currentPage = 0;
+                        } else {
+                            angular.forEach(resp.items, function (conference) {
+                                $scope.conferences.push(conference);
+                            });
+                        }
+                        $scope.nextPageToken = resp.nextPageToken || null;
                     }
                     $scope.submitted = true;
                 });
@@ -505,7 +536,11 @@ conferenceApp.controllers.controller('ShowConferenceCtrl', function ($scope, $lo
      */
     $scope.getConferencesAttend = function () {
         $scope.loading = true;
-        gapi.client.conference.getConferencesToAttend().
+        var request = {};
+        if ($scope.attending) {
+            request.ifNoneMatch = $scope.attending.etag;
+        }
+        gapi.client.conference.getConferencesToAttendIfModified(request).
             execute(function (resp) {
                 $scope.$apply(function () {
                     if (resp.error) {
@@ -521,7 +556,11 @@ conferenceApp.controllers.controller('ShowConferenceCtrl', function ($scope, $lo
                         }
                     } else {
                         // The request has succeeded.
-                        $scope.conferences = resp.result.items;
+                        if (resp.result.modified) {
+                            $scope.attending = {etag: resp.result.etag,
+                                items: resp.result.items || []};
+                        }
+                        $scope.conferences = $scope.attending.items;
                         $scope.loading = false;
                         $scope.messages = 'Query succeeded : Conferences you will attend (or you have attended)';
                         $scope.alertStatus = 'success';
@@ -575,21 +614,18 @@ conferenceApp.controllers.controller('ConferenceDetailCtrl', function ($scope, $
 
         $scope.loading = true;
         // If the user is attending the conference, updates the status message and available function.
-        gapi.client.conference.getProfile().execute(function (resp) {
+        gapi.client.conference.getRegistration({
+            websafeConferenceKey: $routeParams.websafeConferenceKey
+        }).execute(function (resp) {
             $scope.$apply(function () {
                 $scope.loading = false;
                 if (resp.error) {
-                    // Failed to get a user profile.
+                    // Not registered for the conference.
                 } else {
-                    var profile = resp.result;
-                    for (var i = 0; i < profile.conferenceKeysToAttend.length; i++) {
-                        if ($routeParams.websafeConferenceKey == profile.conferenceKeysToAttend[i]) {
-                            // The user is attending the conference.
-                            $scope.alertStatus = 'info';
-                            $scope.messages = 'You are attending this conference';
-                            $scope.isUserAttending = true;
-                        }
-                    }
+                    // The user is attending the conference.
+                    $scope.alertStatus = 'info';
+                    $scope.messages = 'You are attending this conference';
+                    $scope.isUserAttending = true;
                 }
             });
         });
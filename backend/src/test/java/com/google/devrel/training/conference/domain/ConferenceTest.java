@@ -6,6 +6,7 @@ import static org.junit.Assert.*;
 import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
 import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
 import com.google.devrel.training.conference.form.ConferenceForm;
+import com.google.devrel.training.conference.service.OrganizerDisplayNames;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -98,6 +99,9 @@ public class ConferenceTest {
         Profile profile = new Profile(ORGANIZER_USER_ID, displayName, "", null);
         ofy().save().entity(profile).now();
         Conference conference = new Conference(ID, ORGANIZER_USER_ID, conferenceForm);
+        // The display name is not loaded lazily.
+        assertEquals(ORGANIZER_USER_ID, conference.getOrganizerDisplayName());
+        OrganizerDisplayNames.resolve(conference);
         assertEquals(displayName, conference.getOrganizerDisplayName());
     }
 
@@ -117,6 +121,27 @@ public class ConferenceTest {
         conference.bookSeats(1);
     }
 
+    @Test
+    public void testEtag() throws Exception {
+        Conference conference = new Conference(ID, ORGANIZER_USER_ID, conferenceForm);
+        String etag = conference.getEtag();
+        assertEquals(1, conference.getVersion());
+        assertEquals(etag, new Conference(ID, ORGANIZER_USER_ID, conferenceForm).getEtag());
+
+        conference.updateWithConferenceForm(conferenceForm);
+        assertEquals(2, conference.getVersion());
+        assertNotEquals(etag, conference.getEtag());
+
+        // Seats counted over the shards change the etag without a new version.
+        etag = conference.getEtag();
+        conference.syncSeatsAvailable(CAP - 1);
+        assertNotEquals(etag, conference.getEtag());
+
+        etag = conference.getEtag();
+        conference.setOrganizerDisplayName("Alice");
+        assertNotEquals(etag, conference.getEtag());
+    }
+
     /*
     @Test
     public void testReturnSeats() throws Exception {
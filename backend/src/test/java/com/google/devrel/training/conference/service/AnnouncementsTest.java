@@ -0,0 +1,63 @@
+package com.google.devrel.training.conference.service;
+
+import static org.junit.Assert.*;
+
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.devrel.training.conference.Constants;
+import com.google.devrel.training.conference.domain.Announcement;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for Announcements.
+ */
+public class AnnouncementsTest {
+
+    private final LocalServiceTestHelper helper =
+            new LocalServiceTestHelper(new LocalMemcacheServiceTestConfig());
+
+    private MemcacheService memcacheService;
+
+    @Before
+    public void setUp() throws Exception {
+        helper.setUp();
+        memcacheService = MemcacheServiceFactory.getMemcacheService();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Announcements.clear();
+        helper.tearDown();
+    }
+
+    @Test
+    public void testGet() throws Exception {
+        assertNull(Announcements.get());
+
+        memcacheService.put(Constants.MEMCACHE_ANNOUNCEMENTS_KEY, "Hello");
+        // The absence of an announcement is cached as well.
+        assertNull(Announcements.get());
+        Announcements.clear();
+        Announcement announcement = Announcements.get();
+        assertEquals("Hello", announcement.getMessage());
+
+        // Served from the instance until the TTL expires.
+        memcacheService.put(Constants.MEMCACHE_ANNOUNCEMENTS_KEY, "Goodbye");
+        assertSame(announcement, Announcements.get());
+        Announcements.clear();
+        assertEquals("Goodbye", Announcements.get().getMessage());
+    }
+
+    @Test
+    public void testEtag() throws Exception {
+        String etag = new Announcement("Hello").getEtag();
+        assertTrue(etag.startsWith("\"") && etag.endsWith("\""));
+        assertEquals(etag, new Announcement("Hello").getEtag());
+        assertFalse(etag.equals(new Announcement("Goodbye").getEtag()));
+    }
+}
@@ -0,0 +1,152 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+import static org.junit.Assert.*;
+
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.common.collect.ImmutableList;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.form.ConferenceForm;
+import com.google.devrel.training.conference.form.ConferenceQueryForm.Field;
+import com.google.devrel.training.conference.form.ConferenceQueryForm.Filter;
+import com.google.devrel.training.conference.form.ConferenceQueryForm.Operator;
+import com.googlecode.objectify.Key;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.List;
+
+/**
+ * Tests for ConferenceIndex.
+ */
+public class ConferenceIndexTest {
+
+    private static final String USER_ID = "123456789";
+
+    private static final long GENERATION = 42L;
+
+    private final LocalServiceTestHelper helper =
+            new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig()
+                    .setApplyAllHighRepJobPolicy(), new LocalMemcacheServiceTestConfig());
+
+    private Conference tokyo;
+
+    private Conference london;
+
+    private Conference paris;
+
+    private DateFormat dateFormat = new SimpleDateFormat("MM/dd/yyyy");
+
+    @Before
+    public void setUp() throws Exception {
+        helper.setUp();
+        tokyo = createConference(1001L, "Tokyo Summit", "Tokyo", "03/25/2014", 500,
+                ImmutableList.of("Cloud", "Japan"));
+        london = createConference(1002L, "London Live", "London", "06/25/2014", 1000,
+                ImmutableList.of("Cloud"));
+        paris = createConference(1003L, "Paris Days", "Paris", "09/25/2014", 1500,
+                ImmutableList.of("Web"));
+        ofy().save().entities(tokyo, london, paris).now();
+        ConferenceIndex.rebuild(GENERATION);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        ofy().clear();
+        ConferenceIndex.clear();
+        helper.tearDown();
+    }
+
+    private Conference createConference(long id, String name, String city, String startDate,
+            int maxAttendees, List<String> topics) throws Exception {
+        ConferenceForm conferenceForm = new ConferenceForm(name, null, topics, city,
+                dateFormat.parse(startDate), dateFormat.parse(startDate), maxAttendees);
+        return new Conference(id, USER_ID, conferenceForm);
+    }
+
+    private List<String> search(long generation, Filter... filters) {
+        ConferenceIndex.Page page = ConferenceIndex.search(ImmutableList.copyOf(filters),
+                generation, null, 10);
+        return page == null ? null : page.getWebsafeConferenceKeys();
+    }
+
+    @Test
+    public void testSearchMultipleInequalities() throws Exception {
+        // Ordered by name.
+        assertEquals(ImmutableList.of(london.getWebsafeKey(), paris.getWebsafeKey(),
+                        tokyo.getWebsafeKey()), search(GENERATION));
+        assertEquals(ImmutableList.of(tokyo.getWebsafeKey()), search(GENERATION,
+                new Filter(Field.MAX_ATTENDEES, Operator.LT, "1000"),
+                new Filter(Field.MONTH, Operator.NE, "6")));
+        assertEquals(ImmutableList.of(london.getWebsafeKey()), search(GENERATION,
+                new Filter(Field.TOPIC, Operator.EQ, "Cloud"),
+                new Filter(Field.CITY, Operator.LT, "Paris"),
+                new Filter(Field.SEATS_AVAILABLE, Operator.GTEQ, "1000")));
+        assertEquals(ImmutableList.of(), search(GENERATION,
+                new Filter(Field.CITY, Operator.EQ, "Berlin")));
+    }
+
+    @Test
+    public void testPagination() throws Exception {
+        List<Filter> filters = ImmutableList.of(
+                new Filter(Field.MONTH, Operator.GT, "1"),
+                new Filter(Field.MAX_ATTENDEES, Operator.GT, "100"));
+        ConferenceIndex.Page page = ConferenceIndex.search(filters, GENERATION, null, 2);
+        assertEquals(ImmutableList.of(london.getWebsafeKey(), paris.getWebsafeKey()),
+                page.getWebsafeConferenceKeys());
+        assertTrue(ConferenceIndex.isIndexToken(page.getNextPageToken()));
+
+        page = ConferenceIndex.search(filters, GENERATION, page.getNextPageToken(), 2);
+        assertEquals(ImmutableList.of(tokyo.getWebsafeKey()), page.getWebsafeConferenceKeys());
+        assertNull(page.getNextPageToken());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidToken() throws Exception {
+        ConferenceIndex.search(ImmutableList.<Filter>of(), GENERATION, "index:abc", 10);
+    }
+
+    @Test
+    public void testStaleIndex() throws Exception {
+        assertNull(search(GENERATION + 1));
+    }
+
+    @Test
+    public void testConferenceChanged() throws Exception {
+        Conference berlin = createConference(1004L, "Berlin Nights", "Berlin", "11/25/2014",
+                200, ImmutableList.of("Cloud"));
+        ConferenceIndex.conferenceChanged(berlin, GENERATION + 1);
+        assertEquals(ImmutableList.of(berlin.getWebsafeKey(), london.getWebsafeKey()),
+                search(GENERATION + 1, new Filter(Field.TOPIC, Operator.EQ, "Cloud"),
+                        new Filter(Field.MONTH, Operator.GT, "3")));
+
+        // Another change happened in between, the index is stale.
+        ConferenceIndex.conferenceChanged(berlin, GENERATION + 3);
+        assertNull(search(GENERATION + 3));
+    }
+
+    @Test
+    public void testSeatsChanged() throws Exception {
+        Filter full = new Filter(Field.SEATS_AVAILABLE, Operator.LT, "500");
+        assertEquals(ImmutableList.of(), search(GENERATION, full));
+        ConferenceIndex.seatsChanged(Key.<Conference>create(tokyo.getWebsafeKey()), -1);
+        assertEquals(ImmutableList.of(tokyo.getWebsafeKey()), search(GENERATION, full));
+    }
+
+    @Test
+    public void testMatches() throws Exception {
+        List<Filter> filters = ImmutableList.of(
+                new Filter(Field.TOPIC, Operator.NE, "Cloud"),
+                new Filter(Field.MONTH, Operator.LTEQ, "3"));
+        // Japan != Cloud, like the datastore a list property matches on any of its values.
+        assertTrue(ConferenceIndex.matches(tokyo, filters));
+        assertFalse(ConferenceIndex.matches(london, filters));
+        assertFalse(ConferenceIndex.matches(paris, filters));
+    }
+}
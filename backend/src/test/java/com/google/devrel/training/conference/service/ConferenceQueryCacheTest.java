@@ -0,0 +1,84 @@
+package com.google.devrel.training.conference.service;
+
+import static org.junit.Assert.*;
+
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.common.collect.ImmutableList;
+import com.google.devrel.training.conference.form.ConferenceQueryForm;
+import com.google.devrel.training.conference.form.ConferenceQueryForm.Field;
+import com.google.devrel.training.conference.form.ConferenceQueryForm.Filter;
+import com.google.devrel.training.conference.form.ConferenceQueryForm.Operator;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for ConferenceQueryCache.
+ */
+public class ConferenceQueryCacheTest {
+
+    private final LocalServiceTestHelper helper =
+            new LocalServiceTestHelper(new LocalMemcacheServiceTestConfig());
+
+    @Before
+    public void setUp() throws Exception {
+        helper.setUp();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        helper.tearDown();
+    }
+
+    @Test
+    public void testCanonicalize() throws Exception {
+        ConferenceQueryForm form1 = new ConferenceQueryForm()
+                .filter(new Filter(Field.CITY, Operator.EQ, "Tokyo"))
+                .filter(new Filter(Field.MONTH, Operator.EQ, "6"));
+        ConferenceQueryForm form2 = new ConferenceQueryForm()
+                .filter(new Filter(Field.MONTH, Operator.EQ, "6"))
+                .filter(new Filter(Field.CITY, Operator.EQ, "Tokyo"));
+        assertEquals(ConferenceQueryCache.canonicalize(form1),
+                ConferenceQueryCache.canonicalize(form2));
+        assertFalse(ConferenceQueryCache.canonicalize(form1)
+                .equals(ConferenceQueryCache.canonicalize(form1.limit(5))));
+    }
+
+    @Test
+    public void testInvalidate() throws Exception {
+        ConferenceQueryForm form = new ConferenceQueryForm()
+                .filter(new Filter(Field.CITY, Operator.EQ, "Tokyo"));
+        long generation = ConferenceQueryCache.generation();
+        assertNull(ConferenceQueryCache.get(generation, form));
+        ConferenceQueryCache.put(generation, form,
+                new ConferenceQueryCache.Page(ImmutableList.of("a", "b"), "token"));
+        ConferenceQueryCache.Page page = ConferenceQueryCache.get(generation, form);
+        assertEquals(ImmutableList.of("a", "b"), page.getWebsafeConferenceKeys());
+        assertEquals("token", page.getNextPageToken());
+
+        ConferenceQueryCache.invalidate();
+        assertEquals(generation + 1, ConferenceQueryCache.generation());
+        assertNull(ConferenceQueryCache.get(ConferenceQueryCache.generation(), form));
+    }
+
+    @Test
+    public void testSeatsChanged() throws Exception {
+        ConferenceQueryForm byCity = new ConferenceQueryForm()
+                .filter(new Filter(Field.CITY, Operator.EQ, "Tokyo"));
+        ConferenceQueryForm bySeats = new ConferenceQueryForm()
+                .filter(new Filter(Field.SEATS_AVAILABLE, Operator.GT, "0"));
+        long generation = ConferenceQueryCache.generation();
+        ConferenceQueryCache.Page page =
+                new ConferenceQueryCache.Page(ImmutableList.of("a"), null);
+        ConferenceQueryCache.put(generation, byCity, page);
+        ConferenceQueryCache.put(generation, bySeats, page);
+
+        // Only the pages depending on the seats are dropped.
+        ConferenceQueryCache.seatsChanged();
+        assertEquals(generation, ConferenceQueryCache.generation());
+        assertNotNull(ConferenceQueryCache.get(generation, byCity));
+        assertNull(ConferenceQueryCache.get(generation, bySeats));
+    }
+}
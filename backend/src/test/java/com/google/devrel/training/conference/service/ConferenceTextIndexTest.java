@@ -0,0 +1,139 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+import static org.junit.Assert.*;
+
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.common.collect.ImmutableList;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.form.ConferenceForm;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests for ConferenceTextIndex.
+ */
+public class ConferenceTextIndexTest {
+
+    private static final String USER_ID = "123456789";
+
+    private static final long GENERATION = 42L;
+
+    private final LocalServiceTestHelper helper =
+            new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig()
+                    .setApplyAllHighRepJobPolicy(), new LocalMemcacheServiceTestConfig());
+
+    private Conference android;
+
+    private Conference cloud;
+
+    private Conference web;
+
+    @Before
+    public void setUp() throws Exception {
+        helper.setUp();
+        android = createConference(1001L, "Android Summit",
+                "Everything about Android, from phones to watches.", ImmutableList.of("Mobile"));
+        cloud = createConference(1002L, "Cloud Day",
+                "Scaling web and mobile backends in the cloud.", ImmutableList.of("Cloud"));
+        web = createConference(1003L, "Web Forum", "Browsers and the open web.",
+                ImmutableList.of("Web", "Mobile"));
+        ofy().save().entities(android, cloud, web).now();
+        ConferenceTextIndex.rebuild(GENERATION);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        ofy().clear();
+        ConferenceTextIndex.clear();
+        helper.tearDown();
+    }
+
+    private Conference createConference(long id, String name, String description,
+            List<String> topics) {
+        return new Conference(id, USER_ID,
+                new ConferenceForm(name, description, topics, null, null, null, 100));
+    }
+
+    private List<String> search(String text, long generation) {
+        return ConferenceTextIndex.search(text, generation, null, 10).getWebsafeConferenceKeys();
+    }
+
+    @Test
+    public void testTokenize() throws Exception {
+        assertEquals(ImmutableList.of("google", "s", "i", "o", "2014"),
+                ConferenceTextIndex.tokenize("Google's I/O 2014!"));
+        assertEquals(ImmutableList.of(), ConferenceTextIndex.tokenize(null));
+    }
+
+    @Test
+    public void testRanking() throws Exception {
+        // The name weighs more than the description.
+        assertEquals(ImmutableList.of(web.getWebsafeKey(), cloud.getWebsafeKey()),
+                search("WEB", GENERATION));
+        // Any of the words matches, documents matching more words come first.
+        assertEquals(ImmutableList.of(cloud.getWebsafeKey(), android.getWebsafeKey()),
+                search("cloud android", GENERATION).subList(0, 2));
+        assertEquals(ImmutableList.of(), search("ios", GENERATION));
+    }
+
+    @Test
+    public void testPagination() throws Exception {
+        ConferenceTextIndex.Page page = ConferenceTextIndex.search("mobile", GENERATION, null, 2);
+        assertEquals(2, page.getWebsafeConferenceKeys().size());
+        assertNotNull(page.getNextPageToken());
+        page = ConferenceTextIndex.search("mobile", GENERATION, page.getNextPageToken(), 2);
+        assertEquals(1, page.getWebsafeConferenceKeys().size());
+        assertNull(page.getNextPageToken());
+    }
+
+    @Test
+    public void testPaginationWithMatcher() throws Exception {
+        ConferenceTextIndex.Matcher notAndroid = new ConferenceTextIndex.Matcher() {
+            @Override
+            public List<String> retain(List<String> websafeConferenceKeys) {
+                List<String> retained = new ArrayList<>(websafeConferenceKeys);
+                retained.remove(android.getWebsafeKey());
+                return retained;
+            }
+        };
+        // Android ranks first, the page is filled with the next match.
+        ConferenceTextIndex.Page page =
+                ConferenceTextIndex.search("mobile", GENERATION, null, 1, notAndroid);
+        assertEquals(ImmutableList.of(web.getWebsafeKey()), page.getWebsafeConferenceKeys());
+        page = ConferenceTextIndex.search("mobile", GENERATION, page.getNextPageToken(), 1,
+                notAndroid);
+        assertEquals(ImmutableList.of(cloud.getWebsafeKey()), page.getWebsafeConferenceKeys());
+        assertNull(page.getNextPageToken());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidToken() throws Exception {
+        ConferenceTextIndex.search("mobile", GENERATION, "index:2", 10);
+    }
+
+    @Test
+    public void testConferenceChanged() throws Exception {
+        Conference ios = createConference(1004L, "iOS Camp", "Apps for iOS.", null);
+        ConferenceTextIndex.conferenceChanged(ios, GENERATION + 1);
+        assertEquals(ImmutableList.of(ios.getWebsafeKey()), search("ios", GENERATION + 1));
+
+        cloud = createConference(1002L, "Cloud Day", "Databases.", ImmutableList.of("Cloud"));
+        ConferenceTextIndex.conferenceChanged(cloud, GENERATION + 2);
+        assertEquals(ImmutableList.of(web.getWebsafeKey()),
+                search("browsers web", GENERATION + 2));
+
+        // The postings updated in place rank like rebuilt ones.
+        List<String> updated = search("mobile cloud apps databases", GENERATION + 2);
+        ofy().save().entities(ios, cloud).now();
+        ConferenceTextIndex.rebuild(GENERATION + 2);
+        assertEquals(search("mobile cloud apps databases", GENERATION + 2), updated);
+    }
+}
@@ -0,0 +1,103 @@
+package com.google.devrel.training.conference.service;
+
+import static org.junit.Assert.*;
+
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.LocalTaskQueueTestConfig;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+
+/**
+ * Tests for ConfirmationEmails.
+ */
+public class ConfirmationEmailsTest {
+
+    /**
+     * Records the messages instead of sending them, and fails for the given addresses.
+     */
+    private static class RecordingTransport implements EmailTransport {
+        private final Session session = Session.getInstance(new Properties());
+        private final List<Message> sent = new ArrayList<>();
+        private final Set<String> failing = new HashSet<>();
+
+        @Override
+        public Session getSession() {
+            return session;
+        }
+
+        @Override
+        public void send(Message message) throws MessagingException {
+            String to = message.getAllRecipients()[0].toString();
+            if (failing.contains(to)) {
+                throw new MessagingException("Unavailable: " + to);
+            }
+            sent.add(message);
+        }
+    }
+
+    private final LocalServiceTestHelper helper =
+            new LocalServiceTestHelper(new LocalMemcacheServiceTestConfig(),
+                    new LocalTaskQueueTestConfig()
+                            .setQueueXmlPath("src/main/webapp/WEB-INF/queue.xml")
+                            .setDisableAutoTaskExecution(true));
+
+    private RecordingTransport transport;
+
+    @Before
+    public void setUp() throws Exception {
+        helper.setUp();
+        transport = new RecordingTransport();
+        ConfirmationEmails.setTransport(transport);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        ConfirmationEmails.setTransport(null);
+        helper.tearDown();
+    }
+
+    @Test
+    public void testDrain() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            ConfirmationEmails.enqueue("organizer" + i + "@example.com", "Conference " + i);
+        }
+        ConfirmationEmails.Stats stats = ConfirmationEmails.drain();
+        assertTrue(stats.isDrained());
+        assertEquals(3, stats.getSent());
+        assertEquals(3, transport.sent.size());
+        Message message = transport.sent.get(0);
+        assertEquals("You created a new Conference!", message.getSubject());
+        assertTrue(message.getContent().toString().endsWith("\nConference 0"));
+
+        // The sent e-mails are gone from the queue.
+        stats = ConfirmationEmails.drain();
+        assertEquals(0, stats.getSent());
+    }
+
+    @Test
+    public void testDrainWithFailures() throws Exception {
+        transport.failing.add("down@example.com");
+        ConfirmationEmails.enqueue("down@example.com", "Conference 0");
+        ConfirmationEmails.enqueue("not an address", "Conference 1");
+        ConfirmationEmails.enqueue("organizer@example.com", "Conference 2");
+        ConfirmationEmails.Stats stats = ConfirmationEmails.drain();
+        assertEquals(1, stats.getSent());
+        // Retried after a backoff.
+        assertEquals(1, stats.getRetried());
+        // Never deliverable.
+        assertEquals(1, stats.getDropped());
+    }
+}
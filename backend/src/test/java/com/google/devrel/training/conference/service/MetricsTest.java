@@ -0,0 +1,129 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+import static org.junit.Assert.*;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.devrel.training.conference.domain.Profile;
+import com.google.devrel.training.conference.form.ProfileForm.TeeShirtSize;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+
+/**
+ * Tests for Metrics and MetricsDelegate.
+ */
+public class MetricsTest {
+
+    private final LocalServiceTestHelper helper =
+            new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig()
+                    .setApplyAllHighRepJobPolicy(),
+                    new LocalMemcacheServiceTestConfig());
+
+    @Before
+    public void setUp() throws Exception {
+        helper.setUp();
+        MetricsDelegate.install();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        MetricsDelegate.uninstall();
+        Metrics.clear();
+        ofy().clear();
+        helper.tearDown();
+    }
+
+    @Test
+    public void testCountsApiCalls() throws Exception {
+        Metrics.RequestCounts counts = Metrics.start();
+        ofy().save().entity(new Profile("123456789", "Alice", "example@gmail.com",
+                TeeShirtSize.M)).now();
+        ofy().clear();
+        // The first load finds the placeholder of the save in memcache and reads the
+        // datastore, the second one finds the Profile.
+        assertNotNull(ofy().load().type(Profile.class).id("123456789").now());
+        ofy().clear();
+        assertNotNull(ofy().load().type(Profile.class).id("123456789").now());
+        assertEquals(1, ofy().load().type(Profile.class).limit(10).list().size());
+
+        assertEquals(1, counts.getDatastoreCalls("Put"));
+        assertEquals(1, counts.getDatastoreCalls("Get"));
+        assertEquals(1, counts.getDatastoreCalls("RunQuery"));
+        assertTrue(counts.getMemcacheHits() >= 2);
+
+        Metrics.record("ConferenceApi.getProfile", 200, 30 * 1000 * 1000, counts);
+        // Not counted anymore.
+        MemcacheServiceFactory.getMemcacheService().get("key");
+        assertEquals(0, counts.getMemcacheMisses());
+    }
+
+    @Test
+    public void testCountsTransactionRetries() throws Exception {
+        DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+        Entity entity = new Entity("Counter", "c");
+        entity.setProperty("value", 0L);
+        datastore.put(entity);
+
+        Metrics.RequestCounts counts = Metrics.start();
+        Transaction loser = datastore.beginTransaction();
+        datastore.get(loser, entity.getKey());
+        Transaction winner = datastore.beginTransaction();
+        datastore.get(winner, entity.getKey());
+        datastore.put(winner, entity);
+        winner.commit();
+        datastore.put(loser, entity);
+        try {
+            loser.commit();
+            fail();
+        } catch (ConcurrentModificationException e) {
+            // Expected.
+        }
+        assertEquals(1, counts.getTransactionRetries());
+        assertEquals(2, counts.getDatastoreCalls("Commit"));
+    }
+
+    @Test
+    public void testWrite() throws Exception {
+        Metrics.RequestCounts counts = Metrics.start();
+        MemcacheService memcacheService = MemcacheServiceFactory.getMemcacheService();
+        memcacheService.put("key", "value");
+        memcacheService.getAll(Arrays.asList("key", "missing"));
+        Metrics.record("ConferenceApi.queryConferences", 200, 30 * 1000 * 1000, counts);
+        Metrics.record("ConferenceApi.queryConferences", 503, 3L * 1000 * 1000 * 1000,
+                Metrics.start());
+
+        StringWriter out = new StringWriter();
+        Metrics.write(new PrintWriter(out));
+        String text = out.toString();
+        String endpoint = "endpoint=\"ConferenceApi.queryConferences\"";
+        assertTrue(text.contains("# TYPE conference_request_duration_seconds histogram\n"));
+        assertTrue(text.contains("conference_request_duration_seconds_bucket{" + endpoint
+                + ",le=\"0.025\"} 0\n"));
+        assertTrue(text.contains("conference_request_duration_seconds_bucket{" + endpoint
+                + ",le=\"0.05\"} 1\n"));
+        assertTrue(text.contains("conference_request_duration_seconds_bucket{" + endpoint
+                + ",le=\"+Inf\"} 2\n"));
+        assertTrue(text.contains("conference_request_duration_seconds_count{" + endpoint
+                + "} 2\n"));
+        assertTrue(text.contains("conference_requests_total{" + endpoint
+                + ",status=\"503\"} 1\n"));
+        assertTrue(text.contains("conference_memcache_gets_total{" + endpoint
+                + ",result=\"hit\"} 1\n"));
+        assertTrue(text.contains("conference_memcache_hit_ratio{" + endpoint + "} 0.5\n"));
+    }
+}
@@ -0,0 +1,119 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+import static org.junit.Assert.*;
+
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.devrel.training.conference.Constants;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.form.ConferenceForm;
+import com.googlecode.objectify.Key;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for NearlySoldOut.
+ */
+public class NearlySoldOutTest {
+
+    private static final String USER_ID = "123456789";
+
+    private static final String PREFIX =
+            "Last chance to attend! The following conferences are nearly sold out: ";
+
+    private final LocalServiceTestHelper helper =
+            new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig()
+                    .setApplyAllHighRepJobPolicy(), new LocalMemcacheServiceTestConfig());
+
+    private MemcacheService memcacheService;
+
+    private Conference small;
+
+    private Conference large;
+
+    @Before
+    public void setUp() throws Exception {
+        helper.setUp();
+        memcacheService = MemcacheServiceFactory.getMemcacheService();
+        small = new Conference(1001L, USER_ID,
+                new ConferenceForm("Small Talk", null, null, null, null, null, 3));
+        large = new Conference(1002L, USER_ID,
+                new ConferenceForm("Large Hall", null, null, null, null, null, 100));
+        ofy().save().entities(small, large).now();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        ofy().clear();
+        helper.tearDown();
+    }
+
+    private Key<Conference> keyOf(Conference conference) {
+        return Key.create(conference.getWebsafeKey());
+    }
+
+    private Object announcement() {
+        return memcacheService.get(Constants.MEMCACHE_ANNOUNCEMENTS_KEY);
+    }
+
+    @Test
+    public void testRefresh() throws Exception {
+        NearlySoldOut.refresh();
+        assertEquals(PREFIX + "Small Talk", announcement());
+
+        // The set is there, the announcement is restored.
+        memcacheService.delete(Constants.MEMCACHE_ANNOUNCEMENTS_KEY);
+        NearlySoldOut.refresh();
+        assertEquals(PREFIX + "Small Talk", announcement());
+    }
+
+    @Test
+    public void testRefreshReconciles() throws Exception {
+        NearlySoldOut.refresh();
+        // Counts arriving out of order list Large Hall and drop Small Talk.
+        NearlySoldOut.seatsChanged(keyOf(large), 4L);
+        NearlySoldOut.seatsChanged(keyOf(small), 0L);
+        assertEquals(PREFIX + "Large Hall", announcement());
+
+        NearlySoldOut.refresh();
+        assertEquals(PREFIX + "Small Talk", announcement());
+
+        ofy().delete().entity(small).now();
+        NearlySoldOut.refresh();
+        assertNull(announcement());
+    }
+
+    @Test
+    public void testSeatsChanged() throws Exception {
+        NearlySoldOut.refresh();
+        NearlySoldOut.seatsChanged(keyOf(large), 4L);
+        assertEquals(PREFIX + "Large Hall, Small Talk", announcement());
+
+        NearlySoldOut.seatsChanged(keyOf(small), 0L);
+        assertEquals(PREFIX + "Large Hall", announcement());
+
+        NearlySoldOut.seatsChanged(keyOf(large), 5L);
+        assertNull(announcement());
+    }
+
+    @Test
+    public void testSeatsChangedWithoutSet() throws Exception {
+        NearlySoldOut.seatsChanged(keyOf(large), 4L);
+        assertNull(announcement());
+    }
+
+    @Test
+    public void testConferenceChanged() throws Exception {
+        NearlySoldOut.refresh();
+        Conference renamed = new Conference(1001L, USER_ID,
+                new ConferenceForm("Small Talks", null, null, null, null, null, 3));
+        NearlySoldOut.conferenceChanged(renamed);
+        assertEquals(PREFIX + "Small Talks", announcement());
+    }
+}
@@ -0,0 +1,93 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+import static org.junit.Assert.*;
+
+import com.google.appengine.api.taskqueue.dev.LocalTaskQueue;
+import com.google.appengine.api.taskqueue.dev.QueueStateInfo;
+import com.google.appengine.api.taskqueue.dev.QueueStateInfo.TaskStateInfo;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.LocalTaskQueueTestConfig;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.domain.Profile;
+import com.google.devrel.training.conference.form.ConferenceForm;
+import com.google.devrel.training.conference.form.ProfileForm.TeeShirtSize;
+import com.googlecode.objectify.Key;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests for OrganizerDisplayNames.
+ */
+public class OrganizerDisplayNamesTest {
+
+    private static final String ORGANIZER_USER_ID = "123456789";
+
+    private Profile profile;
+
+    private final LocalServiceTestHelper helper =
+            new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig()
+                    .setDefaultHighRepJobPolicyUnappliedJobPercentage(100),
+                    new LocalTaskQueueTestConfig().setDisableAutoTaskExecution(true));
+
+    @Before
+    public void setUp() throws Exception {
+        helper.setUp();
+        profile = new Profile(ORGANIZER_USER_ID, "Old Name", "", TeeShirtSize.NOT_SPECIFIED);
+        ofy().save().entity(profile).now();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        ofy().clear();
+        helper.tearDown();
+    }
+
+    @Test
+    public void testUpdateBatch() throws Exception {
+        List<Conference> conferences = new ArrayList<>();
+        for (int i = 1; i <= OrganizerDisplayNames.BATCH_SIZE + 1; i++) {
+            Conference conference = new Conference(i, ORGANIZER_USER_ID,
+                    new ConferenceForm("Conference " + i, null, null, null, null, null, 10));
+            conference.setOrganizerDisplayName(profile.getDisplayName());
+            conferences.add(conference);
+        }
+        ofy().save().entities(conferences).now();
+        profile.update("New Name", null);
+        ofy().save().entity(profile).now();
+
+        assertEquals(OrganizerDisplayNames.BATCH_SIZE,
+                OrganizerDisplayNames.updateBatch(ORGANIZER_USER_ID, null));
+        ofy().clear();
+        Key<Profile> profileKey = Key.create(Profile.class, ORGANIZER_USER_ID);
+        Conference first = ofy().load().key(Key.create(profileKey, Conference.class, 1L)).now();
+        assertEquals("New Name", first.getOrganizerDisplayName());
+
+        // The rest of the Conferences are left to the next task.
+        LocalTaskQueue taskQueue = LocalTaskQueueTestConfig.getLocalTaskQueue();
+        QueueStateInfo queue = taskQueue.getQueueStateInfo().get("default");
+        int continuations = 0;
+        for (TaskStateInfo task : queue.getTaskInfo()) {
+            if (task.getBody().contains("cursor=")) {
+                continuations++;
+            }
+        }
+        assertEquals(1, continuations);
+    }
+
+    @Test
+    public void testResolveLegacyConference() throws Exception {
+        Conference conference = new Conference(1L, ORGANIZER_USER_ID,
+                new ConferenceForm("Legacy", null, null, null, null, null, 10));
+        assertFalse(conference.hasOrganizerDisplayName());
+        assertEquals(ORGANIZER_USER_ID, conference.getOrganizerDisplayName());
+        OrganizerDisplayNames.resolve(conference);
+        assertEquals("Old Name", conference.getOrganizerDisplayName());
+    }
+}
@@ -0,0 +1,90 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+import static org.junit.Assert.*;
+
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.devrel.training.conference.domain.Profile;
+import com.google.devrel.training.conference.form.ProfileForm.TeeShirtSize;
+import com.googlecode.objectify.Work;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+/**
+ * Tests for Profiles.
+ */
+public class ProfilesTest {
+
+    private static final String USER_ID = "123456789";
+
+    private final LocalServiceTestHelper helper =
+            new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig()
+                    .setDefaultHighRepJobPolicyUnappliedJobPercentage(100),
+                    new LocalMemcacheServiceTestConfig());
+
+    @Before
+    public void setUp() throws Exception {
+        helper.setUp();
+        ofy().save().entity(new Profile(USER_ID, "Alice", "alice@example.com",
+                TeeShirtSize.M)).now();
+        ofy().clear();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        ofy().clear();
+        Profiles.clear();
+        helper.tearDown();
+    }
+
+    private void rename(String displayName) {
+        Profile profile = ofy().load().type(Profile.class).id(USER_ID).now();
+        profile.update(displayName, null);
+        ofy().save().entity(profile).now();
+        ofy().clear();
+    }
+
+    @Test
+    public void testGet() throws Exception {
+        Profile profile = Profiles.get(USER_ID);
+        assertEquals("Alice", profile.getDisplayName());
+        assertNull(Profiles.get("unknown"));
+
+        // Callers get their own copy.
+        profile.update("Mallory", null);
+        assertEquals("Alice", Profiles.get(USER_ID).getDisplayName());
+
+        // A change that didn't go through this instance shows up after invalidate.
+        rename("Bob");
+        assertEquals("Alice", Profiles.get(USER_ID).getDisplayName());
+        Profiles.invalidate(USER_ID);
+        assertEquals("Bob", Profiles.get(USER_ID).getDisplayName());
+    }
+
+    @Test
+    public void testInvalidateUsers() throws Exception {
+        Profiles.get(USER_ID);
+        rename("Bob");
+        Profiles.invalidate(Arrays.asList("unknown", USER_ID));
+        assertEquals("Bob", Profiles.get(USER_ID).getDisplayName());
+    }
+
+    @Test
+    public void testGetInTransaction() throws Exception {
+        Profiles.get(USER_ID);
+        rename("Bob");
+        String displayName = ofy().transact(new Work<String>() {
+            @Override
+            public String run() {
+                return Profiles.get(USER_ID).getDisplayName();
+            }
+        });
+        assertEquals("Bob", displayName);
+    }
+}
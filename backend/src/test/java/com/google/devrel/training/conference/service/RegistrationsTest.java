@@ -0,0 +1,126 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+import static org.junit.Assert.*;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.common.collect.ImmutableList;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.domain.Profile;
+import com.google.devrel.training.conference.domain.Registration;
+import com.google.devrel.training.conference.form.ProfileForm.TeeShirtSize;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.VoidWork;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for Registrations.
+ */
+public class RegistrationsTest {
+
+    private static final String USER_ID = "123456789";
+
+    private final LocalServiceTestHelper helper =
+            new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig()
+                    .setDefaultHighRepJobPolicyUnappliedJobPercentage(100),
+                    new LocalMemcacheServiceTestConfig());
+
+    private String conference1;
+
+    private String conference2;
+
+    private String conference3;
+
+    @Before
+    public void setUp() throws Exception {
+        helper.setUp();
+        Key<Profile> organizerKey = Key.create(Profile.class, "987654321");
+        conference1 = Key.create(organizerKey, Conference.class, 1001L).getString();
+        conference2 = Key.create(organizerKey, Conference.class, 1002L).getString();
+        conference3 = Key.create(organizerKey, Conference.class, 1003L).getString();
+        ofy().save().entity(new Profile(USER_ID, "Alice", "alice@example.com",
+                TeeShirtSize.M)).now();
+        // Profiles saved before Registration entities carry the list of the conferences.
+        DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+        Entity entity = datastore.get(Key.create(Profile.class, USER_ID).getRaw());
+        entity.setProperty("conferenceKeysToAttend", ImmutableList.of(conference1, conference2));
+        datastore.put(entity);
+        ofy().clear();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        ofy().clear();
+        helper.tearDown();
+    }
+
+    private Profile loadProfile() {
+        return ofy().load().key(Key.create(Profile.class, USER_ID)).now();
+    }
+
+    @Test
+    public void testMigrateIfNeeded() throws Exception {
+        Profile profile = loadProfile();
+        assertEquals(ImmutableList.of(conference1, conference2),
+                profile.getLegacyConferenceKeysToAttend());
+        assertTrue(Registrations.isRegistered(profile, conference1));
+
+        Registrations.migrateIfNeeded(USER_ID);
+        ofy().clear();
+        profile = loadProfile();
+        assertTrue(profile.getLegacyConferenceKeysToAttend().isEmpty());
+        assertTrue(Registrations.isRegistered(profile, conference1));
+        assertTrue(Registrations.isRegistered(profile, conference2));
+        assertFalse(Registrations.isRegistered(profile, conference3));
+        Registration registration =
+                ofy().load().key(Registration.createKey(USER_ID, conference2)).now();
+        assertEquals(Key.<Conference>create(conference2), registration.getConferenceKey());
+        assertEquals(conference2, registration.getWebsafeConferenceKey());
+        // The id is compact, and the key of the Conference is rebuilt from it.
+        Key<Registration> registrationKey = Registration.createKey(USER_ID, conference2);
+        assertEquals("987654321:1002", registrationKey.getName());
+        assertEquals(Key.<Conference>create(conference2),
+                Registration.getConferenceKey(registrationKey));
+        assertEquals(ImmutableList.of(Key.<Conference>create(conference1),
+                Key.<Conference>create(conference2)), Registrations.getConferenceKeys(USER_ID));
+    }
+
+    @Test
+    public void testRegisterAndUnregister() throws Exception {
+        ofy().transact(new VoidWork() {
+            @Override
+            public void vrun() {
+                Profile profile = loadProfile();
+                Registrations.register(USER_ID, conference3);
+                // A legacy key is removed from the list, not migrated.
+                Registrations.unregister(profile, conference1);
+                Registrations.migrate(profile);
+                ofy().save().entity(profile);
+            }
+        });
+        ofy().clear();
+        Profile profile = loadProfile();
+        assertTrue(profile.getLegacyConferenceKeysToAttend().isEmpty());
+        assertFalse(Registrations.isRegistered(profile, conference1));
+        assertEquals(ImmutableList.of(Key.<Conference>create(conference2),
+                Key.<Conference>create(conference3)), Registrations.getConferenceKeys(USER_ID));
+
+        ofy().transact(new VoidWork() {
+            @Override
+            public void vrun() {
+                Registrations.unregister(loadProfile(), conference3);
+            }
+        });
+        ofy().clear();
+        assertEquals(ImmutableList.of(Key.<Conference>create(conference2)),
+                Registrations.getConferenceKeys(USER_ID));
+    }
+}
@@ -0,0 +1,118 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+import static org.junit.Assert.*;
+
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.LocalTaskQueueTestConfig;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.domain.Profile;
+import com.google.devrel.training.conference.domain.Reservation;
+import com.google.devrel.training.conference.domain.Reservation.Action;
+import com.google.devrel.training.conference.domain.Reservation.Status;
+import com.google.devrel.training.conference.form.ConferenceForm;
+import com.google.devrel.training.conference.form.ProfileForm.TeeShirtSize;
+import com.googlecode.objectify.Key;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for ReservationProcessor.
+ */
+public class ReservationProcessorTest {
+
+    private static final long ID = 123456L;
+
+    private static final String ORGANIZER_USER_ID = "123456789";
+
+    private static final int CAP = 3;
+
+    private Conference conference;
+
+    private final LocalServiceTestHelper helper =
+            new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig()
+                    .setApplyAllHighRepJobPolicy(),
+                    new LocalMemcacheServiceTestConfig(),
+                    new LocalTaskQueueTestConfig().setDisableAutoTaskExecution(true));
+
+    @Before
+    public void setUp() throws Exception {
+        helper.setUp();
+        ConferenceForm conferenceForm = new ConferenceForm("GCP Live", null, null, null, null,
+                null, CAP);
+        conference = new Conference(ID, ORGANIZER_USER_ID, conferenceForm);
+        SeatInventory.initialize(conference);
+        ofy().save().entity(conference).now();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        ofy().clear();
+        helper.tearDown();
+    }
+
+    @Test
+    public void testProcessBatch() throws Exception {
+        for (int i = 0; i < ReservationProcessor.BATCH_SIZE; i++) {
+            reserve("user" + i, Action.REGISTER);
+        }
+        ReservationProcessor.process(Reservation.createKey("user0", conference.getWebsafeKey()));
+        ofy().clear();
+
+        // The batch doesn't fit, so the Reservations are committed one at a time.
+        int confirmed = 0;
+        for (int i = 0; i < ReservationProcessor.BATCH_SIZE; i++) {
+            Reservation reservation = loadReservation("user" + i);
+            if (reservation.getStatus() == Status.CONFIRMED) {
+                confirmed++;
+            } else {
+                assertEquals(Status.REJECTED, reservation.getStatus());
+                assertEquals("There are no seats available.", reservation.getReason());
+            }
+        }
+        assertEquals(CAP, confirmed);
+        assertEquals(0, SeatInventory.countSeatsAvailable(conference));
+    }
+
+    @Test
+    public void testProcessRegisterAndUnregister() throws Exception {
+        reserve("user0", Action.REGISTER);
+        ReservationProcessor.process(Reservation.createKey("user0", conference.getWebsafeKey()));
+        ofy().clear();
+        assertEquals(Status.CONFIRMED, loadReservation("user0").getStatus());
+        Profile profile = ofy().load().key(Key.create(Profile.class, "user0")).now();
+        assertTrue(Registrations.isRegistered(profile, conference.getWebsafeKey()));
+
+        // The registration and the cancellation of the batch don't touch any shard together.
+        reserve("user0", Action.UNREGISTER);
+        reserve("user1", Action.REGISTER);
+        reserve("user2", Action.UNREGISTER);
+        ReservationProcessor.process(Reservation.createKey("user1", conference.getWebsafeKey()));
+        ofy().clear();
+        assertEquals(Status.CONFIRMED, loadReservation("user0").getStatus());
+        assertEquals(Status.CONFIRMED, loadReservation("user1").getStatus());
+        Reservation rejected = loadReservation("user2");
+        assertEquals(Status.REJECTED, rejected.getStatus());
+        assertEquals("You are not registered for this conference", rejected.getReason());
+        profile = ofy().load().key(Key.create(Profile.class, "user0")).now();
+        assertFalse(Registrations.isRegistered(profile, conference.getWebsafeKey()));
+        assertEquals(CAP - 1, SeatInventory.countSeatsAvailable(conference));
+    }
+
+    private void reserve(String userId, Action action) {
+        Key<Profile> profileKey = Key.create(Profile.class, userId);
+        if (ofy().load().key(profileKey).now() == null) {
+            ofy().save().entity(new Profile(userId, userId, userId + "@example.com",
+                    TeeShirtSize.NOT_SPECIFIED)).now();
+        }
+        ofy().save().entity(new Reservation(userId, conference.getWebsafeKey(), action)).now();
+    }
+
+    private Reservation loadReservation(String userId) {
+        return ofy().load().key(Reservation.createKey(userId, conference.getWebsafeKey())).now();
+    }
+}
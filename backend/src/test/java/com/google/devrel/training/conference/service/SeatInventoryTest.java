@@ -0,0 +1,270 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+import static org.junit.Assert.*;
+
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.LocalTaskQueueTestConfig;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.domain.SeatShard;
+import com.google.devrel.training.conference.form.ConferenceForm;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.VoidWork;
+import com.googlecode.objectify.Work;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+
+/**
+ * Tests for SeatInventory.
+ */
+public class SeatInventoryTest {
+
+    private static final long ID = 123456L;
+
+    private static final String ORGANIZER_USER_ID = "123456789";
+
+    private static final int CAP = 25;
+
+    private Conference conference;
+
+    private final LocalServiceTestHelper helper =
+            new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig()
+                    .setDefaultHighRepJobPolicyUnappliedJobPercentage(100),
+                    new LocalMemcacheServiceTestConfig(),
+                    new LocalTaskQueueTestConfig().setDisableAutoTaskExecution(true));
+
+    @Before
+    public void setUp() throws Exception {
+        helper.setUp();
+        ConferenceForm conferenceForm = new ConferenceForm("GCP Live", null, null, null, null,
+                null, CAP);
+        conference = new Conference(ID, ORGANIZER_USER_ID, conferenceForm);
+        SeatInventory.initialize(conference);
+        ofy().save().entity(conference).now();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        ofy().clear();
+        helper.tearDown();
+    }
+
+    @Test
+    public void testLayout() throws Exception {
+        Key<Conference> conferenceKey = Key.create(conference.getWebsafeKey());
+        List<SeatShard> shards = SeatInventory.layout(conferenceKey, 4, 10, 3);
+        assertEquals(4, shards.size());
+        int capacity = 0;
+        int seatsAvailable = 0;
+        for (SeatShard shard : shards) {
+            capacity += shard.getCapacity();
+            seatsAvailable += shard.getSeatsAvailable();
+        }
+        assertEquals(10, capacity);
+        assertEquals(3, seatsAvailable);
+        assertEquals(3, shards.get(0).getCapacity());
+        assertEquals(0, shards.get(0).getSeatsAvailable());
+        assertEquals(2, shards.get(3).getSeatsAvailable());
+    }
+
+    @Test
+    public void testInitialize() throws Exception {
+        assertEquals(SeatInventory.MAX_SHARDS, conference.getSeatShardCount());
+        assertEquals(CAP, SeatInventory.countSeatsAvailable(conference));
+    }
+
+    @Test
+    public void testBookAndGiveBackSeats() throws Exception {
+        for (int i = 0; i < CAP - 1; i++) {
+            assertTrue(bookSeats(1));
+        }
+        assertEquals(1, SeatInventory.countSeatsAvailable(conference));
+        assertFalse("Booking more seats than available should fail.", bookSeats(2));
+        assertEquals(1, SeatInventory.countSeatsAvailable(conference));
+        for (int i = 0; i < CAP - 1; i++) {
+            ofy().transact(new VoidWork() {
+                @Override
+                public void vrun() {
+                    SeatInventory.giveBackSeats(conference, 1);
+                }
+            });
+        }
+        assertEquals(CAP, SeatInventory.countSeatsAvailable(conference));
+    }
+
+    @Test
+    public void testBookSeatsAcrossShards() throws Exception {
+        // The first shards hold 2 seats each, so 3 seats span at least 2 shards.
+        assertTrue(bookSeats(3));
+        assertEquals(CAP - 3, SeatInventory.countSeatsAvailable(conference));
+        int maxSeats = 2 * SeatInventory.MAX_SHARDS_PER_TRANSACTION;
+        assertFalse("A transaction can't touch all the shards.", bookSeats(maxSeats + 1));
+    }
+
+    @Test
+    public void testSeatsChangedWhileCounting() throws Exception {
+        // The placeholder of a count in progress, which read the shards before the booking.
+        MemcacheService memcacheService = MemcacheServiceFactory.getMemcacheService();
+        String memcacheKey = "SEATS_AVAILABLE_" + conference.getWebsafeKey();
+        memcacheService.put(memcacheKey, Long.MAX_VALUE / 2);
+        MemcacheService.IdentifiableValue identifiable =
+                memcacheService.getIdentifiable(memcacheKey);
+        assertTrue(bookSeats(1));
+        SeatInventory.seatsChanged(Key.<Conference>create(conference.getWebsafeKey()), -1);
+
+        // The stale count is not cached, the next read counts the booking.
+        assertFalse(memcacheService.putIfUntouched(memcacheKey, identifiable, (long) CAP));
+        assertNull(memcacheService.get(memcacheKey));
+        assertEquals(CAP - 1, SeatInventory.getSeatsAvailable(conference));
+        assertEquals(CAP - 1L, memcacheService.get(memcacheKey));
+    }
+
+    @Test
+    public void testBookSeatsInTransactions() throws Exception {
+        // More seats than a single transaction can book from 4 shards of 1 or 2 seats.
+        assertTrue(SeatInventory.bookSeatsInTransactions(conference, 20));
+        assertEquals(CAP - 20, SeatInventory.countSeatsAvailable(conference));
+        // All or none.
+        assertFalse(SeatInventory.bookSeatsInTransactions(conference, CAP - 20 + 1));
+        assertEquals(CAP - 20, SeatInventory.countSeatsAvailable(conference));
+
+        SeatInventory.giveBackSeatsInTransactions(conference, 20);
+        assertEquals(CAP, SeatInventory.countSeatsAvailable(conference));
+    }
+
+    @Test
+    public void testRemoveAndAddSeats() throws Exception {
+        for (int i = 0; i < CAP - 10; i++) {
+            assertTrue(bookSeats(1));
+        }
+        // The available seats are spread over more shards than a transaction can touch.
+        assertTrue(SeatInventory.removeSeats(conference, 8));
+        assertEquals(2, SeatInventory.countSeatsAvailable(conference));
+        ofy().transact(new VoidWork() {
+            @Override
+            public void vrun() {
+                SeatInventory.addSeats(conference, 10);
+            }
+        });
+        assertEquals(12, SeatInventory.countSeatsAvailable(conference));
+    }
+
+    @Test
+    public void testRemoveSeatsFailure() throws Exception {
+        for (int i = 0; i < CAP - 1; i++) {
+            assertTrue(bookSeats(1));
+        }
+        assertFalse(SeatInventory.removeSeats(conference, 2));
+        assertEquals(1, SeatInventory.countSeatsAvailable(conference));
+    }
+
+    @Test
+    public void testReconcileSeatsRemoval() throws Exception {
+        final Key<Conference> conferenceKey = Key.create(conference.getWebsafeKey());
+        final long startMillis = System.currentTimeMillis();
+        startSeatsRemoval(conferenceKey, 10, startMillis);
+        assertTrue(SeatInventory.removeSeats(conference, 10));
+        // The update lowering maxAttendees never happens.
+        ofy().clear();
+        Conference stored = ofy().load().key(conferenceKey).now();
+        assertEquals(10, stored.getSeatsBeingRemoved());
+        assertFalse("The update may still be running.",
+                SeatInventory.reconcileSeatsRemoval(stored));
+        assertEquals(CAP - 10, SeatInventory.countSeatsAvailable(stored));
+
+        // Long after the deadline of the update, the seats are put back.
+        ofy().transact(new VoidWork() {
+            @Override
+            public void vrun() {
+                Conference current = ofy().load().key(conferenceKey).now();
+                current.endSeatsRemoval();
+                current.startSeatsRemoval(10, startMillis - 10 * 60 * 1000);
+                ofy().save().entity(current).now();
+            }
+        });
+        ofy().clear();
+        stored = ofy().load().key(conferenceKey).now();
+        assertTrue(SeatInventory.reconcileSeatsRemoval(stored));
+        ofy().clear();
+        stored = ofy().load().key(conferenceKey).now();
+        assertEquals(0, stored.getSeatsBeingRemoved());
+        assertEquals(CAP, SeatInventory.countSeatsAvailable(stored));
+        assertFalse(SeatInventory.reconcileSeatsRemoval(stored));
+    }
+
+    private void startSeatsRemoval(final Key<Conference> conferenceKey, final int number,
+            final long startMillis) {
+        ofy().transact(new VoidWork() {
+            @Override
+            public void vrun() {
+                Conference current = ofy().load().key(conferenceKey).now();
+                SeatInventory.startSeatsRemoval(current, number, startMillis);
+                ofy().save().entity(current).now();
+            }
+        });
+    }
+
+    @Test
+    public void testRefreshSeatsAvailable() throws Exception {
+        assertTrue(bookSeats(5));
+        Key<Conference> conferenceKey = Key.create(conference.getWebsafeKey());
+        // The snapshot on the Conference entity is not written by the bookings.
+        Conference stored = ofy().load().key(conferenceKey).now();
+        assertEquals(CAP, stored.getSeatsAvailable());
+        assertEquals(CAP - 5, SeatInventory.getSeatsAvailable(stored));
+        // The count is cached now, and adjusted on changes.
+        SeatInventory.seatsChanged(conferenceKey, 1);
+        assertEquals(CAP - 4, SeatInventory.getSeatsAvailable(stored));
+    }
+
+    @Test
+    public void testShardLegacyConference() throws Exception {
+        ConferenceForm conferenceForm = new ConferenceForm("Legacy", null, null, null, null,
+                null, 3);
+        final Conference legacy = new Conference(ID + 1, ORGANIZER_USER_ID, conferenceForm);
+        ofy().save().entity(legacy).now();
+        assertEquals(0, legacy.getSeatShardCount());
+        boolean booked = ofy().transact(new Work<Boolean>() {
+            @Override
+            public Boolean run() {
+                return SeatInventory.bookSeats(legacy, 1);
+            }
+        });
+        assertTrue(booked);
+        Conference stored = ofy().load().key(Key.<Conference>create(legacy.getWebsafeKey())).now();
+        assertEquals(3, stored.getSeatShardCount());
+        assertEquals(2, SeatInventory.countSeatsAvailable(stored));
+    }
+
+    @Test
+    public void testShardDeletedLegacyConference() throws Exception {
+        ConferenceForm conferenceForm = new ConferenceForm("Legacy", null, null, null, null,
+                null, 3);
+        final Conference legacy = new Conference(ID + 1, ORGANIZER_USER_ID, conferenceForm);
+        boolean booked = ofy().transact(new Work<Boolean>() {
+            @Override
+            public Boolean run() {
+                return SeatInventory.bookSeats(legacy, 1);
+            }
+        });
+        assertFalse(booked);
+        assertNull(ofy().load().key(Key.<Conference>create(legacy.getWebsafeKey())).now());
+    }
+
+    private boolean bookSeats(final int number) {
+        return ofy().transact(new Work<Boolean>() {
+            @Override
+            public Boolean run() {
+                return SeatInventory.bookSeats(conference, number);
+            }
+        });
+    }
+}
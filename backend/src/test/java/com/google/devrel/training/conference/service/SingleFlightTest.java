@@ -0,0 +1,132 @@
+package com.google.devrel.training.conference.service;
+
+import static org.junit.Assert.*;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests for SingleFlight.
+ */
+public class SingleFlightTest {
+
+    private static final int CALLERS = 8;
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(CALLERS);
+
+    @After
+    public void tearDown() throws Exception {
+        executor.shutdownNow();
+        Metrics.clear();
+    }
+
+    /**
+     * Counts its runs, and blocks until released.
+     */
+    private static class BlockingCall implements SingleFlight.Call<String, IOException> {
+        private final AtomicInteger runs = new AtomicInteger();
+        private final CountDownLatch running = new CountDownLatch(1);
+        private final CountDownLatch release = new CountDownLatch(1);
+        private final boolean failing;
+
+        private BlockingCall(final boolean failing) {
+            this.failing = failing;
+        }
+
+        @Override
+        public String call() throws IOException {
+            int run = runs.incrementAndGet();
+            running.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (failing) {
+                throw new IOException("Unavailable");
+            }
+            return "result " + run;
+        }
+    }
+
+    /**
+     * Starts the callers once the first one is running the call.
+     */
+    private List<Future<String>> callTogether(final SingleFlight<String, String, IOException>
+            singleFlight, final BlockingCall call) throws Exception {
+        Callable<String> caller = new Callable<String>() {
+            @Override
+            public String call() throws IOException {
+                return singleFlight.run("key", call);
+            }
+        };
+        List<Future<String>> results = new ArrayList<>();
+        results.add(executor.submit(caller));
+        assertTrue(call.running.await(10, TimeUnit.SECONDS));
+        for (int i = 1; i < CALLERS; i++) {
+            results.add(executor.submit(caller));
+        }
+        // Let the callers reach the running call before it ends.
+        Thread.sleep(200);
+        call.release.countDown();
+        return results;
+    }
+
+    @Test
+    public void testSharesTheResult() throws Exception {
+        SingleFlight<String, String, IOException> singleFlight = new SingleFlight<>("test");
+        BlockingCall call = new BlockingCall(false);
+        for (Future<String> result : callTogether(singleFlight, call)) {
+            assertEquals("result 1", result.get(10, TimeUnit.SECONDS));
+        }
+        assertEquals(1, call.runs.get());
+
+        StringWriter out = new StringWriter();
+        Metrics.write(new PrintWriter(out));
+        String text = out.toString();
+        assertTrue(text.contains(
+                "conference_single_flight_calls_total{flight=\"test\",result=\"run\"} 1\n"));
+        assertTrue(text.contains("conference_single_flight_calls_total{flight=\"test\","
+                + "result=\"joined\"} " + (CALLERS - 1) + "\n"));
+        assertTrue(text.contains("conference_single_flight_coalescing_ratio{flight=\"test\"} "
+                + (double) (CALLERS - 1) / CALLERS + "\n"));
+
+        // Nothing is cached, a later call runs.
+        assertEquals("later", singleFlight.run("key", new SingleFlight.Call<String,
+                IOException>() {
+            @Override
+            public String call() {
+                return "later";
+            }
+        }));
+    }
+
+    @Test
+    public void testSharesTheException() throws Exception {
+        SingleFlight<String, String, IOException> singleFlight = new SingleFlight<>("test");
+        BlockingCall call = new BlockingCall(true);
+        for (Future<String> result : callTogether(singleFlight, call)) {
+            try {
+                result.get(10, TimeUnit.SECONDS);
+                fail();
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IOException);
+            }
+        }
+        assertEquals(1, call.runs.get());
+    }
+}
@@ -0,0 +1,211 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+import static org.junit.Assert.*;
+
+import com.google.api.server.spi.response.ServiceUnavailableException;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.apphosting.api.ApiProxy;
+import com.google.devrel.training.conference.domain.Profile;
+import com.google.devrel.training.conference.form.ProfileForm.TeeShirtSize;
+import com.googlecode.objectify.Work;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ConcurrentModificationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests for Transactions.
+ */
+public class TransactionsTest {
+
+    private final LocalServiceTestHelper helper =
+            new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig()
+                    .setApplyAllHighRepJobPolicy(),
+                    new LocalMemcacheServiceTestConfig());
+
+    @Before
+    public void setUp() throws Exception {
+        helper.setUp();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Metrics.clear();
+        ofy().clear();
+        helper.tearDown();
+    }
+
+    /**
+     * Saves a Profile, after losing the given number of times.
+     */
+    private static Work<Profile> conflicting(final int conflicts, final AtomicInteger runs) {
+        return new Work<Profile>() {
+            @Override
+            public Profile run() {
+                if (runs.incrementAndGet() <= conflicts) {
+                    throw new ConcurrentModificationException(
+                            "too much contention on these datastore entities. please try again.");
+                }
+                Profile profile = new Profile("123456789", "Alice", "example@gmail.com",
+                        TeeShirtSize.M);
+                ofy().save().entity(profile).now();
+                return profile;
+            }
+        };
+    }
+
+    /**
+     * Holds the turn on a key until released.
+     */
+    private static class Holder extends Thread {
+        private final ApiProxy.Environment environment = ApiProxy.getCurrentEnvironment();
+        private final CountDownLatch holding = new CountDownLatch(1);
+        private final CountDownLatch release = new CountDownLatch(1);
+        private final String key;
+
+        private Holder(final String key) {
+            this.key = key;
+        }
+
+        @Override
+        public void run() {
+            ApiProxy.setEnvironmentForCurrentThread(environment);
+            try {
+                Transactions.runSerialized("SeatShard", key, new Work<Void>() {
+                    @Override
+                    public Void run() {
+                        holding.countDown();
+                        try {
+                            release.await();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        return null;
+                    }
+                });
+            } catch (ServiceUnavailableException e) {
+                throw new AssertionError(e);
+            } finally {
+                ApiProxy.clearEnvironmentForCurrentThread();
+            }
+        }
+    }
+
+    private static String metrics() {
+        StringWriter out = new StringWriter();
+        Metrics.write(new PrintWriter(out));
+        return out.toString();
+    }
+
+    @Test
+    public void testRetriesAfterConflicts() throws Exception {
+        AtomicInteger runs = new AtomicInteger();
+        assertNotNull(Transactions.run("Profile", conflicting(2, runs)));
+        assertEquals(3, runs.get());
+        ofy().clear();
+        assertEquals("Alice",
+                ofy().load().type(Profile.class).id("123456789").now().getDisplayName());
+
+        String text = metrics();
+        assertTrue(text.contains("conference_transaction_attempts_total{group=\"Profile\"} 3\n"));
+        assertTrue(text.contains("conference_transaction_conflicts_total{group=\"Profile\","
+                + "cause=\"contention\"} 2\n"));
+        assertTrue(text.contains("conference_transaction_give_ups_total{group=\"Profile\"} 0\n"));
+        assertTrue(text.contains(
+                "conference_transaction_duration_seconds_count{group=\"Profile\"} 1\n"));
+    }
+
+    @Test
+    public void testGivesUpOnceTheBudgetIsGone() throws Exception {
+        AtomicInteger runs = new AtomicInteger();
+        try {
+            Transactions.run("SeatShard", 100, conflicting(Integer.MAX_VALUE, runs));
+            fail();
+        } catch (ServiceUnavailableException e) {
+            // Expected.
+        }
+        assertTrue(runs.get() >= 1);
+        assertTrue(metrics().contains(
+                "conference_transaction_give_ups_total{group=\"SeatShard\"} 1\n"));
+        assertNull(ofy().load().type(Profile.class).id("123456789").now());
+    }
+
+    @Test
+    public void testJoinsTheCurrentTransaction() throws Exception {
+        final AtomicInteger runs = new AtomicInteger();
+        Profile profile = ofy().transact(new Work<Profile>() {
+            @Override
+            public Profile run() {
+                try {
+                    return Transactions.run("Profile", conflicting(0, runs));
+                } catch (ServiceUnavailableException e) {
+                    throw new AssertionError(e);
+                }
+            }
+        });
+        assertNotNull(profile);
+        assertEquals(1, runs.get());
+        // The outer transaction is recorded by whoever runs it.
+        assertFalse(metrics().contains("group=\"Profile\""));
+    }
+
+    @Test
+    public void testSerializesTheSameKey() throws Exception {
+        Holder holder = new Holder("conference");
+        holder.start();
+        assertTrue(holder.holding.await(10, TimeUnit.SECONDS));
+
+        // Another key doesn't wait.
+        AtomicInteger runs = new AtomicInteger();
+        assertNotNull(Transactions.runSerialized("SeatShard", "other", conflicting(0, runs)));
+        assertEquals(1, runs.get());
+
+        // The same key waits its turn, until the budget is gone.
+        try {
+            Transactions.runSerialized("SeatShard", "conference", 100, conflicting(0, runs));
+            fail();
+        } catch (ServiceUnavailableException e) {
+            // Expected.
+        }
+        assertEquals(1, runs.get());
+        assertTrue(metrics().contains(
+                "conference_transaction_lock_timeouts_total{group=\"SeatShard\"} 1\n"));
+
+        holder.release.countDown();
+        holder.join();
+        assertNotNull(Transactions.runSerialized("SeatShard", "conference",
+                conflicting(0, runs)));
+        assertEquals(2, runs.get());
+    }
+
+    @Test
+    public void testTakesTurnsForEachAttempt() throws Exception {
+        AtomicInteger runs = new AtomicInteger();
+        assertNotNull(Transactions.runSerialized("SeatShard", "conference",
+                conflicting(2, runs)));
+        assertEquals(3, runs.get());
+        // The key is released while backing off, and waited for again.
+        assertTrue(metrics().contains(
+                "conference_transaction_lock_wait_seconds_count{group=\"SeatShard\"} 3\n"));
+    }
+
+    @Test
+    public void testBackoff() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            long first = Transactions.backoffMillis(1);
+            assertTrue(first >= 0 && first <= 20);
+            long late = Transactions.backoffMillis(30);
+            assertTrue(late >= 0 && late <= 1000);
+        }
+    }
+}
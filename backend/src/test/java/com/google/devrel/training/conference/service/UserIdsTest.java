@@ -0,0 +1,95 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+import static org.junit.Assert.*;
+
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.api.users.User;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.common.collect.ImmutableList;
+import com.google.devrel.training.conference.domain.AppEngineUser;
+import com.googlecode.objectify.Key;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Map;
+
+/**
+ * Tests for UserIds.
+ */
+public class UserIdsTest {
+
+    private static final String EMAIL = "example@gmail.com";
+
+    private final LocalServiceTestHelper helper =
+            new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig()
+                    .setApplyAllHighRepJobPolicy(),
+                    new LocalMemcacheServiceTestConfig());
+
+    @Before
+    public void setUp() throws Exception {
+        helper.setUp();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        ofy().clear();
+        UserIds.clear();
+        helper.tearDown();
+    }
+
+    private int countAppEngineUsers() {
+        return ofy().load().type(AppEngineUser.class).count();
+    }
+
+    @Test
+    public void testResolveWithUserId() throws Exception {
+        assertEquals("123456789", UserIds.resolve(new User(EMAIL, "gmail.com", "123456789")));
+        assertEquals(0, countAppEngineUsers());
+    }
+
+    @Test
+    public void testResolve() throws Exception {
+        String userId = UserIds.resolve(new User(EMAIL, "gmail.com"));
+        assertNotNull(userId);
+        assertEquals(1, countAppEngineUsers());
+
+        // The mapping is served from the caches, even without the entity.
+        ofy().delete().key(Key.create(AppEngineUser.class, EMAIL)).now();
+        assertEquals(userId, UserIds.resolve(new User(EMAIL, "gmail.com")));
+        UserIds.clear();
+        assertEquals(userId, UserIds.resolve(new User(EMAIL, "gmail.com")));
+        assertEquals(0, countAppEngineUsers());
+    }
+
+    @Test
+    public void testResolveFromEntity() throws Exception {
+        String userId = UserIds.resolve(new User(EMAIL, "gmail.com"));
+        UserIds.clear();
+        MemcacheServiceFactory.getMemcacheService().clearAll();
+
+        // The persisted mapping is read, not written again.
+        ofy().clear();
+        assertEquals(userId, UserIds.resolve(new User(EMAIL, "gmail.com")));
+        assertEquals(1, countAppEngineUsers());
+    }
+
+    @Test
+    public void testResolveAll() throws Exception {
+        String userId = UserIds.resolve(new User(EMAIL, "gmail.com"));
+        String otherUserId = UserIds.resolve(new User("other@example.com", "gmail.com"));
+        UserIds.clear();
+        Map<String, String> userIds = UserIds.resolveAll(
+                ImmutableList.of(EMAIL, "other@example.com", "unknown@example.com"));
+        assertEquals(2, userIds.size());
+        assertEquals(userId, userIds.get(EMAIL));
+        assertEquals(otherUserId, userIds.get("other@example.com"));
+        assertFalse(userId.equals(otherUserId));
+        // Unknown users are not saved.
+        assertEquals(2, countAppEngineUsers());
+    }
+}
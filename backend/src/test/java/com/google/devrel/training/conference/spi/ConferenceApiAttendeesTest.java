@@ -0,0 +1,113 @@
+package com.google.devrel.training.conference.spi;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+import static org.junit.Assert.*;
+
+import com.google.api.server.spi.response.BadRequestException;
+import com.google.api.server.spi.response.CollectionResponse;
+import com.google.api.server.spi.response.ForbiddenException;
+import com.google.appengine.api.users.User;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.LocalTaskQueueTestConfig;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.domain.Profile;
+import com.google.devrel.training.conference.form.ConferenceForm;
+import com.google.devrel.training.conference.form.ProfileForm.TeeShirtSize;
+import com.google.devrel.training.conference.form.RegistrationBatchForm;
+import com.google.devrel.training.conference.service.SeatInventory;
+import com.google.devrel.training.conference.service.UserIds;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Tests for the rosters of ConferenceApi.
+ */
+public class ConferenceApiAttendeesTest {
+
+    private static final String EMAIL = "example@gmail.com";
+
+    private static final String USER_ID = "123456789";
+
+    private static final int ATTENDEES = 5;
+
+    private User user;
+
+    private ConferenceApi conferenceApi;
+
+    private Conference conference;
+
+    private List<String> emails;
+
+    private final LocalServiceTestHelper helper =
+            new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig()
+                    .setApplyAllHighRepJobPolicy(),
+                    new LocalMemcacheServiceTestConfig(),
+                    new LocalTaskQueueTestConfig().setDisableAutoTaskExecution(true));
+
+    @Before
+    public void setUp() throws Exception {
+        helper.setUp();
+        user = new User(EMAIL, "gmail.com", USER_ID);
+        conferenceApi = new ConferenceApi();
+        conference = new Conference(1001L, USER_ID,
+                new ConferenceForm("GCP Live", null, null, null, null, null, 10));
+        SeatInventory.initialize(conference);
+        ofy().save().entity(conference).now();
+        emails = new ArrayList<>(ATTENDEES);
+        for (int i = 0; i < ATTENDEES; i++) {
+            String email = "attendee" + i + "@example.com";
+            String userId = UserIds.resolve(new User(email, "gmail.com"));
+            ofy().save().entity(new Profile(userId, email, email, TeeShirtSize.NOT_SPECIFIED))
+                    .now();
+            emails.add(email);
+        }
+        conferenceApi.registerBatch(user, conference.getWebsafeKey(),
+                new RegistrationBatchForm(emails));
+        ofy().clear();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        ofy().clear();
+        UserIds.clear();
+        helper.tearDown();
+    }
+
+    @Test
+    public void testGetAttendees() throws Exception {
+        Set<String> seen = new HashSet<>();
+        String cursor = null;
+        int pages = 0;
+        do {
+            CollectionResponse<Profile> page = conferenceApi.getAttendees(user,
+                    conference.getWebsafeKey(), cursor, 2);
+            for (Profile profile : page.getItems()) {
+                assertTrue(seen.add(profile.getMainEmail()));
+            }
+            cursor = page.getNextPageToken();
+            pages++;
+        } while (cursor != null);
+        assertEquals(new HashSet<>(emails), seen);
+        assertEquals(3, pages);
+    }
+
+    @Test(expected = ForbiddenException.class)
+    public void testGetAttendeesNotOrganizer() throws Exception {
+        conferenceApi.getAttendees(new User("other@gmail.com", "gmail.com", "987654321"),
+                conference.getWebsafeKey(), null, null);
+    }
+
+    @Test(expected = BadRequestException.class)
+    public void testGetAttendeesInvalidCursor() throws Exception {
+        conferenceApi.getAttendees(user, conference.getWebsafeKey(), "not a cursor", null);
+    }
+}
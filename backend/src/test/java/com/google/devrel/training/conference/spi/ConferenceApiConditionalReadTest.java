@@ -0,0 +1,133 @@
+package com.google.devrel.training.conference.spi;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+import static org.junit.Assert.*;
+
+import com.google.appengine.api.users.User;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.LocalTaskQueueTestConfig;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.domain.Profile;
+import com.google.devrel.training.conference.form.ConferenceForm;
+import com.google.devrel.training.conference.form.ConferenceQueryForm;
+import com.google.devrel.training.conference.form.ProfileForm.TeeShirtSize;
+import com.google.devrel.training.conference.service.ConferenceIndex;
+import com.google.devrel.training.conference.service.ConferenceTextIndex;
+import com.google.devrel.training.conference.service.Profiles;
+import com.google.devrel.training.conference.service.SeatInventory;
+import com.google.devrel.training.conference.service.UserIds;
+import com.google.devrel.training.conference.spi.ConferenceApi.ConditionalConferences;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for the conditional reads of ConferenceApi.
+ */
+public class ConferenceApiConditionalReadTest {
+
+    private static final String EMAIL = "example@gmail.com";
+
+    private static final String USER_ID = "123456789";
+
+    private User user;
+
+    private ConferenceApi conferenceApi;
+
+    private Conference conference;
+
+    private final LocalServiceTestHelper helper =
+            new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig()
+                    .setApplyAllHighRepJobPolicy(),
+                    new LocalMemcacheServiceTestConfig(),
+                    new LocalTaskQueueTestConfig().setDisableAutoTaskExecution(true));
+
+    @Before
+    public void setUp() throws Exception {
+        helper.setUp();
+        user = new User(EMAIL, "gmail.com", USER_ID);
+        conferenceApi = new ConferenceApi();
+        conference = new Conference(1001L, USER_ID,
+                new ConferenceForm("GCP Live", null, null, null, null, null, 10));
+        SeatInventory.initialize(conference);
+        ofy().save().entities(conference,
+                new Profile(USER_ID, "Alice", EMAIL, TeeShirtSize.M)).now();
+        ofy().clear();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        ofy().clear();
+        ConferenceIndex.clear();
+        ConferenceTextIndex.clear();
+        Profiles.clear();
+        UserIds.clear();
+        helper.tearDown();
+    }
+
+    @Test
+    public void testGetConferenceIfModified() throws Exception {
+        String websafeKey = conference.getWebsafeKey();
+        ConditionalConferences first = conferenceApi.getConferenceIfModified(websafeKey, null);
+        assertTrue(first.getModified());
+        assertEquals(1, first.getItems().size());
+        assertEquals(first.getEtag(), first.getItems().iterator().next().getEtag());
+
+        ConditionalConferences unchanged =
+                conferenceApi.getConferenceIfModified(websafeKey, first.getEtag());
+        assertFalse(unchanged.getModified());
+        assertNull(unchanged.getItems());
+        assertEquals(first.getEtag(), unchanged.getEtag());
+
+        conferenceApi.updateConference(user,
+                new ConferenceForm("GCP Live 2", null, null, null, null, null, 10), websafeKey);
+        ofy().clear();
+        ConditionalConferences updated =
+                conferenceApi.getConferenceIfModified(websafeKey, first.getEtag());
+        assertTrue(updated.getModified());
+        assertEquals("GCP Live 2", updated.getItems().iterator().next().getName());
+    }
+
+    @Test
+    public void testQueryConferencesIfModified() throws Exception {
+        ConditionalConferences first =
+                conferenceApi.queryConferencesIfModified(new ConferenceQueryForm(), null);
+        assertTrue(first.getModified());
+        assertEquals(1, first.getItems().size());
+
+        ConditionalConferences unchanged = conferenceApi.queryConferencesIfModified(
+                new ConferenceQueryForm(), "W/" + first.getEtag());
+        assertFalse(unchanged.getModified());
+        assertNull(unchanged.getItems());
+
+        // A seat booked through the shards doesn't write the Conference, but shows in the etag.
+        assertTrue(conferenceApi.registerForConference(user, conference.getWebsafeKey())
+                .getResult());
+        ofy().clear();
+        ConditionalConferences booked = conferenceApi.queryConferencesIfModified(
+                new ConferenceQueryForm(), first.getEtag());
+        assertTrue(booked.getModified());
+        assertEquals(9, booked.getItems().iterator().next().getSeatsAvailable());
+    }
+
+    @Test
+    public void testGetConferencesToAttendIfModified() throws Exception {
+        ConditionalConferences none =
+                conferenceApi.getConferencesToAttendIfModified(user, null);
+        assertTrue(none.getItems().isEmpty());
+
+        conferenceApi.registerForConference(user, conference.getWebsafeKey());
+        ofy().clear();
+        ConditionalConferences attending =
+                conferenceApi.getConferencesToAttendIfModified(user, none.getEtag());
+        assertTrue(attending.getModified());
+        assertEquals(1, attending.getItems().size());
+
+        ofy().clear();
+        assertFalse(conferenceApi.getConferencesToAttendIfModified(user, attending.getEtag())
+                .getModified());
+    }
+}
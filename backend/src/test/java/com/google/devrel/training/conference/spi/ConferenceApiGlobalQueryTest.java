@@ -3,20 +3,30 @@ package com.google.devrel.training.conference.spi;
 import static com.google.devrel.training.conference.service.OfyService.ofy;
 import static org.junit.Assert.*;
 
+import com.google.api.server.spi.response.BadRequestException;
+import com.google.api.server.spi.response.CollectionResponse;
 import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
 import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.LocalTaskQueueTestConfig;
+import com.google.apphosting.api.ApiProxy;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.devrel.training.conference.domain.Conference;
 import com.google.devrel.training.conference.form.ConferenceForm;
 import com.google.devrel.training.conference.form.ConferenceQueryForm;
+import com.google.devrel.training.conference.service.ConferenceIndex;
+import com.google.devrel.training.conference.service.ConferenceQueryCache;
+import com.google.devrel.training.conference.service.ConferenceTextIndex;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * Tests for ConferenceApi API methods.
@@ -55,6 +65,9 @@ public class ConferenceApiGlobalQueryTest {
 
     private static final int CAP3 = 1500;
 
+    private static final String BACKGROUND_THREAD_FACTORY =
+            "com.google.appengine.api.ThreadManager.BACKGROUND_THREAD_FACTORY";
+
     private Date startDate1;
 
     private Date startDate2;
@@ -74,7 +87,27 @@ public class ConferenceApiGlobalQueryTest {
      */
     private final LocalServiceTestHelper helper =
             new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig()
-                    .setDefaultHighRepJobPolicyUnappliedJobPercentage(0));
+                    .setDefaultHighRepJobPolicyUnappliedJobPercentage(0),
+                    new LocalTaskQueueTestConfig().setDisableAutoTaskExecution(true))
+                    .setEnvAttributes(ImmutableMap.<String, Object>of(
+                            BACKGROUND_THREAD_FACTORY, new TestThreadFactory()));
+
+    /**
+     * Creates the background threads of the index rebuilds, in the environment of the test.
+     */
+    private static class TestThreadFactory implements ThreadFactory {
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            final ApiProxy.Environment environment = ApiProxy.getCurrentEnvironment();
+            return new Thread() {
+                @Override
+                public void run() {
+                    ApiProxy.setEnvironmentForCurrentThread(environment);
+                    runnable.run();
+                }
+            };
+        }
+    }
 
     private Conference conference1;
 
@@ -112,6 +145,8 @@ public class ConferenceApiGlobalQueryTest {
     @After
     public void tearDown() throws Exception {
         ofy().clear();
+        ConferenceIndex.clear();
+        ConferenceTextIndex.clear();
         helper.tearDown();
     }
 
@@ -119,7 +154,7 @@ public class ConferenceApiGlobalQueryTest {
     public void testEmptyQuery() throws Exception {
         // Empty query.
         ConferenceQueryForm conferenceQueryForm = new ConferenceQueryForm();
-        List<Conference> conferences = conferenceApi.queryConferences(conferenceQueryForm);
+        List<Conference> conferences = queryConferences(conferenceQueryForm);
         assertEquals(3, conferences.size());
         assertTrue("The result should contain conference1.", conferences.contains(conference1));
         assertTrue("The result should contain conference2.", conferences.contains(conference2));
@@ -138,7 +173,7 @@ public class ConferenceApiGlobalQueryTest {
                         ConferenceQueryForm.Operator.EQ,
                         "Tokyo"
                 ));
-        List<Conference> conferences = conferenceApi.queryConferences(conferenceQueryForm);
+        List<Conference> conferences = queryConferences(conferenceQueryForm);
         assertEquals(1, conferences.size());
         assertTrue("The result should contain conference3.", conferences.contains(conference3));
     }
@@ -152,7 +187,7 @@ public class ConferenceApiGlobalQueryTest {
                         ConferenceQueryForm.Operator.EQ,
                         "Japan"
                 ));
-        List<Conference> conferences = conferenceApi.queryConferences(conferenceQueryForm);
+        List<Conference> conferences = queryConferences(conferenceQueryForm);
         assertEquals(1, conferences.size());
         assertTrue("The result should contain conference3.", conferences.contains(conference3));
     }
@@ -176,7 +211,7 @@ public class ConferenceApiGlobalQueryTest {
                         ConferenceQueryForm.Operator.EQ,
                         "6"
                 ));
-        List<Conference> conferences = conferenceApi.queryConferences(conferenceQueryForm);
+        List<Conference> conferences = queryConferences(conferenceQueryForm);
         assertEquals(1, conferences.size());
         assertTrue("The result should contain conference2.", conferences.contains(conference2));
     }
@@ -190,7 +225,7 @@ public class ConferenceApiGlobalQueryTest {
                         ConferenceQueryForm.Operator.GT,
                         "999"
                 ));
-        List<Conference> conferences = conferenceApi.queryConferences(conferenceQueryForm);
+        List<Conference> conferences = queryConferences(conferenceQueryForm);
         assertEquals(2, conferences.size());
         assertTrue("The result should contain conference2.", conferences.contains(conference2));
         assertTrue("The result should contain conference3.", conferences.contains(conference3));
@@ -207,7 +242,7 @@ public class ConferenceApiGlobalQueryTest {
                         ConferenceQueryForm.Operator.LT,
                         "1001"
                 ));
-        List<Conference> conferences = conferenceApi.queryConferences(conferenceQueryForm);
+        List<Conference> conferences = queryConferences(conferenceQueryForm);
         assertEquals(2, conferences.size());
         assertTrue("The result should contain conference1.", conferences.contains(conference1));
         assertTrue("The result should contain conference2.", conferences.contains(conference2));
@@ -224,7 +259,7 @@ public class ConferenceApiGlobalQueryTest {
                         ConferenceQueryForm.Operator.GTEQ,
                         "1000"
                 ));
-        List<Conference> conferences = conferenceApi.queryConferences(conferenceQueryForm);
+        List<Conference> conferences = queryConferences(conferenceQueryForm);
         assertEquals(2, conferences.size());
         assertTrue("The result should contain conference2.", conferences.contains(conference2));
         assertTrue("The result should contain conference3.", conferences.contains(conference3));
@@ -241,7 +276,7 @@ public class ConferenceApiGlobalQueryTest {
                         ConferenceQueryForm.Operator.LTEQ,
                         "1000"
                 ));
-        List<Conference> conferences = conferenceApi.queryConferences(conferenceQueryForm);
+        List<Conference> conferences = queryConferences(conferenceQueryForm);
         assertEquals(2, conferences.size());
         assertTrue("The result should contain conference1.", conferences.contains(conference1));
         assertTrue("The result should contain conference2.", conferences.contains(conference2));
@@ -258,7 +293,7 @@ public class ConferenceApiGlobalQueryTest {
                         ConferenceQueryForm.Operator.NE,
                         "1000"
                 ));
-        List<Conference> conferences = conferenceApi.queryConferences(conferenceQueryForm);
+        List<Conference> conferences = queryConferences(conferenceQueryForm);
         assertEquals(2, conferences.size());
         assertTrue("The result should contain conference1.", conferences.contains(conference1));
         assertTrue("The result should contain conference3.", conferences.contains(conference3));
@@ -266,7 +301,7 @@ public class ConferenceApiGlobalQueryTest {
         assertEquals(conference3, conferences.get(1));
     }
 
-    @Test(expected = IllegalArgumentException.class)
+    @Test
     public void testMultipleInequalityFilter() throws Exception {
         // A query specifies the maxAttendees <= 1000 and month != 6.
         ConferenceQueryForm conferenceQueryForm = new ConferenceQueryForm()
@@ -280,5 +315,182 @@ public class ConferenceApiGlobalQueryTest {
                         ConferenceQueryForm.Operator.NE,
                         "6"
                 ));
+        assertTrue(conferenceQueryForm.hasMultipleInequalityFields());
+        List<Conference> conferences = queryConferences(conferenceQueryForm);
+        assertEquals(1, conferences.size());
+        assertEquals(conference1, conferences.get(0));
+    }
+
+    @Test
+    public void testMultipleInequalityFilterPagination() throws Exception {
+        // A query specifies the seatsAvailable > 0 and month != 6 and topic == Platform.
+        ConferenceQueryForm conferenceQueryForm = new ConferenceQueryForm()
+                .filter(new ConferenceQueryForm.Filter(
+                        ConferenceQueryForm.Field.SEATS_AVAILABLE,
+                        ConferenceQueryForm.Operator.GT,
+                        "0"
+                ))
+                .filter(new ConferenceQueryForm.Filter(
+                        ConferenceQueryForm.Field.MONTH,
+                        ConferenceQueryForm.Operator.NE,
+                        "6"
+                ))
+                .filter(new ConferenceQueryForm.Filter(
+                        ConferenceQueryForm.Field.TOPIC,
+                        ConferenceQueryForm.Operator.EQ,
+                        "Platform"
+                ))
+                .limit(1);
+        ConferenceIndex.rebuild(ConferenceQueryCache.generation());
+        CollectionResponse<Conference> page = conferenceApi.queryConferences(conferenceQueryForm);
+        assertEquals(ImmutableList.of(conference1), ImmutableList.copyOf(page.getItems()));
+        assertTrue(ConferenceIndex.isIndexToken(page.getNextPageToken()));
+
+        page = conferenceApi.queryConferences(conferenceQueryForm.cursor(page.getNextPageToken()));
+        assertEquals(ImmutableList.of(conference3), ImmutableList.copyOf(page.getItems()));
+        assertNull(page.getNextPageToken());
+    }
+
+    @Test
+    public void testMultipleInequalityFilterColdIndex() throws Exception {
+        ConferenceQueryForm conferenceQueryForm = new ConferenceQueryForm()
+                .filter(new ConferenceQueryForm.Filter(
+                        ConferenceQueryForm.Field.MAX_ATTENDEES,
+                        ConferenceQueryForm.Operator.LTEQ,
+                        "1000"
+                ))
+                .filter(new ConferenceQueryForm.Filter(
+                        ConferenceQueryForm.Field.MONTH,
+                        ConferenceQueryForm.Operator.NE,
+                        "6"
+                ));
+        try {
+            conferenceApi.queryConferences(conferenceQueryForm.cursor("index:1"));
+            fail("BadRequestException expected");
+        } catch (BadRequestException e) {
+            // The following pages of the index can't be served without it.
+        }
+
+        // The datastore answers while the index is rebuilt by a thread of this instance.
+        assertEquals(ImmutableList.of(conference1),
+                queryConferences(conferenceQueryForm.cursor(null)));
+        long generation = ConferenceQueryCache.generation();
+        for (int i = 0; i < 100 && ConferenceIndex.search(conferenceQueryForm.getFilters(),
+                generation, null, 10) == null; i++) {
+            Thread.sleep(50);
+        }
+        ConferenceIndex.Page page = ConferenceIndex.search(conferenceQueryForm.getFilters(),
+                generation, null, 10);
+        assertNotNull(page);
+        assertEquals(ImmutableList.of(conference1.getWebsafeKey()),
+                page.getWebsafeConferenceKeys());
+    }
+
+    @Test
+    public void testSearchConferences() throws Exception {
+        ConferenceQueryForm conferenceQueryForm = new ConferenceQueryForm()
+                .filter(new ConferenceQueryForm.Filter(
+                        ConferenceQueryForm.Field.TEXT,
+                        ConferenceQueryForm.Operator.EQ,
+                        "World tour cloud"
+                ));
+        List<Conference> conferences = new ArrayList<>(
+                conferenceApi.searchConferences(conferenceQueryForm).getItems());
+        assertEquals(2, conferences.size());
+        assertEquals(conference3, conferences.get(0));
+        assertEquals(conference1, conferences.get(1));
+
+        // Other filters narrow the matches down, queryConferences delegates to the search.
+        conferenceQueryForm.filter(new ConferenceQueryForm.Filter(
+                ConferenceQueryForm.Field.MAX_ATTENDEES,
+                ConferenceQueryForm.Operator.LT,
+                "1000"
+        ));
+        assertEquals(ImmutableList.of(conference1), queryConferences(conferenceQueryForm));
+    }
+
+    @Test(expected = BadRequestException.class)
+    public void testSearchConferencesWithoutText() throws Exception {
+        conferenceApi.searchConferences(new ConferenceQueryForm());
+    }
+
+    @Test
+    public void testPagination() throws Exception {
+        ConferenceQueryForm conferenceQueryForm = new ConferenceQueryForm().limit(2);
+        CollectionResponse<Conference> page = conferenceApi.queryConferences(conferenceQueryForm);
+        List<Conference> conferences = new ArrayList<>(page.getItems());
+        assertEquals(2, conferences.size());
+        assertEquals(conference1, conferences.get(0));
+        assertEquals(conference3, conferences.get(1));
+        assertNotNull(page.getNextPageToken());
+
+        conferenceQueryForm = new ConferenceQueryForm().limit(2).cursor(page.getNextPageToken());
+        page = conferenceApi.queryConferences(conferenceQueryForm);
+        conferences = new ArrayList<>(page.getItems());
+        assertEquals(1, conferences.size());
+        assertEquals(conference2, conferences.get(0));
+        assertNull(page.getNextPageToken());
+    }
+
+    @Test
+    public void testPaginationNE() throws Exception {
+        // The datastore has no cursor for a != filter, a full page has no following page.
+        ConferenceQueryForm conferenceQueryForm = new ConferenceQueryForm()
+                .filter(new ConferenceQueryForm.Filter(
+                        ConferenceQueryForm.Field.MAX_ATTENDEES,
+                        ConferenceQueryForm.Operator.NE,
+                        "1000"
+                ))
+                .limit(1);
+        CollectionResponse<Conference> page = conferenceApi.queryConferences(conferenceQueryForm);
+        assertEquals(ImmutableList.of(conference1), new ArrayList<>(page.getItems()));
+        assertNull(page.getNextPageToken());
+
+        System.setProperty(ConferenceQueryForm.KEYS_ONLY_PROPERTY, "true");
+        try {
+            ConferenceQueryCache.invalidate();
+            page = conferenceApi.queryConferences(conferenceQueryForm);
+            assertEquals(ImmutableList.of(conference1), new ArrayList<>(page.getItems()));
+            assertNull(page.getNextPageToken());
+        } finally {
+            System.clearProperty(ConferenceQueryForm.KEYS_ONLY_PROPERTY);
+        }
+    }
+
+    @Test
+    public void testLimitWithinMax() throws Exception {
+        assertEquals(ConferenceQueryForm.DEFAULT_LIMIT, new ConferenceQueryForm().getLimit());
+        assertEquals(ConferenceQueryForm.MAX_LIMIT,
+                new ConferenceQueryForm().limit(ConferenceQueryForm.MAX_LIMIT + 1).getLimit());
+    }
+
+    @Test(expected = BadRequestException.class)
+    public void testInvalidCursor() throws Exception {
+        conferenceApi.queryConferences(new ConferenceQueryForm().cursor("invalid"));
+    }
+
+    @Test
+    public void testKeysOnlyQuery() throws Exception {
+        ConferenceQueryForm conferenceQueryForm = new ConferenceQueryForm()
+                .filter(new ConferenceQueryForm.Filter(
+                        ConferenceQueryForm.Field.TOPIC,
+                        ConferenceQueryForm.Operator.EQ,
+                        "Cloud"
+                ));
+        List<Conference> expected = queryConferences(conferenceQueryForm);
+        System.setProperty(ConferenceQueryForm.KEYS_ONLY_PROPERTY, "true");
+        try {
+            List<Conference> conferences = queryConferences(conferenceQueryForm);
+            assertEquals(expected, conferences);
+            assertEquals(conference1, conferences.get(0));
+            assertEquals(conference3, conferences.get(1));
+        } finally {
+            System.clearProperty(ConferenceQueryForm.KEYS_ONLY_PROPERTY);
+        }
+    }
+
+    private List<Conference> queryConferences(ConferenceQueryForm conferenceQueryForm)
+            throws Exception {
+        return new ArrayList<>(conferenceApi.queryConferences(conferenceQueryForm).getItems());
     }
 }
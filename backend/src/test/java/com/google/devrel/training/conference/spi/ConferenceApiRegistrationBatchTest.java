@@ -0,0 +1,146 @@
+package com.google.devrel.training.conference.spi;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+import static org.junit.Assert.*;
+
+import com.google.api.server.spi.response.BadRequestException;
+import com.google.api.server.spi.response.ConflictException;
+import com.google.api.server.spi.response.ForbiddenException;
+import com.google.appengine.api.users.User;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.LocalTaskQueueTestConfig;
+import com.google.appengine.tools.development.testing.LocalUserServiceTestConfig;
+import com.google.common.collect.ImmutableList;
+import com.google.devrel.training.conference.domain.AppEngineUser;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.domain.Profile;
+import com.google.devrel.training.conference.form.ConferenceForm;
+import com.google.devrel.training.conference.form.ProfileForm.TeeShirtSize;
+import com.google.devrel.training.conference.form.RegistrationBatchForm;
+import com.google.devrel.training.conference.service.SeatInventory;
+import com.google.devrel.training.conference.service.UserIds;
+import com.google.devrel.training.conference.spi.ConferenceApi.RegistrationBatchResult;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests for the group bookings of ConferenceApi.
+ */
+public class ConferenceApiRegistrationBatchTest {
+
+    private static final String EMAIL = "example@gmail.com";
+
+    private static final String USER_ID = "123456789";
+
+    private static final int CAP = 12;
+
+    private User user;
+
+    private ConferenceApi conferenceApi;
+
+    private Conference conference;
+
+    private final LocalServiceTestHelper helper =
+            new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig()
+                    .setDefaultHighRepJobPolicyUnappliedJobPercentage(100),
+                    new LocalMemcacheServiceTestConfig(),
+                    new LocalTaskQueueTestConfig().setDisableAutoTaskExecution(true),
+                    new LocalUserServiceTestConfig().setOAuthIsAdmin(false));
+
+    @Before
+    public void setUp() throws Exception {
+        helper.setUp();
+        user = new User(EMAIL, "gmail.com", USER_ID);
+        conferenceApi = new ConferenceApi();
+        conference = new Conference(1001L, USER_ID,
+                new ConferenceForm("GCP Live", null, null, null, null, null, CAP));
+        SeatInventory.initialize(conference);
+        ofy().save().entity(conference).now();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        ofy().clear();
+        UserIds.clear();
+        helper.tearDown();
+    }
+
+    /**
+     * Returns the e-mail addresses of the given number of attendees, who have a Profile.
+     */
+    private List<String> emails(int count) {
+        List<String> emails = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            emails.add(signUp("attendee" + i + "@example.com"));
+        }
+        return emails;
+    }
+
+    private String signUp(String email) {
+        String userId = UserIds.resolve(new User(email, "gmail.com"));
+        ofy().save().entity(new Profile(userId, email, email, TeeShirtSize.NOT_SPECIFIED)).now();
+        return email;
+    }
+
+    @Test
+    public void testRegisterBatch() throws Exception {
+        List<String> emails = emails(CAP - 1);
+        RegistrationBatchResult result = conferenceApi.registerBatch(user,
+                conference.getWebsafeKey(), new RegistrationBatchForm(emails));
+        assertEquals(emails, result.getRegistered());
+        assertEquals(ImmutableList.of(), result.getAlreadyRegistered());
+        assertEquals(1, SeatInventory.countSeatsAvailable(conference));
+
+        // Attendees registered already keep their seat, the others need one each.
+        List<String> moreEmails = ImmutableList.of(emails.get(0), signUp("late@example.com"));
+        result = conferenceApi.registerBatch(user, conference.getWebsafeKey(),
+                new RegistrationBatchForm(moreEmails));
+        assertEquals(ImmutableList.of("late@example.com"), result.getRegistered());
+        assertEquals(ImmutableList.of(emails.get(0)), result.getAlreadyRegistered());
+        assertEquals(0, SeatInventory.countSeatsAvailable(conference));
+    }
+
+    @Test
+    public void testRegisterBatchWithoutSeats() throws Exception {
+        try {
+            conferenceApi.registerBatch(user, conference.getWebsafeKey(),
+                    new RegistrationBatchForm(emails(CAP + 1)));
+            fail("ConflictException expected");
+        } catch (ConflictException e) {
+            // All or none.
+            assertEquals(CAP, SeatInventory.countSeatsAvailable(conference));
+        }
+    }
+
+    @Test
+    public void testRegisterBatchWithUnknownAttendees() throws Exception {
+        List<String> emails = ImmutableList.of(signUp("known@example.com"),
+                "unknown@example.com");
+        RegistrationBatchResult result = conferenceApi.registerBatch(user,
+                conference.getWebsafeKey(), new RegistrationBatchForm(emails));
+        assertEquals(ImmutableList.of("known@example.com"), result.getRegistered());
+        assertEquals(ImmutableList.of("unknown@example.com"), result.getUnknown());
+        assertEquals(CAP - 1, SeatInventory.countSeatsAvailable(conference));
+        // Nothing is saved for the unknown attendee.
+        assertNull(ofy().load().type(AppEngineUser.class).id("unknown@example.com").now());
+    }
+
+    @Test(expected = ForbiddenException.class)
+    public void testRegisterBatchByOtherUser() throws Exception {
+        conferenceApi.registerBatch(new User("other@gmail.com", "gmail.com", "987654321"),
+                conference.getWebsafeKey(), new RegistrationBatchForm(emails(1)));
+    }
+
+    @Test(expected = BadRequestException.class)
+    public void testRegisterEmptyBatch() throws Exception {
+        conferenceApi.registerBatch(user, conference.getWebsafeKey(),
+                new RegistrationBatchForm(ImmutableList.<String>of()));
+    }
+}
@@ -12,6 +12,7 @@ import com.google.devrel.training.conference.domain.Profile;
 // import com.google.devrel.training.conference.form.ConferenceForm;
 import com.google.devrel.training.conference.form.ProfileForm;
 import com.google.devrel.training.conference.form.ProfileForm.TeeShirtSize;
+import com.google.devrel.training.conference.service.Profiles;
 import com.googlecode.objectify.Key;
 
 import org.junit.After;
@@ -65,6 +66,7 @@ public class ConferenceApiTest {
     @After
     public void tearDown() throws Exception {
         ofy().clear();
+        Profiles.clear();
         helper.tearDown();
     }
 
@@ -0,0 +1,125 @@
+package com.google.devrel.training.conference.spi;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+import static org.junit.Assert.*;
+
+import com.google.api.server.spi.response.ConflictException;
+import com.google.appengine.api.users.User;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.LocalTaskQueueTestConfig;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.domain.Profile;
+import com.google.devrel.training.conference.form.ConferenceForm;
+import com.google.devrel.training.conference.form.ProfileForm.TeeShirtSize;
+import com.google.devrel.training.conference.service.ConferenceIndex;
+import com.google.devrel.training.conference.service.ConferenceTextIndex;
+import com.google.devrel.training.conference.service.Profiles;
+import com.google.devrel.training.conference.service.SeatInventory;
+import com.google.devrel.training.conference.service.UserIds;
+import com.googlecode.objectify.Key;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for the updates of the capacity of a Conference by ConferenceApi.
+ */
+public class ConferenceApiUpdateTest {
+
+    private static final String EMAIL = "example@gmail.com";
+
+    private static final String USER_ID = "123456789";
+
+    private static final int CAP = 100;
+
+    private static final int BOOKED = 90;
+
+    private User user;
+
+    private ConferenceApi conferenceApi;
+
+    private final LocalServiceTestHelper helper =
+            new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig()
+                    .setApplyAllHighRepJobPolicy(),
+                    new LocalMemcacheServiceTestConfig(),
+                    new LocalTaskQueueTestConfig().setDisableAutoTaskExecution(true));
+
+    @Before
+    public void setUp() throws Exception {
+        helper.setUp();
+        user = new User(EMAIL, "gmail.com", USER_ID);
+        conferenceApi = new ConferenceApi();
+        ofy().save().entity(new Profile(USER_ID, "Alice", EMAIL, TeeShirtSize.M)).now();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        ofy().clear();
+        ConferenceIndex.clear();
+        ConferenceTextIndex.clear();
+        Profiles.clear();
+        UserIds.clear();
+        helper.tearDown();
+    }
+
+    private static ConferenceForm form(int maxAttendees) {
+        return new ConferenceForm("GCP Live", null, null, null, null, null, maxAttendees);
+    }
+
+    private Conference load(Conference conference) {
+        ofy().clear();
+        return ofy().load().key(Key.<Conference>create(conference.getWebsafeKey())).now();
+    }
+
+    @Test
+    public void testUpdateLegacyConference() throws Exception {
+        // Created before the seat inventory was sharded, the seats are booked on the Conference.
+        Conference legacy = new Conference(1001L, USER_ID, form(CAP));
+        legacy.bookSeats(BOOKED);
+        ofy().save().entity(legacy).now();
+        assertCapacity(legacy);
+    }
+
+    @Test
+    public void testUpdateShardedConference() throws Exception {
+        Conference conference = new Conference(1001L, USER_ID, form(CAP));
+        SeatInventory.initialize(conference);
+        ofy().save().entity(conference).now();
+        assertTrue(SeatInventory.bookSeatsInTransactions(conference, BOOKED));
+        assertCapacity(conference);
+    }
+
+    /**
+     * Checks that the capacity of the given Conference, having BOOKED seats out of CAP, can't
+     * go below the seats booked.
+     */
+    private void assertCapacity(Conference conference) throws Exception {
+        String websafeKey = conference.getWebsafeKey();
+        try {
+            conferenceApi.updateConference(user, form(BOOKED - 10), websafeKey);
+            fail("ConflictException expected");
+        } catch (ConflictException e) {
+            // The seats are not removed.
+            Conference stored = load(conference);
+            assertEquals(CAP, stored.getMaxAttendees());
+            assertEquals(0, stored.getSeatsBeingRemoved());
+            assertEquals(CAP - BOOKED, SeatInventory.countSeatsAvailable(stored));
+        }
+
+        Conference updated = conferenceApi.updateConference(user, form(BOOKED), websafeKey);
+        assertEquals(BOOKED, updated.getMaxAttendees());
+        assertEquals(0, updated.getSeatsAvailable());
+        assertEquals(0, SeatInventory.countSeatsAvailable(load(conference)));
+        // The update ended the removal, the scheduled sync has nothing to put back.
+        assertEquals(0, load(conference).getSeatsBeingRemoved());
+        assertFalse(SeatInventory.reconcileSeatsRemoval(load(conference)));
+
+        updated = conferenceApi.updateConference(user, form(CAP + 20), websafeKey);
+        assertEquals(CAP + 20, updated.getMaxAttendees());
+        assertEquals(CAP + 20 - BOOKED, updated.getSeatsAvailable());
+        assertEquals(CAP + 20 - BOOKED, SeatInventory.countSeatsAvailable(load(conference)));
+    }
+}
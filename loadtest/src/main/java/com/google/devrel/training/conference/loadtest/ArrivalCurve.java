@@ -0,0 +1,113 @@
+/* Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.devrel.training.conference.loadtest;
+
+/**
+ * The rate at which requests arrive over the run of a LoadTest. The arrivals are scheduled
+ * from the curve, whatever the latency of the server, like real users who don't wait for each
+ * other.
+ */
+public abstract class ArrivalCurve {
+
+    /**
+     * The rate used while the curve is at 0, so that the schedule moves on.
+     */
+    private static final double MIN_RATE = 0.1;
+
+    /**
+     * Returns the arrival rate at the given time.
+     *
+     * @param elapsedMillis the time since the start of the run.
+     * @return the number of arrivals per second.
+     */
+    public abstract double rateAt(long elapsedMillis);
+
+    /**
+     * Returns the time of the arrival following the one at the given time.
+     *
+     * @param elapsedNanos the time of an arrival since the start of the run.
+     * @return the time of the next arrival since the start of the run.
+     */
+    public long nextArrivalNanos(final long elapsedNanos) {
+        double rate = Math.max(MIN_RATE, rateAt(elapsedNanos / 1000000));
+        return elapsedNanos + (long) (1000000000 / rate);
+    }
+
+    /**
+     * Returns a curve with a constant rate, like users browsing the conferences.
+     *
+     * @param rate the number of arrivals per second.
+     * @return the curve.
+     */
+    public static ArrivalCurve steady(final double rate) {
+        return new ArrivalCurve() {
+            @Override
+            public double rateAt(final long elapsedMillis) {
+                return rate;
+            }
+
+            @Override
+            public String toString() {
+                return String.format("steady %.1f/s", rate);
+            }
+        };
+    }
+
+    /**
+     * Returns a curve of a ticket drop: the rate ramps up from the base rate to the peak
+     * rate at the start of the spike, holds, then goes back down to the base rate.
+     *
+     * @param baseRate the number of arrivals per second before and after the spike.
+     * @param peakRate the number of arrivals per second at the top of the spike.
+     * @param startMillis the start of the spike.
+     * @param rampMillis the time to reach the peak rate.
+     * @param holdMillis the time at the peak rate.
+     * @param decayMillis the time to get back to the base rate.
+     * @return the curve.
+     */
+    public static ArrivalCurve spike(final double baseRate, final double peakRate,
+            final long startMillis, final long rampMillis, final long holdMillis,
+            final long decayMillis) {
+        return new ArrivalCurve() {
+            @Override
+            public double rateAt(final long elapsedMillis) {
+                long t = elapsedMillis - startMillis;
+                if (t < 0) {
+                    return baseRate;
+                }
+                if (t < rampMillis) {
+                    return baseRate + (peakRate - baseRate) * t / rampMillis;
+                }
+                t -= rampMillis;
+                if (t < holdMillis) {
+                    return peakRate;
+                }
+                t -= holdMillis;
+                if (t < decayMillis) {
+                    return peakRate - (peakRate - baseRate) * t / decayMillis;
+                }
+                return baseRate;
+            }
+
+            @Override
+            public String toString() {
+                return String.format("spike %.1f/s to %.1f/s at %d ms, ramp %d ms, hold %d ms, "
+                        + "decay %d ms", baseRate, peakRate, startMillis, rampMillis,
+                        holdMillis, decayMillis);
+            }
+        };
+    }
+}
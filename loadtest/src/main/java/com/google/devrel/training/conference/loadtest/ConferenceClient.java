@@ -0,0 +1,169 @@
+/* Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.devrel.training.conference.loadtest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Calls the Endpoints REST API of ConferenceApi over plain HTTP.
+ */
+public class ConferenceClient {
+
+    /**
+     * The status of a request that didn't get a response.
+     */
+    public static final int NO_RESPONSE = -1;
+
+    private static final int TIMEOUT_MILLIS = 30 * 1000;
+
+    private static final Pattern WEBSAFE_KEY =
+            Pattern.compile("\"websafeKey\"\\s*:\\s*\"([^\"]+)\"");
+
+    /**
+     * The response to a request.
+     */
+    public static class Response {
+        private final int status;
+        private final String body;
+
+        Response(final int status, final String body) {
+            this.status = status;
+            this.body = body;
+        }
+
+        /**
+         * Returns the HTTP status, or NO_RESPONSE.
+         */
+        public int getStatus() {
+            return status;
+        }
+
+        public String getBody() {
+            return body;
+        }
+    }
+
+    private final String apiUrl;
+
+    /**
+     * @param serverUrl the URL of the server, for example http://localhost:8080.
+     */
+    public ConferenceClient(final String serverUrl) {
+        this.apiUrl = serverUrl.replaceAll("/+$", "") + "/_ah/api/conference/v1/";
+    }
+
+    public Response queryConferences(final int limit) {
+        return call("POST", "queryConferences", "{\"filters\": [], \"limit\": " + limit + "}",
+                null);
+    }
+
+    public Response getConference(final String websafeConferenceKey) {
+        return call("GET", "conference/" + encode(websafeConferenceKey), null, null);
+    }
+
+    /**
+     * @param token the OAuth 2.0 access token of the user, null to call anonymously.
+     */
+    public Response registerForConference(final String websafeConferenceKey,
+            final String token) {
+        return call("POST", "conference/" + encode(websafeConferenceKey) + "/registration",
+                "", token);
+    }
+
+    /**
+     * @param token the OAuth 2.0 access token of the user, null to call anonymously.
+     */
+    public Response unregisterFromConference(final String websafeConferenceKey,
+            final String token) {
+        return call("DELETE", "conference/" + encode(websafeConferenceKey) + "/registration",
+                null, token);
+    }
+
+    /**
+     * Returns the websafe keys of the Conferences in the given response.
+     */
+    public static List<String> websafeKeys(final String body) {
+        List<String> keys = new ArrayList<>();
+        Matcher matcher = WEBSAFE_KEY.matcher(body == null ? "" : body);
+        while (matcher.find()) {
+            keys.add(matcher.group(1));
+        }
+        return keys;
+    }
+
+    private Response call(final String method, final String path, final String json,
+            final String token) {
+        try {
+            HttpURLConnection connection =
+                    (HttpURLConnection) new URL(apiUrl + path).openConnection();
+            connection.setRequestMethod(method);
+            connection.setConnectTimeout(TIMEOUT_MILLIS);
+            connection.setReadTimeout(TIMEOUT_MILLIS);
+            if (token != null) {
+                connection.setRequestProperty("Authorization", "Bearer " + token);
+            }
+            if (json != null) {
+                byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+                connection.setDoOutput(true);
+                connection.setRequestProperty("Content-Type", "application/json");
+                connection.setFixedLengthStreamingMode(bytes.length);
+                try (OutputStream out = connection.getOutputStream()) {
+                    out.write(bytes);
+                }
+            }
+            int status = connection.getResponseCode();
+            // Reading the whole body lets the next request reuse the connection.
+            InputStream in = status < 400
+                    ? connection.getInputStream() : connection.getErrorStream();
+            return new Response(status, read(in));
+        } catch (IOException e) {
+            return new Response(NO_RESPONSE, e.toString());
+        }
+    }
+
+    private static String read(final InputStream in) throws IOException {
+        if (in == null) {
+            return "";
+        }
+        try (InputStream input = in) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            for (int n = input.read(buffer); n != -1; n = input.read(buffer)) {
+                out.write(buffer, 0, n);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static String encode(final String value) {
+        try {
+            return URLEncoder.encode(value, "UTF-8");
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,271 @@
+/* Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.devrel.training.conference.loadtest;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Drives the Endpoints REST API of ConferenceApi with an open arrival curve, and reports the
+ * latency percentiles, the conflict and error rates, and the throughput of each request.
+ *
+ * Scenarios:
+ * <ul>
+ *   <li>browse: steady arrivals, each one queries the conferences or gets one of them.</li>
+ *   <li>spike: a ticket drop on one conference, each arrival gets the conference and
+ *       registers for it, and some unregister right after.</li>
+ * </ul>
+ *
+ * Options, all optional:
+ * <pre>
+ *   --url         the server, http://localhost:8080
+ *   --scenario    browse or spike, browse
+ *   --rate        the arrivals per second, at the peak of a spike, 50
+ *   --base        the arrivals per second around a spike, a tenth of the rate
+ *   --duration    the seconds to schedule arrivals for, 60
+ *   --threads     the requests in flight at most, 200
+ *   --conference  the websafe key of the conference, the first one queried
+ *   --tokens      a file of OAuth 2.0 access tokens, one per line and user
+ *   --unregister  the fraction of the registrations given up right away, 0.2
+ *   --output      the directory to write the distributions to, none
+ * </pre>
+ *
+ * Registrations need a signed in user. Without tokens they are sent anonymously, and count as
+ * errors.
+ */
+public class LoadTest {
+
+    private static final int QUERY_LIMIT = 20;
+
+    /**
+     * One arrival of a scenario.
+     */
+    private interface Scenario {
+        void arrive(long intendedNanos);
+    }
+
+    private final ConferenceClient client;
+
+    private final Map<String, OperationStats> stats = new LinkedHashMap<>();
+
+    private LoadTest(final ConferenceClient client) {
+        this.client = client;
+    }
+
+    private OperationStats stats(final String operation) {
+        synchronized (stats) {
+            OperationStats operationStats = stats.get(operation);
+            if (operationStats == null) {
+                operationStats = new OperationStats(operation);
+                stats.put(operation, operationStats);
+            }
+            return operationStats;
+        }
+    }
+
+    /**
+     * Users browsing the conferences, one in four arrivals queries them.
+     */
+    private Scenario browse(final List<String> websafeKeys) {
+        final OperationStats queries = stats("queryConferences");
+        final OperationStats gets = stats("getConference");
+        return new Scenario() {
+            @Override
+            public void arrive(final long intendedNanos) {
+                Random random = ThreadLocalRandom.current();
+                if (websafeKeys.isEmpty() || random.nextInt(4) == 0) {
+                    queries.record(intendedNanos, client.queryConferences(QUERY_LIMIT).getStatus());
+                } else {
+                    String websafeKey = websafeKeys.get(random.nextInt(websafeKeys.size()));
+                    gets.record(intendedNanos, client.getConference(websafeKey).getStatus());
+                }
+            }
+        };
+    }
+
+    /**
+     * Users rushing to register for one conference. The users take turns through the tokens,
+     * a user arriving while registered gets a conflict.
+     */
+    private Scenario spike(final String websafeKey, final List<String> tokens,
+            final double unregisterFraction) {
+        final OperationStats gets = stats("getConference");
+        final OperationStats registrations = stats("registerForConference");
+        final OperationStats unregistrations = stats("unregisterFromConference");
+        final AtomicInteger arrivals = new AtomicInteger();
+        return new Scenario() {
+            @Override
+            public void arrive(final long intendedNanos) {
+                String token = tokens.isEmpty()
+                        ? null : tokens.get((arrivals.getAndIncrement() & Integer.MAX_VALUE)
+                                % tokens.size());
+                gets.record(intendedNanos, client.getConference(websafeKey).getStatus());
+                long registerNanos = System.nanoTime();
+                int status = client.registerForConference(websafeKey, token).getStatus();
+                registrations.record(registerNanos, status);
+                if (status == 200
+                        && ThreadLocalRandom.current().nextDouble() < unregisterFraction) {
+                    long unregisterNanos = System.nanoTime();
+                    unregistrations.record(unregisterNanos,
+                            client.unregisterFromConference(websafeKey, token).getStatus());
+                }
+            }
+        };
+    }
+
+    /**
+     * Schedules the arrivals of the curve for the given duration, and waits for them.
+     *
+     * @return the seconds from the start to the end of the last request.
+     */
+    private double run(final Scenario scenario, final ArrivalCurve curve,
+            final long durationNanos, final int threads) throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        long startNanos = System.nanoTime();
+        for (long elapsedNanos = 0; elapsedNanos < durationNanos;
+                elapsedNanos = curve.nextArrivalNanos(elapsedNanos)) {
+            final long intendedNanos = startNanos + elapsedNanos;
+            long delayNanos = intendedNanos - System.nanoTime();
+            if (delayNanos > 0) {
+                TimeUnit.NANOSECONDS.sleep(delayNanos);
+            }
+            // Arrivals wait in the queue of the executor when all the threads are busy, and
+            // the wait counts in their latency.
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    scenario.arrive(intendedNanos);
+                }
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.HOURS);
+        return (System.nanoTime() - startNanos) / 1e9;
+    }
+
+    public static void main(final String[] args) throws IOException, InterruptedException {
+        Map<String, String> options = parse(args);
+        String url = option(options, "url", "http://localhost:8080");
+        String scenarioName = option(options, "scenario", "browse");
+        double rate = Double.parseDouble(option(options, "rate", "50"));
+        double baseRate = Double.parseDouble(option(options, "base", String.valueOf(rate / 10)));
+        long durationMillis =
+                TimeUnit.SECONDS.toMillis(Long.parseLong(option(options, "duration", "60")));
+        int threads = Integer.parseInt(option(options, "threads", "200"));
+        double unregisterFraction = Double.parseDouble(option(options, "unregister", "0.2"));
+        List<String> tokens = readTokens(options.get("tokens"));
+
+        ConferenceClient client = new ConferenceClient(url);
+        ConferenceClient.Response page = client.queryConferences(QUERY_LIMIT);
+        if (page.getStatus() != 200) {
+            System.err.println("Can't query the conferences at " + url + ": " + page.getStatus()
+                    + " " + page.getBody());
+            System.exit(1);
+        }
+        List<String> websafeKeys = ConferenceClient.websafeKeys(page.getBody());
+
+        LoadTest loadTest = new LoadTest(client);
+        Scenario scenario;
+        ArrivalCurve curve;
+        if (scenarioName.equals("browse")) {
+            scenario = loadTest.browse(websafeKeys);
+            curve = ArrivalCurve.steady(rate);
+        } else if (scenarioName.equals("spike")) {
+            String websafeKey = options.containsKey("conference")
+                    ? options.get("conference") : websafeKeys.isEmpty() ? null : websafeKeys.get(0);
+            if (websafeKey == null) {
+                System.err.println("There is no conference to register for.");
+                System.exit(1);
+            }
+            if (tokens.isEmpty()) {
+                System.err.println("No --tokens, the registrations will be unauthorized.");
+            }
+            scenario = loadTest.spike(websafeKey, tokens, unregisterFraction);
+            // The drop comes a tenth into the run, and the rush lasts a fifth of it.
+            curve = ArrivalCurve.spike(baseRate, rate, durationMillis / 10, 1000,
+                    durationMillis / 5, durationMillis / 5);
+        } else {
+            throw new IllegalArgumentException("Unknown scenario: " + scenarioName);
+        }
+
+        System.out.println("Running " + scenarioName + " against " + url + ", " + curve
+                + " for " + durationMillis + " ms");
+        double elapsedSeconds = loadTest.run(scenario, curve,
+                TimeUnit.MILLISECONDS.toNanos(durationMillis), threads);
+        System.out.printf("Done in %.1f s%n", elapsedSeconds);
+        for (OperationStats operationStats : loadTest.stats.values()) {
+            operationStats.report(System.out, elapsedSeconds);
+        }
+        if (options.containsKey("output")) {
+            File directory = new File(options.get("output"));
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Can't create " + directory);
+            }
+            for (OperationStats operationStats : loadTest.stats.values()) {
+                if (operationStats.getCount() > 0) {
+                    System.out.println("Wrote " + operationStats.writeDistribution(directory));
+                }
+            }
+        }
+    }
+
+    private static Map<String, String> parse(final String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].isEmpty()) {
+                continue;
+            }
+            if (!args[i].startsWith("--") || i + 1 == args.length) {
+                throw new IllegalArgumentException("Expected --option value at: " + args[i]);
+            }
+            options.put(args[i].substring(2), args[++i]);
+        }
+        return options;
+    }
+
+    private static String option(final Map<String, String> options, final String name,
+            final String defaultValue) {
+        String value = options.get(name);
+        return value == null ? defaultValue : value;
+    }
+
+    private static List<String> readTokens(final String path) throws IOException {
+        List<String> tokens = new ArrayList<>();
+        if (path == null) {
+            return tokens;
+        }
+        for (String line : Files.readAllLines(new File(path).toPath(), StandardCharsets.UTF_8)) {
+            line = line.trim();
+            if (!line.isEmpty() && !line.startsWith("#")) {
+                tokens.add(line);
+            }
+        }
+        return tokens;
+    }
+}
@@ -0,0 +1,117 @@
+/* Copyright 2014 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.devrel.training.conference.loadtest;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The latencies and the outcomes of one kind of request.
+ *
+ * Latencies are in microseconds, measured from the time the request was scheduled to arrive,
+ * so that the time spent waiting behind slow requests is not left out.
+ */
+public class OperationStats {
+
+    private static final int SIGNIFICANT_DIGITS = 3;
+
+    private static final double MICROS_PER_MILLI = 1000.0;
+
+    private final String name;
+
+    private final Histogram histogram = new ConcurrentHistogram(SIGNIFICANT_DIGITS);
+
+    private final AtomicLong succeeded = new AtomicLong();
+
+    private final AtomicLong conflicts = new AtomicLong();
+
+    private final AtomicLong errors = new AtomicLong();
+
+    public OperationStats(final String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Records a request.
+     *
+     * @param intendedNanos the System.nanoTime() the request was scheduled at.
+     * @param status the HTTP status of the response, or ConferenceClient.NO_RESPONSE.
+     */
+    public void record(final long intendedNanos, final int status) {
+        histogram.recordValue(Math.max(0, (System.nanoTime() - intendedNanos) / 1000));
+        if (status >= 200 && status < 300) {
+            succeeded.incrementAndGet();
+        } else if (status == 409) {
+            conflicts.incrementAndGet();
+        } else {
+            errors.incrementAndGet();
+        }
+    }
+
+    public long getCount() {
+        return histogram.getTotalCount();
+    }
+
+    /**
+     * Prints a line with the throughput, the latency percentiles in milliseconds and the
+     * rates of conflicts and errors.
+     *
+     * @param out where to print.
+     * @param elapsedSeconds the duration of the run.
+     */
+    public void report(final PrintStream out, final double elapsedSeconds) {
+        long count = getCount();
+        if (count == 0) {
+            out.printf("%-26s no requests%n", name);
+            return;
+        }
+        out.printf("%-26s %7d %8.1f/s  p50 %8.1f  p90 %8.1f  p99 %8.1f  p99.9 %8.1f  "
+                + "max %8.1f ms  conflicts %5.1f%%  errors %5.1f%%%n",
+                name, count, count / elapsedSeconds,
+                percentile(50), percentile(90), percentile(99), percentile(99.9),
+                histogram.getMaxValue() / MICROS_PER_MILLI,
+                100.0 * conflicts.get() / count, 100.0 * errors.get() / count);
+    }
+
+    /**
+     * Writes the latency distribution in milliseconds in the HdrHistogram percentile format,
+     * to name.hgrm in the given directory.
+     *
+     * @param directory the directory.
+     * @return the file written.
+     * @throws FileNotFoundException when the file can't be created.
+     */
+    public File writeDistribution(final File directory) throws FileNotFoundException {
+        File file = new File(directory, name + ".hgrm");
+        try (PrintStream out = new PrintStream(file)) {
+            histogram.outputPercentileDistribution(out, MICROS_PER_MILLI);
+        }
+        return file;
+    }
+
+    private double percentile(final double percentile) {
+        return histogram.getValueAtPercentile(percentile) / MICROS_PER_MILLI;
+    }
+}
@@ -0,0 +1,44 @@
+package com.google.devrel.training.conference.loadtest;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * Tests for ArrivalCurve.
+ */
+public class ArrivalCurveTest {
+
+    @Test
+    public void testSteady() throws Exception {
+        ArrivalCurve curve = ArrivalCurve.steady(4);
+        assertEquals(250000000L, curve.nextArrivalNanos(0));
+        assertEquals(1250000000L, curve.nextArrivalNanos(1000000000L));
+    }
+
+    @Test
+    public void testSpike() throws Exception {
+        ArrivalCurve curve = ArrivalCurve.spike(10, 100, 1000, 1000, 2000, 1000);
+        assertEquals(10, curve.rateAt(0), 0);
+        assertEquals(55, curve.rateAt(1500), 0);
+        assertEquals(100, curve.rateAt(2000), 0);
+        assertEquals(100, curve.rateAt(3999), 0);
+        assertEquals(55, curve.rateAt(4500), 0);
+        assertEquals(10, curve.rateAt(5000), 0);
+    }
+
+    @Test
+    public void testArrivalsFollowTheCurve() throws Exception {
+        ArrivalCurve curve = ArrivalCurve.spike(10, 100, 1000, 0, 1000, 0);
+        int arrivals = 0;
+        for (long t = 0; t < 3000000000L; t = curve.nextArrivalNanos(t)) {
+            arrivals++;
+        }
+        assertEquals(10 + 100 + 10, arrivals);
+    }
+
+    @Test
+    public void testIdleCurveMovesOn() throws Exception {
+        assertTrue(ArrivalCurve.steady(0).nextArrivalNanos(0) > 0);
+    }
+}